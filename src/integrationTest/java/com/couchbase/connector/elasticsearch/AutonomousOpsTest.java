@@ -109,9 +109,11 @@ public class AutonomousOpsTest {
     final String config = defaultConfig();
 
     try (TestConnectorGroup group = new TestConnectorGroup(config, consulCluster);
-         TestEsClient es = new TestEsClient(config)) {
+         TestEsClient es = new TestEsClient(config);
+         TestCouchbaseClient cb = new TestCouchbaseClient(config)) {
+      final int numPartitions = getNumPartitions(cb.cluster().bucket("travel-sample"));
       group.newWorker(0);
-      group.awaitRebalance(1);
+      group.awaitRebalance(1, numPartitions);
       waitForTravelSampleReplication(es);
     }
   }
@@ -126,6 +128,7 @@ public class AutonomousOpsTest {
          TestConnectorGroup group = new TestConnectorGroup(config, consulCluster)) {
 
       final Bucket bucket = cb.createTempBucket(couchbase, bucketName);
+      final int numPartitions = getNumPartitions(bucket);
       group.pause();
 
       // Wait for first worker to assume role of leader
@@ -145,7 +148,7 @@ public class AutonomousOpsTest {
 
       // Allow streaming to begin
       group.resume();
-      group.awaitRebalance(3);
+      group.awaitRebalance(3, numPartitions);
       es.waitForDocuments(CATCH_ALL_INDEX, upsertOneDocumentToEachVbucket(bucket, "a"));
 
       System.out.println("Stopping leader");
@@ -153,14 +156,14 @@ public class AutonomousOpsTest {
       System.out.println("Leader stopped!");
 
       // Wait for new leader to take over and rebalance among remaining workers
-      group.awaitRebalance(2);
+      group.awaitRebalance(2, numPartitions);
       es.waitForDocuments(CATCH_ALL_INDEX, upsertOneDocumentToEachVbucket(bucket, "b"));
 
       System.out.println("Adding 'latecomer' worker");
       final Closeable connector4 = group.newWorker(2, "latecomer");
 
       // new node should be integrated into group
-      group.awaitRebalance(3);
+      group.awaitRebalance(3, numPartitions);
       es.waitForDocuments(CATCH_ALL_INDEX, upsertOneDocumentToEachVbucket(bucket, "c"));
 
       // stop a node that isn't the leader
@@ -169,7 +172,7 @@ public class AutonomousOpsTest {
       System.out.println("Latecomer worker stopped!");
 
       // leaver should be removed from the group
-      group.awaitRebalance(2);
+      group.awaitRebalance(2, numPartitions);
       es.waitForDocuments(CATCH_ALL_INDEX, upsertOneDocumentToEachVbucket(bucket, "d"));
 
       System.out.println("Shutting down connector...");
@@ -131,6 +131,51 @@ public class ConsulDocumentWatcherTest {
     }
   }
 
+  @Test
+  public void watchWithSharedPrefix() throws Exception {
+    final String prefix = uniqueKey() + "/";
+    final String key1 = prefix + "one";
+    final String key2 = prefix + "two";
+
+    kv.putValue(key1, "exists");
+
+    final ConsulDocumentWatcher sharedWatcher = watcher.withSharedPrefix(prefix);
+    final BlockingQueue<Optional<String>> result1 = new LinkedBlockingQueue<>();
+    final BlockingQueue<Optional<String>> result2 = new LinkedBlockingQueue<>();
+    final Disposable watch1 = sharedWatcher.watch(key1)
+        .doOnNext(result1::add)
+        .subscribe();
+    final Disposable watch2 = sharedWatcher.watch(key2)
+        .doOnNext(result2::add)
+        .subscribe();
+
+    try {
+      // initial state
+      assertEquals(Optional.of("exists"), result1.poll(15, SECONDS));
+      assertEquals(Optional.empty(), result2.poll(15, SECONDS));
+
+      // changing one document doesn't notify subscribers watching the other
+      kv.putValue(key2, "created");
+      assertEquals(Optional.of("created"), result2.poll(15, SECONDS));
+      assertNull(result1.poll(1, SECONDS));
+
+      kv.putValue(key1, "changed");
+      assertEquals(Optional.of("changed"), result1.poll(15, SECONDS));
+      assertNull(result2.poll(1, SECONDS));
+
+      // a late subscriber sees the current state
+      assertEquals(Optional.of("created"), sharedWatcher.watch(key2).blockFirst());
+
+      watch1.dispose();
+      kv.deleteKey(key2);
+      assertEquals(Optional.empty(), result2.poll(15, SECONDS));
+
+    } finally {
+      watch1.dispose();
+      watch2.dispose();
+    }
+  }
+
   @Test
   public void watchWithInitialStatePresent() throws Exception {
     final String key = uniqueKey();
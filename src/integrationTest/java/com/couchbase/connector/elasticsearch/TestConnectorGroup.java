@@ -27,6 +27,9 @@ import com.google.common.io.Closer;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -36,6 +39,7 @@ import java.util.stream.IntStream;
 
 import static com.couchbase.connector.testcontainers.Poller.poll;
 import static java.util.Collections.singleton;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 import static org.junit.Assert.assertEquals;
 
@@ -88,26 +92,70 @@ class TestConnectorGroup implements Closeable {
     poll().until(() -> endpoints().size() == endpointCount);
   }
 
-  public void awaitRebalance(int expectedGroupSize) throws TimeoutException, InterruptedException {
+  /**
+   * Waits until the group has the expected number of streaming members,
+   * and every partition is streamed by exactly one of them.
+   */
+  public void awaitRebalance(int expectedGroupSize, int numPartitions) throws TimeoutException, InterruptedException {
     System.out.println("Waiting for group to have " + expectedGroupSize + " streaming members.");
 
     final Set<Membership> expectedMemberships = IntStream.range(0, expectedGroupSize)
         .mapToObj(i -> Membership.of(i + 1, expectedGroupSize))
         .collect(toSet());
 
-    poll().until(() -> getMemberships().equals(expectedMemberships));
+    try {
+      // Explicit partition assignments are compared separately, since incremental rebalancing
+      // assigns them in no particular pattern.
+      poll().until(() -> {
+        final List<Membership> memberships = getMembershipList();
+        return memberships.stream()
+            .map(m -> m == null ? null : Membership.of(m.getMemberNumber(), m.getClusterSize()))
+            .collect(toSet())
+            .equals(expectedMemberships)
+            && partitionCounts(memberships, numPartitions).equals(allOnes(numPartitions));
+      });
+    } catch (TimeoutException e) {
+      // Report which partitions are missing or assigned more than once.
+      assertEquals("streaming member count for each partition", allOnes(numPartitions),
+          partitionCounts(getMembershipList(), numPartitions));
+      throw e;
+    }
 
     System.out.println("Group rebalanced with " + expectedGroupSize + " streaming members.");
   }
 
+  /**
+   * Returns the number of members streaming each partition.
+   */
+  private static List<Integer> partitionCounts(List<Membership> memberships, int numPartitions) {
+    final int[] counts = new int[numPartitions];
+    for (Membership m : memberships) {
+      if (m == null) {
+        continue;
+      }
+      for (int partition : m.getPartitions(numPartitions)) {
+        counts[partition]++;
+      }
+    }
+    return Arrays.stream(counts).boxed().collect(toList());
+  }
+
+  private static List<Integer> allOnes(int numPartitions) {
+    return Collections.nCopies(numPartitions, 1);
+  }
+
   public void assertNobodyStreaming() {
     assertEquals(singleton(null), getMemberships());
   }
 
   public Set<Membership> getMemberships() {
+    return new HashSet<>(getMembershipList());
+  }
+
+  private List<Membership> getMembershipList() {
     return endpoints().stream()
         .map(ep -> ep.service(WorkerService.class).status().getMembership())
-        .collect(Collectors.toSet());
+        .collect(Collectors.toList());
   }
 
   @Override
@@ -17,10 +17,16 @@
 package com.couchbase.connector.cluster;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
 
 import static com.couchbase.connector.dcp.DcpHelper.allPartitions;
 import static com.couchbase.connector.util.ListHelper.chunks;
@@ -29,17 +35,46 @@ public class Membership {
   private final int memberNumber; // valid rage = from 1 to clusterSize, inclusive
   private final int clusterSize;
 
+  // Explicitly assigned partitions, or null if the member's partitions are
+  // derived from its member number.
+  @Nullable
+  private final Set<Integer> partitions;
+
+  public static Membership of(int memberNumber, int clusterSize) {
+    return new Membership(memberNumber, clusterSize, null);
+  }
+
+  /**
+   * Returns a membership whose partitions are specified explicitly,
+   * instead of being derived from the member number.
+   */
+  public static Membership of(int memberNumber, int clusterSize, Collection<Integer> partitions) {
+    return new Membership(memberNumber, clusterSize, partitions);
+  }
+
+  /**
+   * Returns a membership with no partitions. A connector with this membership
+   * opens its connections but does not stream, so it can take over partitions
+   * quickly when another member fails.
+   */
+  public static Membership standby() {
+    return new Membership(1, 1, Collections.emptySet());
+  }
+
   @JsonCreator
-  public static Membership of(@JsonProperty("memberNumber") int memberNumber, @JsonProperty("clusterSize") int clusterSize) {
-    return new Membership(memberNumber, clusterSize);
+  static Membership fromJson(@JsonProperty("memberNumber") int memberNumber,
+                             @JsonProperty("clusterSize") int clusterSize,
+                             @JsonProperty("partitions") Collection<Integer> partitions) {
+    return new Membership(memberNumber, clusterSize, partitions);
   }
 
-  private Membership(int memberNumber, int clusterSize) {
+  private Membership(int memberNumber, int clusterSize, @Nullable Collection<Integer> partitions) {
     if (memberNumber <= 0 || memberNumber > clusterSize) {
       throw new IllegalArgumentException("Invalid static group membership number, must be between 1 and cluster size (" + clusterSize + ") inclusive.");
     }
     this.memberNumber = memberNumber;
     this.clusterSize = clusterSize;
+    this.partitions = partitions == null ? null : Collections.unmodifiableSet(new TreeSet<>(partitions));
   }
 
   public int getMemberNumber() {
@@ -50,13 +85,41 @@ public class Membership {
     return clusterSize;
   }
 
+  /**
+   * Returns the explicitly assigned partitions, or null if the partitions
+   * are derived from the member number.
+   */
+  @Nullable
+  @JsonProperty("partitions")
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Set<Integer> getExplicitPartitions() {
+    return partitions;
+  }
+
+  /**
+   * Returns true if this membership was explicitly assigned no partitions.
+   *
+   * @see #standby()
+   */
+  public boolean isStandby() {
+    return partitions != null && partitions.isEmpty();
+  }
+
   public Set<Integer> getPartitions(int numPartitions) {
+    if (partitions != null) {
+      return new LinkedHashSet<>(partitions);
+    }
     return new LinkedHashSet<>(chunks(allPartitions(numPartitions), clusterSize).get(memberNumber - 1));
   }
 
   @Override
   public String toString() {
-    return memberNumber + "/" + clusterSize;
+    if (isStandby()) {
+      return "standby";
+    }
+    return partitions == null
+        ? memberNumber + "/" + clusterSize
+        : memberNumber + "/" + clusterSize + " " + partitions.size() + " partitions";
   }
 
   @Override
@@ -73,13 +136,17 @@ public class Membership {
     if (memberNumber != that.memberNumber) {
       return false;
     }
-    return clusterSize == that.clusterSize;
+    if (clusterSize != that.clusterSize) {
+      return false;
+    }
+    return Objects.equals(partitions, that.partitions);
   }
 
   @Override
   public int hashCode() {
     int result = memberNumber;
     result = 31 * result + clusterSize;
+    result = 31 * result + Objects.hashCode(partitions);
     return result;
   }
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+import static java.util.Comparator.comparingInt;
+
+/**
+ * Distributes partitions among group members while moving as few partitions as possible.
+ * Partitions can be balanced by count, or by load.
+ */
+public class PartitionAssigner {
+  private PartitionAssigner() {
+    throw new AssertionError("not instantiable");
+  }
+
+  /**
+   * Returns a balanced assignment where each member has either {@code floor(numPartitions / members)}
+   * or {@code ceil(numPartitions / members)} partitions.
+   * <p>
+   * Members keep as many of their current partitions as possible. The members that currently
+   * have the most partitions are the ones allowed to keep the larger share. Partitions that
+   * are not currently assigned, or that must move because their owner has too many,
+   * go to the members with the fewest partitions.
+   *
+   * @param current the partitions currently assigned to each member. A new member has an empty set.
+   * @return the new partitions for each member, in the same order as {@code current}.
+   */
+  public static List<Set<Integer>> assign(List<Set<Integer>> current, int numPartitions) {
+    final int members = current.size();
+    if (members == 0) {
+      throw new IllegalArgumentException("Must have at least one member.");
+    }
+
+    // Members sorted by current partition count, descending. Ties go to the earlier member.
+    final List<Integer> byCurrentSize = new ArrayList<>();
+    IntStream.range(0, members).forEach(byCurrentSize::add);
+    byCurrentSize.sort(comparingInt((Integer i) -> current.get(i).size()).reversed()
+        .thenComparing(Comparator.naturalOrder()));
+
+    final int[] targetSize = new int[members];
+    for (int rank = 0; rank < members; rank++) {
+      final int member = byCurrentSize.get(rank);
+      targetSize[member] = numPartitions / members + (rank < numPartitions % members ? 1 : 0);
+    }
+
+    final List<Set<Integer>> result = new ArrayList<>(members);
+    final Set<Integer> unassigned = new TreeSet<>();
+    IntStream.range(0, numPartitions).forEach(unassigned::add);
+
+    // Keep current partitions, up to the target size.
+    for (int member = 0; member < members; member++) {
+      final Set<Integer> kept = new TreeSet<>();
+      for (int partition : new TreeSet<>(current.get(member))) {
+        if (kept.size() == targetSize[member]) {
+          break;
+        }
+        // Guard against invalid partitions, or the same partition claimed by multiple members.
+        if (unassigned.remove(partition)) {
+          kept.add(partition);
+        }
+      }
+      result.add(kept);
+    }
+
+    // Hand out the rest.
+    final Iterator<Integer> i = unassigned.iterator();
+    for (int member = 0; member < members; member++) {
+      final Set<Integer> partitions = result.get(member);
+      while (partitions.size() < targetSize[member]) {
+        partitions.add(i.next());
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns an assignment that spreads the given partition load evenly among members,
+   * while moving as few partitions as possible.
+   * <p>
+   * Partitions with no current owner go to the least loaded members, heaviest partitions first.
+   * Then, while the most loaded member exceeds the average load by more than the given tolerance,
+   * a partition moves from the most loaded member to the least loaded member. The partition
+   * chosen is the one that best evens out the two members.
+   * <p>
+   * Every partition is treated as having a small minimum load, so idle partitions are still
+   * spread across members, and an idle group ends up balanced by partition count.
+   *
+   * @param current the partitions currently assigned to each member. A new member has an empty set.
+   * @param load the load of each partition, in arbitrary units. Missing partitions have zero load.
+   * @param tolerance how far above the average load a member may be before partitions are moved
+   * away from it, as a fraction of the average (0.2 means 20% above average).
+   * @return the new partitions for each member, in the same order as {@code current}.
+   */
+  public static List<Set<Integer>> balanceLoad(List<Set<Integer>> current, int numPartitions,
+                                               Map<Integer, Double> load, double tolerance) {
+    final int members = current.size();
+    if (members == 0) {
+      throw new IllegalArgumentException("Must have at least one member.");
+    }
+
+    final double[] weight = new double[numPartitions];
+    double totalLoad = 0;
+    for (int p = 0; p < numPartitions; p++) {
+      weight[p] = Math.max(0, load.getOrDefault(p, 0d));
+      totalLoad += weight[p];
+    }
+    final double minimumWeight = totalLoad == 0 ? 1 : 0.1 * totalLoad / numPartitions;
+    for (int p = 0; p < numPartitions; p++) {
+      weight[p] += minimumWeight;
+    }
+
+    final List<Set<Integer>> result = new ArrayList<>(members);
+    final double[] memberLoad = new double[members];
+    final Set<Integer> unassigned = new TreeSet<>();
+    IntStream.range(0, numPartitions).forEach(unassigned::add);
+
+    for (int member = 0; member < members; member++) {
+      final Set<Integer> kept = new TreeSet<>();
+      for (int partition : current.get(member)) {
+        // Guard against invalid partitions, or the same partition claimed by multiple members.
+        if (unassigned.remove(partition)) {
+          kept.add(partition);
+          memberLoad[member] += weight[partition];
+        }
+      }
+      result.add(kept);
+    }
+
+    final List<Integer> heaviestFirst = new ArrayList<>(unassigned);
+    heaviestFirst.sort(Comparator.comparingDouble((Integer p) -> weight[p]).reversed());
+    for (int partition : heaviestFirst) {
+      final int member = leastLoaded(memberLoad);
+      result.get(member).add(partition);
+      memberLoad[member] += weight[partition];
+    }
+
+    final double limit = (1 + tolerance) * Arrays.stream(memberLoad).sum() / members;
+
+    // Members whose load can't be reduced by moving any one of their partitions.
+    final boolean[] stuck = new boolean[members];
+
+    // Each move strictly reduces the sum of squared member loads, so this terminates.
+    // The cap is just a safety net.
+    for (int moves = 0; moves < numPartitions * members; moves++) {
+      final int from = mostLoaded(memberLoad, stuck);
+      if (from == -1 || memberLoad[from] <= limit) {
+        break;
+      }
+      final int to = leastLoaded(memberLoad);
+
+      final double gap = memberLoad[from] - memberLoad[to];
+      Integer best = null;
+      for (int partition : result.get(from)) {
+        if (weight[partition] < gap
+            && (best == null || Math.abs(weight[partition] - gap / 2) < Math.abs(weight[best] - gap / 2))) {
+          best = partition;
+        }
+      }
+      if (best == null) {
+        // Probably a single hot partition accounts for the imbalance; moving it would not help.
+        stuck[from] = true;
+        continue;
+      }
+
+      result.get(from).remove(best);
+      result.get(to).add(best);
+      memberLoad[from] -= weight[best];
+      memberLoad[to] += weight[best];
+      Arrays.fill(stuck, false);
+    }
+
+    return result;
+  }
+
+  private static int leastLoaded(double[] memberLoad) {
+    int result = 0;
+    for (int i = 1; i < memberLoad.length; i++) {
+      if (memberLoad[i] < memberLoad[result]) {
+        result = i;
+      }
+    }
+    return result;
+  }
+
+  private static int mostLoaded(double[] memberLoad, boolean[] exclude) {
+    int result = -1;
+    for (int i = 0; i < memberLoad.length; i++) {
+      if (!exclude[i] && (result == -1 || memberLoad[i] > memberLoad[result])) {
+        result = i;
+      }
+    }
+    return result;
+  }
+}
@@ -17,6 +17,7 @@
 package com.couchbase.connector.cluster.consul;
 
 import com.couchbase.connector.cluster.consul.rpc.RpcServerTask;
+import com.couchbase.connector.util.HttpServer;
 import com.couchbase.connector.util.RuntimeHelper;
 import com.couchbase.connector.util.ThrowableHelper;
 import com.github.therapi.core.MethodRegistry;
@@ -25,6 +26,7 @@ import com.github.therapi.jsonrpc.JsonRpcDispatcher;
 import com.github.therapi.jsonrpc.JsonRpcError;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
 import com.orbitz.consul.Consul;
 import com.orbitz.consul.model.agent.Member;
 import org.slf4j.Logger;
@@ -32,6 +34,8 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
@@ -44,6 +48,18 @@ public class ConsulConnector {
   private static final Logger LOGGER = LoggerFactory.getLogger(ConsulConnector.class);
 
   public static void run(ConsulContext ctx) throws Exception {
+    run(ctx, false, -1, null);
+  }
+
+  /**
+   * @param standby if true, the worker keeps its connections open but streams nothing,
+   * so it can quickly take over the partitions of a failed worker.
+   * @param directRpcPort port for accepting RPC requests directly over HTTP (0 for ephemeral port),
+   * or negative to accept requests only via Consul.
+   * @param advertisedHost host name or IP address the leader should use when sending
+   * direct RPC requests, or null to use the address of the Consul agent.
+   */
+  public static void run(ConsulContext ctx, boolean standby, int directRpcPort, String advertisedHost) throws Exception {
     final BlockingQueue<Throwable> fatalErrorQueue = new LinkedBlockingQueue<>();
 
     final Consumer<Throwable> errorConsumer = e -> {
@@ -73,7 +89,7 @@ public class ConsulConnector {
       }
 
       System.exit(1);
-    });
+    }, standby);
 
     final MethodRegistry methodRegistry = new MethodRegistry(newLenientObjectMapper());
     methodRegistry.scan(workerService);
@@ -93,6 +109,22 @@ public class ConsulConnector {
         })
         .build();
 
+    // The secret path prevents anyone who can't read the endpoint document from calling the RPC methods.
+    final String directRpcPath = "/rpc/" + UUID.randomUUID();
+    final HttpServer directRpcServer = new HttpServer(directRpcPort, ImmutableMap.of(directRpcPath,
+        requestBody -> dispatcher.invoke(requestBody)
+            .orElseThrow(() -> new IllegalArgumentException("JSON-RPC notifications not supported"))
+            .toString()));
+    directRpcServer.start();
+
+    final String directRpcAddress = directRpcPort < 0 ? null :
+        "http://" + HostAndPort.fromParts(
+            Optional.ofNullable(advertisedHost).orElse(member.getAddress()),
+            directRpcServer.getBoundPort()) + directRpcPath;
+    if (directRpcAddress != null) {
+      LOGGER.info("Accepting direct RPC requests on port {}", directRpcServer.getBoundPort());
+    }
+
     final LeaderController leaderController = new LeaderController() {
       private volatile LeaderTask leader;
 
@@ -117,7 +149,7 @@ public class ConsulConnector {
              new SessionTask(ctx, workerService::resetKillSwitchTimer, errorConsumer).start();
 
          RpcServerTask rpc =
-             new RpcServerTask(dispatcher, ctx, session.sessionId(), endpointId, errorConsumer).start();
+             new RpcServerTask(dispatcher, ctx, session.sessionId(), endpointId, directRpcAddress, errorConsumer).start();
 
          LeaderElectionTask election =
              new LeaderElectionTask(ctx, session.sessionId(), endpointId, errorConsumer, leaderController).start()) {
@@ -149,6 +181,7 @@ public class ConsulConnector {
 
     } finally {
       workerService.close();
+      directRpcServer.close();
 
       if (shutdownHook != null) {
         RuntimeHelper.removeShutdownHook(shutdownHook);
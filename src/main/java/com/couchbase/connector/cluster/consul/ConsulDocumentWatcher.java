@@ -16,53 +16,73 @@
 
 package com.couchbase.connector.cluster.consul;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.primitives.Longs;
 import com.orbitz.consul.Consul;
-import com.orbitz.consul.async.ConsulResponseCallback;
-import com.orbitz.consul.model.ConsulResponse;
-import com.orbitz.consul.model.kv.Value;
-import com.orbitz.consul.option.ImmutableQueryOptions;
-import com.orbitz.consul.option.QueryOptions;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.FluxSink;
 
-import java.math.BigInteger;
 import java.time.Duration;
+import java.util.Comparator;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 import static com.couchbase.connector.cluster.consul.ReactorHelper.await;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+/**
+ * Watches Consul documents for changes.
+ * <p>
+ * Subscribers watching the same document share a single Consul blocking query.
+ * Documents under a shared prefix (see {@link #withSharedPrefix(String)}) are all
+ * watched by a single blocking query for the whole prefix, so the number of connections
+ * to the Consul agent doesn't grow with the number of watched documents.
+ */
 public class ConsulDocumentWatcher {
-  private static final Logger LOGGER = LoggerFactory.getLogger(ConsulDocumentWatcher.class);
+  // After a change, wait this long before querying again so rapid changes are delivered together.
+  private static final Duration debounce = Duration.ofMillis(20);
 
-  // Build a new Consul client for each watch so the watch can be cancelled by destroying the client.
-  // See https://github.com/rickfast/consul-client/issues/307
   private final Consul.Builder consulBuilder;
 
+  private final Duration pollingInterval;
   private final String pollingIntervalString;
+  private final ImmutableSet<String> sharedPrefixes;
+
+  private final ConcurrentMap<String, SharedDocumentWatch> documentWatches = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, SharedDocumentWatch> prefixWatches = new ConcurrentHashMap<>();
 
   public ConsulDocumentWatcher(Consul.Builder consulBuilder) {
-    this(consulBuilder, Duration.ofMinutes(5));
+    this(consulBuilder, Duration.ofMinutes(5), ImmutableSet.of());
   }
 
-  private ConsulDocumentWatcher(Consul.Builder consulBuilder, Duration pollingInterval) {
+  private ConsulDocumentWatcher(Consul.Builder consulBuilder, Duration pollingInterval, ImmutableSet<String> sharedPrefixes) {
     this.consulBuilder = requireNonNull(consulBuilder);
+    this.pollingInterval = requireNonNull(pollingInterval);
     final long requestedPollingIntervalSeconds = MILLISECONDS.toSeconds(pollingInterval.toMillis());
     this.pollingIntervalString = Longs.constrainToRange(requestedPollingIntervalSeconds, 1, MINUTES.toSeconds(5)) + "s";
+    this.sharedPrefixes = requireNonNull(sharedPrefixes);
   }
 
   public ConsulDocumentWatcher withPollingInterval(Duration pollingInterval) {
-    return new ConsulDocumentWatcher(this.consulBuilder, pollingInterval);
+    return new ConsulDocumentWatcher(this.consulBuilder, pollingInterval, this.sharedPrefixes);
+  }
+
+  /**
+   * Returns a new watcher that uses a single blocking query to watch all documents
+   * whose keys start with the given prefix.
+   * <p>
+   * Worthwhile when many documents under the prefix are watched at once.
+   * The cost is that every change under the prefix wakes up the query,
+   * and each response includes all of the documents under the prefix.
+   */
+  public ConsulDocumentWatcher withSharedPrefix(String prefix) {
+    return new ConsulDocumentWatcher(this.consulBuilder, this.pollingInterval,
+        ImmutableSet.<String>builder().addAll(sharedPrefixes).add(prefix).build());
   }
 
   public Optional<String> awaitCondition(String key, Predicate<Optional<String>> valueCondition) throws InterruptedException {
@@ -93,96 +113,23 @@ public class ConsulDocumentWatcher {
     return awaitCondition(key, doc -> !doc.equals(Optional.ofNullable(valueBeforeChange)));
   }
 
-  public Flux<Optional<String>> watch(String key) {
-    return watch(key, consulResponse -> consulResponse.getResponse()
-        .map(documentBody -> documentBody.getValueAsString(UTF_8).orElse("")));
-  }
-
   /**
    * Returns a flux whose values are published on one of the async I/O threads owned by the Consul library.
+   * The first value is the current state of the document. After that, a value is published
+   * whenever the document changes. An empty optional means the document does not exist.
    */
-  private <T> Flux<T> watch(String key, Function<ConsulResponse<Optional<Value>>, T> resultExtractor) {
+  public Flux<Optional<String>> watch(String key) {
     requireNonNull(key);
-    requireNonNull(resultExtractor);
-
-    return Flux.create(emitter -> {
-      // Build a new instance we can safely terminate to cancel outstanding requests when flux is disposed.
-      final Consul consul = consulBuilder.build();
-
-      final AtomicBoolean done = new AtomicBoolean();
-      final Object cancellationLock = new Object();
-
-      emitter.onDispose(() -> {
-        synchronized (cancellationLock) {
-          LOGGER.debug("Cancelling watch for key {}", key);
-          done.set(true); // advisory flag to prevent starting a new request
-          consul.destroy(); // terminate an in-flight request (but doesn't prevent new ones, oddly!)
-        }
-      });
-
-      try {
-        watchOnce(emitter, consul, key, resultExtractor, BigInteger.ZERO, done, cancellationLock);
-      } catch (Throwable t) {
-        emitter.error(t);
-      }
-
-    }, FluxSink.OverflowStrategy.LATEST);
-  }
 
-  private <T> void watchOnce(FluxSink<T> emitter,
-                             Consul consul,
-                             String key,
-                             Function<ConsulResponse<Optional<Value>>, T> resultExtractor,
-                             BigInteger index,
-                             AtomicBoolean done,
-                             Object cancellationLock) {
-    final QueryOptions options = ImmutableQueryOptions.builder()
-        .index(index)
-        .wait(pollingIntervalString)
-        .build();
-
-    LOGGER.debug("Watching for changes to {} with options {}", key, options);
-
-    consul.keyValueClient().getValue(key, options,
-        new ConsulResponseCallback<Optional<Value>>() {
-          @Override
-          public void onComplete(ConsulResponse<Optional<Value>> consulResponse) {
-            try {
-              final boolean waitTimedOut = consulResponse.getIndex().equals(index);
-              if (!waitTimedOut) {
-                emitter.next(resultExtractor.apply(consulResponse));
-              }
-
-              synchronized (cancellationLock) {
-                if (done.get()) {
-                  // Flux was cancelled in the brief time when there's no in-flight Consul request.
-                  return;
-                }
-
-                watchOnce(emitter, consul, key, resultExtractor, consulResponse.getIndex(), done, cancellationLock);
-              }
-
-            } catch (Throwable t) {
-              LOGGER.error("Failure in key watcher callback onComplete", t);
-              handleError(t);
-            }
-          }
-
-          @Override
-          public void onFailure(Throwable t) {
-            if (!done.get()) {
-              handleError(t);
-            }
-          }
-
-          private void handleError(Throwable t) {
-            try {
-              emitter.error(t);
-            } finally {
-              consul.destroy();
-            }
-          }
-        }
-    );
+    final String prefix = sharedPrefixes.stream()
+        .filter(key::startsWith)
+        .max(Comparator.comparingInt(String::length))
+        .orElse(null);
+
+    final SharedDocumentWatch sharedWatch = prefix != null
+        ? prefixWatches.computeIfAbsent(prefix, p -> new SharedDocumentWatch(consulBuilder, p, true, pollingIntervalString, debounce))
+        : documentWatches.computeIfAbsent(key, k -> new SharedDocumentWatch(consulBuilder, k, false, pollingIntervalString, debounce));
+
+    return sharedWatch.watch(key);
   }
 }
@@ -182,6 +182,19 @@ public class ConsulHelper {
     }
   }
 
+  public static List<Value> listValues(KeyValueClient kv, String keyPrefix) {
+    try {
+      final List<Value> result = kv.getValues(keyPrefix);
+      return result == null ? new ArrayList<>(0) : result;
+
+    } catch (ConsulException e) {
+      if (e.getCode() == HTTP_NOT_FOUND) {
+        return new ArrayList<>(0);
+      }
+      throw e;
+    }
+  }
+
   public static List<String> listKeys(KeyValueClient kv, String keyPrefix) {
     try {
       return kv.getKeys(keyPrefix);
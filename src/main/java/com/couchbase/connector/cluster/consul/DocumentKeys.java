@@ -57,7 +57,8 @@ public class DocumentKeys {
 
   public DocumentKeys(KeyValueClient kv, ConsulDocumentWatcher watcher, String serviceName) {
     this.serviceName = requireNonNull(serviceName);
-    this.watcher = requireNonNull(watcher);
+    // The leader may be waiting for responses from many endpoints at once; let them share one long poll.
+    this.watcher = watcher.withSharedPrefix(rpcEndpointKeyPrefix());
     this.kv = requireNonNull(kv);
   }
 
@@ -101,9 +102,9 @@ public class DocumentKeys {
 
   public List<RpcEndpoint> listRpcEndpoints(Duration endpointTimeout) {
     requireNonNull(endpointTimeout);
-    return ConsulHelper.listKeys(kv, rpcEndpointKeyPrefix())
+    return ConsulHelper.listValues(kv, rpcEndpointKeyPrefix())
         .stream()
-        .map(endpointKey -> new RpcEndpoint(kv, watcher, endpointKey, endpointTimeout))
+        .map(value -> RpcEndpoint.forDocument(kv, watcher, value.getKey(), value.getValueAsString(UTF_8).orElse(null), endpointTimeout))
         .collect(toList());
   }
 
@@ -113,8 +114,12 @@ public class DocumentKeys {
 
   public Optional<RpcEndpoint> leaderEndpoint() {
     final String endpointId = kv.getValueAsString(leader(), UTF_8).orElse(null);
-    return endpointId == null ? Optional.empty() : Optional.of(
-        new RpcEndpoint(kv, watcher, rpcEndpoint(endpointId), DEFAULT_ENDPOINT_TIMEOUT));
+    if (endpointId == null) {
+      return Optional.empty();
+    }
+    final String endpointKey = rpcEndpoint(endpointId);
+    final String endpointDocument = kv.getValueAsString(endpointKey, UTF_8).orElse(null);
+    return Optional.of(RpcEndpoint.forDocument(kv, watcher, endpointKey, endpointDocument, DEFAULT_ENDPOINT_TIMEOUT));
   }
 
   public boolean pause() throws TimeoutException, IOException {
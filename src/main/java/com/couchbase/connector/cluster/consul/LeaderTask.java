@@ -19,11 +19,13 @@ package com.couchbase.connector.cluster.consul;
 import com.couchbase.client.dcp.core.utils.DefaultObjectMapper;
 import com.couchbase.client.dcp.deps.com.fasterxml.jackson.databind.JsonNode;
 import com.couchbase.connector.cluster.Membership;
+import com.couchbase.connector.cluster.PartitionAssigner;
 import com.couchbase.connector.cluster.consul.rpc.Broadcaster;
 import com.couchbase.connector.cluster.consul.rpc.RpcEndpoint;
 import com.couchbase.connector.cluster.consul.rpc.RpcResult;
 import com.couchbase.connector.config.ConfigException;
 import com.couchbase.connector.config.es.ConnectorConfig;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.Disposable;
@@ -31,12 +33,20 @@ import reactor.core.Disposable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.couchbase.connector.cluster.consul.LeaderEvent.CONFIG_CHANGE;
 import static com.couchbase.connector.cluster.consul.LeaderEvent.FATAL_ERROR;
@@ -46,6 +56,8 @@ import static com.couchbase.connector.cluster.consul.ReactorHelper.asCloseable;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonMap;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -56,12 +68,30 @@ public class LeaderTask {
   // Wait this long before assuming an unreachable worker node has stopped streaming.
   private static final Duration quietPeriodAfterFailedShutdownRequest = Duration.ofSeconds(30);
 
+  // How often to check whether partitions should move to even out the load on the workers.
+  private static final Duration loadCheckInterval = Duration.ofMinutes(1);
+
+  // Move partitions away from a worker whose load is this much above average (0.2 means 20% above).
+  private static final double loadTolerance = 0.2;
+
+  // How many times to send a request that assigns work to a worker, before giving up on that worker.
+  private static final int assignmentAttempts = 3;
+  private static final Duration assignmentRetryDelay = Duration.ofSeconds(3);
+
+  // After assigning work, how long to wait for the workers to start up before
+  // reassigning the work of a worker that could not be reached.
+  private static final Duration startupTimeout = Duration.ofMinutes(1);
+
   private final ConsulContext ctx;
   private volatile boolean done;
   private volatile Thread thread;
 
   private final Broadcaster broadcaster = new Broadcaster();
 
+  // The config most recently assigned to every worker, or null if the workers
+  // might be running some other config (or nothing at all).
+  private String lastAssignedConfig;
+
   public LeaderTask(ConsulContext consulContext) {
     this.ctx = requireNonNull(consulContext);
   }
@@ -98,7 +128,17 @@ public class LeaderTask {
       while (true) {
         throwIfDone();
 
-        final LeaderEvent event = leaderEvents.take();
+        final LeaderEvent event = leaderEvents.poll(loadCheckInterval.toMillis(), MILLISECONDS);
+        if (event == null) {
+          if (lastAssignedConfig != null && !paused) {
+            LOGGER.debug("Checking whether partition load is balanced.");
+            if (!tryIncrementalRebalance(lastAssignedConfig) && lastAssignedConfig == null) {
+              // Some partitions might have been revoked and not reassigned.
+              rebalance();
+            }
+          }
+          continue;
+        }
         LOGGER.info("Got leadership event: {}", event);
 
         switch (event) {
@@ -168,6 +208,7 @@ public class LeaderTask {
   }
 
   private void stopStreaming() throws InterruptedException {
+    lastAssignedConfig = null;
     int attempt = 1;
 
     // Repeat until all endpoints successfully acknowledge they have been shut down
@@ -203,21 +244,36 @@ public class LeaderTask {
    * Returns all ready endpoints. Blocks until at least one endpoint is ready.
    */
   public List<RpcEndpoint> awaitReadyEndpoints() throws InterruptedException {
+    return new ArrayList<>(awaitReadyMembers().keySet());
+  }
+
+  /**
+   * Asks all endpoints at once whether they are ready, and whether they are standbys.
+   * Blocks until at least one endpoint is ready.
+   *
+   * @return Map from each ready endpoint to whether it is a standby, in endpoint list order.
+   */
+  private Map<RpcEndpoint, Boolean> awaitReadyMembers() throws InterruptedException {
     while (true) {
       throwIfDone();
 
       final List<RpcEndpoint> allEndpoints = ctx.keys().listRpcEndpoints(Duration.ofSeconds(15));
 
-      final List<RpcEndpoint> readyEndpoints = allEndpoints.stream()
-          .filter(rpcEndpoint -> {
-            try {
-              rpcEndpoint.service(WorkerService.class).ready();
-              return true;
-            } catch (Throwable t) {
-              LOGGER.warn("Endpoint {} is not ready; excluding it from rebalance.", rpcEndpoint, t);
-              return false;
-            }
-          }).collect(Collectors.toList());
+      final Map<RpcEndpoint, RpcResult<Boolean>> results = broadcaster.broadcast(
+          "ready", allEndpoints, WorkerService.class, service -> {
+            service.ready();
+            return isStandby(service);
+          });
+
+      final Map<RpcEndpoint, Boolean> readyEndpoints = new LinkedHashMap<>();
+      for (RpcEndpoint endpoint : allEndpoints) {
+        final RpcResult<Boolean> result = results.get(endpoint);
+        if (result.isFailed()) {
+          LOGGER.warn("Endpoint {} is not ready; excluding it from rebalance.", endpoint);
+        } else {
+          readyEndpoints.put(endpoint, result.get());
+        }
+      }
 
       if (!readyEndpoints.isEmpty()) {
         return readyEndpoints;
@@ -238,39 +294,440 @@ public class LeaderTask {
         .orElseThrow(() -> new ConfigException("missing value for Consul key: " + configLocation));
 
     // Sanity check, validate the config.
-    ConnectorConfig.from(config);
+    if (!ConnectorConfig.from(config).pipelines().isEmpty()) {
+      // Each pipeline would need its own partition assignments; run a separate connector group for each bucket instead.
+      throw new ConfigException("[[pipeline]] is not supported in distributed mode.");
+    }
+
+    if (tryIncrementalRebalance(config)) {
+      return;
+    }
 
-    restartRebalance:
     while (true) {
       LOGGER.info("Rebalancing the cluster");
       // dumb strategy: shut everything down, then reassign vbuckets
       stopStreaming();
 
-      final List<RpcEndpoint> endpoints = awaitReadyEndpoints();
+      final List<RpcEndpoint> endpoints = new ArrayList<>();
+      final List<RpcEndpoint> standbys = new ArrayList<>();
+      awaitReadyMembers().forEach((endpoint, standby) -> (standby ? standbys : endpoints).add(endpoint));
 
-      for (int i = 0; i < endpoints.size(); i++) {
-        throwIfDone();
+      // If only standbys are left, they have to do the work.
+      if (endpoints.isEmpty()) {
+        endpoints.addAll(standbys);
+        standbys.clear();
+      }
 
+      final Map<RpcEndpoint, Consumer<WorkerService>> assignments = new LinkedHashMap<>();
+      for (RpcEndpoint endpoint : standbys) {
+        LOGGER.info("Assigning standby role to endpoint {}", endpoint);
+        assignments.put(endpoint, service -> service.startStreaming(Membership.standby(), config));
+      }
+      for (int i = 0; i < endpoints.size(); i++) {
         final int memberNumber = i + 1;
         final int clusterSize = endpoints.size();
         final Membership membership = Membership.of(memberNumber, clusterSize);
 
         final RpcEndpoint endpoint = endpoints.get(i);
         LOGGER.info("Assigning group membership {} to endpoint {}", membership, endpoint);
-        try {
-          endpoint.service(WorkerService.class).startStreaming(membership, config);
-        } catch (Throwable t) {
-          // todo what happens here? What if it fails due to timeout, and the worker is actually doing the work?
-          // For now, start the whole rebalance process over again. This is obviously not ideal.
-          LOGGER.warn("Failed to assign group membership {} to endpoint {}", membership, endpoint, t);
-          SECONDS.sleep(3);
-          continue restartRebalance;
-        }
+        assignments.put(endpoint, service -> service.startStreaming(membership, config));
+      }
+
+      throwIfDone();
+      final Map<RpcEndpoint, RpcResult<Void>> results = assign("assign", assignments);
+
+      // A standby that failed is not a problem; it will be warmed up during the next incremental rebalance.
+      final List<RpcEndpoint> failed = endpoints.stream()
+          .filter(endpoint -> results.get(endpoint).isFailed())
+          .collect(Collectors.toList());
+
+      if (failed.isEmpty()) {
+        // success!
+        lastAssignedConfig = config;
+        return;
+      }
+
+      if (failed.size() == endpoints.size()) {
+        LOGGER.warn("Failed to assign group membership to any endpoint; restarting rebalance.");
+        SECONDS.sleep(3);
+        continue;
+      }
+
+      // The other endpoints keep streaming. Make sure the failed ones are not streaming
+      // (a request might have timed out even though the worker did the work),
+      // then hand out the partitions they were supposed to stream.
+      LOGGER.warn("Failed to assign group membership to endpoints {}; reassigning their partitions.", failed);
+      evict(failed);
+      lastAssignedConfig = config;
+      if (awaitIncrementalRebalance(config)) {
+        return;
       }
 
-      // success!
+      LOGGER.warn("Failed to reassign partitions of unreachable endpoints; restarting rebalance.");
+      SECONDS.sleep(3);
+    }
+  }
+
+  /**
+   * Sends each endpoint its own assignment request. The requests are sent concurrently,
+   * and a failed request is retried without holding up the other endpoints.
+   */
+  private Map<RpcEndpoint, RpcResult<Void>> assign(String description, Map<RpcEndpoint, Consumer<WorkerService>> requests) {
+    return broadcaster.broadcast(description, new ArrayList<>(requests.keySet()), WorkerService.class,
+        (endpoint, service) -> {
+          requests.get(endpoint).accept(service);
+          return null;
+        },
+        assignmentAttempts, assignmentRetryDelay);
+  }
+
+  /**
+   * Like {@link #assign}, but throws an exception if any endpoint failed.
+   */
+  private void assignAll(String description, Map<RpcEndpoint, Consumer<WorkerService>> requests) {
+    if (requests.isEmpty()) {
       return;
     }
+    for (RpcResult<Void> result : assign(description, requests).values()) {
+      result.get(); // throws if failed
+    }
+  }
+
+  /**
+   * Blocks until each of the given endpoints has acknowledged a request to stop streaming,
+   * or has left the group.
+   */
+  private void evict(List<RpcEndpoint> endpoints) throws InterruptedException {
+    final Set<String> pending = endpoints.stream()
+        .map(RpcEndpoint::getKey)
+        .collect(Collectors.toCollection(HashSet::new));
+    boolean someLeft = false;
+
+    while (true) {
+      throwIfDone();
+
+      final List<RpcEndpoint> remaining = ctx.keys().listRpcEndpoints(Duration.ofSeconds(15)).stream()
+          .filter(endpoint -> pending.contains(endpoint.getKey()))
+          .collect(Collectors.toList());
+
+      if (remaining.size() < pending.size()) {
+        someLeft = true;
+        pending.retainAll(remaining.stream().map(RpcEndpoint::getKey).collect(Collectors.toSet()));
+      }
+
+      broadcaster.broadcast("stop", remaining, WorkerService.class, WorkerService::stopStreaming)
+          .forEach((endpoint, result) -> {
+            if (!result.isFailed()) {
+              pending.remove(endpoint.getKey());
+            }
+          });
+
+      if (pending.isEmpty()) {
+        if (someLeft) {
+          LOGGER.warn("Unreachable endpoints left the group. Sleeping for an additional {} to allow them to terminate.", quietPeriodAfterFailedShutdownRequest);
+          sleep(quietPeriodAfterFailedShutdownRequest);
+        }
+        return;
+      }
+
+      LOGGER.warn("Endpoints {} have not acknowledged stop request. Will retry.", pending);
+      SECONDS.sleep(5);
+    }
+  }
+
+  /**
+   * Retries an incremental rebalance until it succeeds, or until the workers have had
+   * enough time to start up.
+   *
+   * @return true if the rebalance succeeded, or false if a full rebalance is required.
+   */
+  private boolean awaitIncrementalRebalance(String config) throws InterruptedException {
+    final long deadline = System.nanoTime() + startupTimeout.toNanos();
+    while (true) {
+      if (tryIncrementalRebalance(config)) {
+        return true;
+      }
+      if (lastAssignedConfig == null || System.nanoTime() - deadline > 0) {
+        // Assignment is unknown, or the workers are taking too long.
+        return false;
+      }
+      SECONDS.sleep(3);
+    }
+  }
+
+  /**
+   * A worker's state, as seen by the leader.
+   */
+  private static class Member {
+    private final boolean standby;
+    private final WorkerService.Status status;
+    private RpcEndpoint endpoint;
+
+    private Member(boolean standby, WorkerService.Status status) {
+      this.standby = standby;
+      this.status = requireNonNull(status);
+    }
+
+    private Membership membership() {
+      return status.getMembership();
+    }
+
+    private boolean isIdleStandby() {
+      return standby && (membership() == null || membership().isStandby());
+    }
+  }
+
+  /**
+   * Moves only the partitions whose owner must change, leaving the other partitions streaming.
+   * <p>
+   * Partitions are taken away from their old owners before they are given to their new owners,
+   * so a partition is never streamed by two workers at once.
+   * <p>
+   * If partitions have no owner (because a worker failed) and a warm standby worker is available,
+   * the standby takes over all of the orphaned partitions and nothing else moves.
+   * When a regular worker later joins the group, a standby that took over
+   * hands its partitions back and returns to standby.
+   *
+   * @return true if the rebalance succeeded, or false if a full rebalance is required.
+   */
+  private boolean tryIncrementalRebalance(String config) throws InterruptedException {
+    if (!config.equals(lastAssignedConfig)) {
+      LOGGER.info("Workers might not be running the current config; incremental rebalance not possible.");
+      return false;
+    }
+
+    final List<RpcEndpoint> endpoints = ctx.keys().listRpcEndpoints(Duration.ofSeconds(15));
+    if (endpoints.isEmpty()) {
+      return false;
+    }
+
+    final Map<RpcEndpoint, RpcResult<Member>> statusResults = broadcaster.broadcast(
+        "status", endpoints, WorkerService.class, service -> {
+          if (!service.ready()) {
+            throw new IllegalStateException("Endpoint not ready");
+          }
+          return new Member(service.standby(), service.status());
+        });
+
+    // Workers that have (or should have) partitions, including standbys that took over for a failed worker.
+    final List<Member> active = new ArrayList<>();
+    final List<Member> idleStandbys = new ArrayList<>();
+    int numPartitions = 0;
+
+    for (RpcEndpoint endpoint : endpoints) {
+      final RpcResult<Member> result = statusResults.get(endpoint);
+      if (result.isFailed()) {
+        LOGGER.info("Failed to get status of endpoint {}; incremental rebalance not possible. {}", endpoint, result);
+        return false;
+      }
+
+      final Member member = result.get();
+      member.endpoint = endpoint;
+
+      if (member.isIdleStandby()) {
+        idleStandbys.add(member);
+        continue;
+      }
+      active.add(member);
+
+      if (member.membership() == null) {
+        continue;
+      }
+      if (member.status.getNumPartitions() == 0) {
+        LOGGER.info("Endpoint {} has not finished starting up; incremental rebalance not possible.", endpoint);
+        return false;
+      }
+      if (numPartitions != 0 && numPartitions != member.status.getNumPartitions()) {
+        LOGGER.info("Endpoints disagree about number of partitions; incremental rebalance not possible.");
+        return false;
+      }
+      numPartitions = member.status.getNumPartitions();
+    }
+
+    if (numPartitions == 0) {
+      LOGGER.info("No endpoints are streaming; incremental rebalance not possible.");
+      return false;
+    }
+
+    final Set<Integer> orphans = new TreeSet<>();
+    IntStream.range(0, numPartitions).forEach(orphans::add);
+    for (Member member : active) {
+      for (int p : member.status.getPartitions()) {
+        if (!orphans.remove(p)) {
+          LOGGER.info("Partition {} is streamed by more than one endpoint; incremental rebalance not possible.", p);
+          return false;
+        }
+      }
+    }
+
+    try {
+      final Map<RpcEndpoint, Consumer<WorkerService>> warmUps = new LinkedHashMap<>();
+      for (Member standby : idleStandbys) {
+        if (standby.membership() == null) {
+          LOGGER.info("Warming up standby endpoint {}", standby.endpoint);
+          warmUps.put(standby.endpoint, service -> service.startStreaming(Membership.standby(), config));
+        }
+      }
+      assignAll("warm up", warmUps);
+
+      if (!orphans.isEmpty()) {
+        final int partitionCount = numPartitions;
+        final Member replacement = idleStandbys.stream()
+            .filter(m -> m.status.getNumPartitions() == partitionCount)
+            .findFirst()
+            .orElse(null);
+
+        if (replacement != null) {
+          final int clusterSize = active.size() + 1;
+          final Membership membership = Membership.of(clusterSize, clusterSize, orphans);
+          LOGGER.info("Promoting standby endpoint {} to take over {} orphaned partitions", replacement.endpoint, orphans.size());
+          assignAll("promote", singletonMap(replacement.endpoint, service -> service.startStreaming(membership, config)));
+          return true;
+        }
+      }
+
+    } catch (InterruptedException e) {
+      throw e;
+
+    } catch (Throwable t) {
+      LOGGER.warn("Standby assignment failed; falling back to full rebalance.", t);
+      lastAssignedConfig = null; // assignment is now unknown
+      return false;
+    }
+
+    // A standby that took over for a failed worker steps down when a regular worker joins.
+    final List<Member> newcomers = active.stream()
+        .filter(m -> !m.standby && m.membership() == null)
+        .collect(Collectors.toList());
+    final List<Member> stepDown = active.stream()
+        .filter(m -> m.standby)
+        .limit(newcomers.size())
+        .collect(Collectors.toList());
+
+    final List<Member> members = new ArrayList<>(active);
+    members.removeAll(stepDown);
+    if (members.isEmpty()) {
+      return false;
+    }
+
+    final List<Set<Integer>> current = members.stream()
+        .map(m -> m.status.getPartitions())
+        .collect(Collectors.toList());
+
+    final Map<Integer, Double> load = getPartitionLoad(endpoints);
+    final List<Set<Integer>> next = load == null
+        ? PartitionAssigner.assign(current, numPartitions)
+        : PartitionAssigner.balanceLoad(current, numPartitions, load, loadTolerance);
+
+    // Target membership for each affected worker; null means "stop streaming".
+    final List<Member> affected = new ArrayList<>(members);
+    final List<Membership> targets = new ArrayList<>();
+    for (int i = 0; i < members.size(); i++) {
+      if (!next.get(i).isEmpty()) {
+        targets.add(Membership.of(i + 1, members.size(), next.get(i)));
+      } else {
+        // more workers than partitions
+        targets.add(members.get(i).standby ? Membership.standby() : null);
+      }
+    }
+    for (Member m : stepDown) {
+      affected.add(m);
+      targets.add(Membership.standby());
+    }
+
+    if (IntStream.range(0, affected.size())
+        .allMatch(i -> Objects.equals(targets.get(i), affected.get(i).membership()))) {
+      LOGGER.debug("Partition assignment is already balanced.");
+      return true;
+    }
+
+    LOGGER.info("Rebalancing the cluster incrementally");
+
+    try {
+      // Phase 1: take partitions away from endpoints that are losing them.
+      final Map<RpcEndpoint, Consumer<WorkerService>> revocations = new LinkedHashMap<>();
+      for (int i = 0; i < affected.size(); i++) {
+        final Member member = affected.get(i);
+        final Membership target = targets.get(i);
+        final Set<Integer> currentPartitions = member.status.getPartitions();
+        final Set<Integer> keep = target == null
+            ? emptySet()
+            : new TreeSet<>(Sets.intersection(currentPartitions, target.getExplicitPartitions()));
+        if (keep.equals(currentPartitions)) {
+          continue;
+        }
+
+        if (keep.isEmpty() && member.standby) {
+          LOGGER.info("Revoking all partitions from endpoint {}; returning it to standby", member.endpoint);
+          revocations.put(member.endpoint, service -> service.startStreaming(Membership.standby(), config));
+        } else if (keep.isEmpty()) {
+          LOGGER.info("Revoking all partitions from endpoint {}", member.endpoint);
+          revocations.put(member.endpoint, WorkerService::stopStreaming);
+        } else {
+          final Membership membership = Membership.of(target.getMemberNumber(), target.getClusterSize(), keep);
+          LOGGER.info("Revoking partitions; assigning group membership {} to endpoint {}", membership, member.endpoint);
+          revocations.put(member.endpoint, service -> service.startStreaming(membership, config));
+        }
+      }
+
+      throwIfDone();
+      assignAll("revoke", revocations);
+
+      // Phase 2: give partitions to their new owners.
+      final Map<RpcEndpoint, Consumer<WorkerService>> grants = new LinkedHashMap<>();
+      for (int i = 0; i < affected.size(); i++) {
+        final Member member = affected.get(i);
+        final Membership target = targets.get(i);
+        if (target == null || target.isStandby() || target.equals(member.membership())) {
+          continue; // already handled in phase 1, or nothing to do
+        }
+
+        LOGGER.info("Assigning group membership {} to endpoint {}", target, member.endpoint);
+        grants.put(member.endpoint, service -> service.startStreaming(target, config));
+      }
+
+      throwIfDone();
+      assignAll("grant", grants);
+
+    } catch (InterruptedException e) {
+      throw e;
+
+    } catch (Throwable t) {
+      LOGGER.warn("Incremental rebalance failed; falling back to full rebalance.", t);
+      lastAssignedConfig = null; // assignment is now unknown
+      return false;
+    }
+
+    LOGGER.info("Incremental rebalance complete.");
+    return true;
+  }
+
+  private static boolean isStandby(WorkerService service) {
+    try {
+      return service.standby();
+    } catch (Throwable t) {
+      LOGGER.warn("Failed to ask whether endpoint is a standby; assuming it is not.", t);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the combined partition load reported by the given endpoints,
+   * or null if any endpoint failed to report.
+   */
+  private Map<Integer, Double> getPartitionLoad(List<RpcEndpoint> endpoints) {
+    final Map<RpcEndpoint, RpcResult<Map<Integer, Double>>> results = broadcaster.broadcast(
+        "partitionLoad", endpoints, WorkerService.class, WorkerService::partitionLoad);
+
+    final Map<Integer, Double> load = new HashMap<>();
+    for (Map.Entry<RpcEndpoint, RpcResult<Map<Integer, Double>>> entry : results.entrySet()) {
+      if (entry.getValue().isFailed()) {
+        LOGGER.warn("Failed to get partition load from endpoint {}; balancing by partition count instead. {}", entry.getKey(), entry.getValue());
+        return null;
+      }
+      load.putAll(entry.getValue().get());
+    }
+    return load;
   }
 
   private void throwIfDone() throws InterruptedException {
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.cluster.consul;
+
+import com.orbitz.consul.Consul;
+import com.orbitz.consul.KeyValueClient;
+import com.orbitz.consul.async.ConsulResponseCallback;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.kv.Value;
+import com.orbitz.consul.option.ImmutableQueryOptions;
+import com.orbitz.consul.option.QueryOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A single Consul blocking query whose results are shared by any number of subscribers.
+ * The query is for one document, or for every document whose key starts with a prefix.
+ * Each subscriber is interested in one document, and is notified only when that document changes.
+ * <p>
+ * The query runs only while there are subscribers.
+ * <p>
+ * Thread-safe.
+ */
+class SharedDocumentWatch {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SharedDocumentWatch.class);
+
+  private final Consul.Builder consulBuilder;
+  private final String key;
+  private final boolean prefix;
+  private final String pollingIntervalString;
+  private final Duration debounce;
+
+  // Everything below is guarded by "this"
+
+  private final Set<Subscriber> subscribers = new LinkedHashSet<>();
+
+  // Null when the query is not running.
+  private Session session;
+
+  // Latest query results, by document key.
+  private Map<String, Value> snapshot = emptyMap();
+
+  // Consul index of the latest query results, or null if there are no results yet.
+  private BigInteger snapshotIndex;
+
+  private static class Subscriber {
+    private final String documentKey;
+    private final FluxSink<Optional<String>> sink;
+    private boolean initialized; // whether the subscriber has received its first value
+
+    private Subscriber(String documentKey, FluxSink<Optional<String>> sink) {
+      this.documentKey = requireNonNull(documentKey);
+      this.sink = requireNonNull(sink);
+    }
+  }
+
+  private static class Session {
+    // Build a new Consul client for each session so requests can be cancelled by destroying the client.
+    // See https://github.com/rickfast/consul-client/issues/307
+    private final Consul consul;
+
+    private Session(Consul consul) {
+      this.consul = requireNonNull(consul);
+    }
+  }
+
+  /**
+   * @param key the document key, or the key prefix if {@code prefix} is true
+   * @param debounce how long to wait after a change before querying again, so a burst of changes
+   * is delivered as one update instead of many.
+   */
+  SharedDocumentWatch(Consul.Builder consulBuilder, String key, boolean prefix, String pollingIntervalString, Duration debounce) {
+    this.consulBuilder = requireNonNull(consulBuilder);
+    this.key = requireNonNull(key);
+    this.prefix = prefix;
+    this.pollingIntervalString = requireNonNull(pollingIntervalString);
+    this.debounce = requireNonNull(debounce);
+  }
+
+  /**
+   * Returns a flux whose values are published on one of the async I/O threads owned by the Consul library.
+   *
+   * @param documentKey the document to watch. If this is a prefix watch, the key must start with the prefix.
+   */
+  Flux<Optional<String>> watch(String documentKey) {
+    requireNonNull(documentKey);
+
+    return Flux.create(emitter -> {
+      final Subscriber subscriber = new Subscriber(documentKey, emitter);
+      emitter.onDispose(() -> unsubscribe(subscriber));
+      subscribe(subscriber);
+    }, FluxSink.OverflowStrategy.LATEST);
+  }
+
+  private synchronized void subscribe(Subscriber subscriber) {
+    if (subscriber.sink.isCancelled()) {
+      return;
+    }
+
+    if (session == null) {
+      LOGGER.debug("Starting watch for {}", this);
+      session = new Session(consulBuilder.build());
+      subscribers.add(subscriber);
+      poll(session, BigInteger.ZERO);
+      return;
+    }
+
+    subscribers.add(subscriber);
+
+    // The latest results might not include changes made just before the subscriber arrived,
+    // so give the subscriber its first value from a fresh read.
+    query(session, QueryOptions.BLANK, this::publish);
+  }
+
+  private synchronized void unsubscribe(Subscriber subscriber) {
+    if (subscribers.remove(subscriber) && subscribers.isEmpty()) {
+      stop();
+    }
+  }
+
+  private void stop() {
+    if (session != null) {
+      LOGGER.debug("Cancelling watch for {}", this);
+      session.consul.destroy(); // terminate an in-flight request
+      session = null;
+      snapshot = emptyMap();
+      snapshotIndex = null;
+    }
+  }
+
+  private synchronized void poll(Session s, BigInteger index) {
+    if (s != session) {
+      return; // watch was cancelled
+    }
+
+    final QueryOptions options = ImmutableQueryOptions.builder()
+        .index(index)
+        .wait(pollingIntervalString)
+        .build();
+
+    LOGGER.debug("Watching for changes to {} with options {}", this, options);
+
+    query(s, options, (values, newIndex) -> {
+      final boolean waitTimedOut = newIndex.equals(index);
+      if (!waitTimedOut) {
+        if (newIndex.compareTo(index) < 0) {
+          // Consul docs say to start over if the index goes backwards.
+          snapshotIndex = null;
+        }
+        publish(values, newIndex);
+      }
+
+      if (waitTimedOut || debounce.isZero()) {
+        poll(s, newIndex);
+      } else {
+        Schedulers.parallel().schedule(() -> poll(s, newIndex), debounce.toMillis(), MILLISECONDS);
+      }
+    });
+  }
+
+  /**
+   * Sends a request and passes the resulting documents and Consul index to the given handler,
+   * unless the session has ended. The handler is called while holding this object's lock.
+   */
+  private void query(Session s, QueryOptions options, BiConsumer<List<Value>, BigInteger> handler) {
+    final KeyValueClient kv = s.consul.keyValueClient();
+    if (prefix) {
+      kv.getValues(key, options, callback(s, handler, values -> values == null ? emptyList() : values));
+    } else {
+      kv.getValue(key, options, callback(s, handler, value -> value.map(v -> singletonList(v)).orElse(emptyList())));
+    }
+  }
+
+  private <R> ConsulResponseCallback<R> callback(Session s, BiConsumer<List<Value>, BigInteger> handler, Function<R, List<Value>> toValues) {
+    return new ConsulResponseCallback<R>() {
+      @Override
+      public void onComplete(ConsulResponse<R> consulResponse) {
+        synchronized (SharedDocumentWatch.this) {
+          if (s != session) {
+            return; // watch was cancelled
+          }
+          try {
+            handler.accept(toValues.apply(consulResponse.getResponse()), consulResponse.getIndex());
+          } catch (Throwable t) {
+            LOGGER.error("Failure in watch callback onComplete for {}", SharedDocumentWatch.this, t);
+            fail(t);
+          }
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        synchronized (SharedDocumentWatch.this) {
+          if (s == session) {
+            fail(t);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Updates the snapshot, and notifies each subscriber whose document changed
+   * plus any subscribers that have not received their first value.
+   */
+  private void publish(List<Value> values, BigInteger index) {
+    if (snapshotIndex != null && index.compareTo(snapshotIndex) < 0) {
+      return; // older than what the subscribers have already seen
+    }
+
+    final Map<String, Value> next = new HashMap<>();
+    for (Value v : values) {
+      next.put(v.getKey(), v);
+    }
+
+    final List<Subscriber> notify = new ArrayList<>();
+    for (Subscriber subscriber : subscribers) {
+      if (!subscriber.initialized
+          || modifyIndex(next.get(subscriber.documentKey)) != modifyIndex(snapshot.get(subscriber.documentKey))) {
+        subscriber.initialized = true;
+        notify.add(subscriber);
+      }
+    }
+
+    snapshot = next;
+    snapshotIndex = index;
+
+    // A subscriber might unsubscribe when notified, so don't iterate over the live set.
+    for (Subscriber subscriber : notify) {
+      subscriber.sink.next(Optional.ofNullable(next.get(subscriber.documentKey))
+          .map(v -> v.getValueAsString(UTF_8).orElse("")));
+    }
+  }
+
+  private static long modifyIndex(Value v) {
+    return v == null ? -1 : v.getModifyIndex();
+  }
+
+  private void fail(Throwable t) {
+    final List<Subscriber> failed = new ArrayList<>(subscribers);
+    subscribers.clear();
+    stop();
+    for (Subscriber subscriber : failed) {
+      subscriber.sink.error(t);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return prefix ? key + "*" : key;
+  }
+}
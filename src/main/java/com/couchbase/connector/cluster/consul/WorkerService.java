@@ -18,10 +18,17 @@ package com.couchbase.connector.cluster.consul;
 
 import com.couchbase.connector.cluster.Membership;
 import com.couchbase.connector.elasticsearch.Metrics;
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.github.therapi.core.annotation.Remotable;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Remotable("worker")
@@ -31,17 +38,41 @@ public interface WorkerService {
     public static Status IDLE = new Status(null);
 
     private final Membership membership;
+    private final int numPartitions;
+    private final Set<Integer> partitions;
 
     /**
      * @param membership nullable (null means not streaming)
      */
-    public Status(@JsonProperty("membership") Membership membership) {
+    public Status(Membership membership) {
+      this(membership, 0, emptySet());
+    }
+
+    /**
+     * @param membership nullable (null means not streaming)
+     * @param numPartitions number of partitions in the bucket, or zero if not yet known
+     * @param partitions the partitions currently streaming
+     */
+    @JsonCreator
+    public Status(@JsonProperty("membership") Membership membership,
+                  @JsonProperty("numPartitions") int numPartitions,
+                  @JsonProperty("partitions") Set<Integer> partitions) {
       this.membership = membership;
+      this.numPartitions = numPartitions;
+      this.partitions = partitions == null ? emptySet() : unmodifiableSet(new TreeSet<>(partitions));
     }
 
     public Membership getMembership() {
       return membership;
     }
+
+    public int getNumPartitions() {
+      return numPartitions;
+    }
+
+    public Set<Integer> getPartitions() {
+      return partitions;
+    }
   }
 
 
@@ -51,6 +82,12 @@ public interface WorkerService {
 
   Status status();
 
+  /**
+   * Returns the estimated load (events per second) of each partition this worker is streaming.
+   * Empty if the worker is not streaming.
+   */
+  Map<Integer, Double> partitionLoad();
+
   default void ping() {
   }
 
@@ -58,6 +95,14 @@ public interface WorkerService {
     return true;
   }
 
+  /**
+   * Returns true if this worker prefers to stay idle with warm connections,
+   * taking over partitions only when another worker fails.
+   */
+  default boolean standby() {
+    return false;
+  }
+
   default JsonNode metrics() {
     return Metrics.toJsonNode();
   }
@@ -20,11 +20,14 @@ import com.couchbase.connector.cluster.Membership;
 import com.couchbase.connector.config.common.ImmutableGroupConfig;
 import com.couchbase.connector.config.es.ConnectorConfig;
 import com.couchbase.connector.config.es.ImmutableConnectorConfig;
+import com.couchbase.connector.elasticsearch.ConnectorRuntime;
 import com.couchbase.connector.elasticsearch.ElasticsearchConnector;
+import com.couchbase.connector.elasticsearch.PartitionController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -32,6 +35,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.Collections.emptyMap;
 import static java.util.Objects.requireNonNull;
 
 public class WorkerServiceImpl implements WorkerService, Closeable {
@@ -41,14 +45,38 @@ public class WorkerServiceImpl implements WorkerService, Closeable {
 
   private volatile AsyncTask connectorTask;
 
+  // The config the current connector task was started with.
+  private String connectorTaskConfig;
+
+  // Set by the connector task once streaming has started.
+  private volatile PartitionController partitionController;
+
+  // Connections and servers reused by successive connector tasks.
+  private final ConnectorRuntime runtime = new ConnectorRuntime();
+
   private final Consumer<Throwable> fatalErrorListener;
 
+  private final boolean standby;
+
   private ScheduledFuture killSwitch;
 
   private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
   public WorkerServiceImpl(Consumer<Throwable> fatalErrorListener) {
+    this(fatalErrorListener, false);
+  }
+
+  /**
+   * @param standby whether this worker should be held in reserve to take over from failed workers.
+   */
+  public WorkerServiceImpl(Consumer<Throwable> fatalErrorListener, boolean standby) {
     this.fatalErrorListener = requireNonNull(fatalErrorListener);
+    this.standby = standby;
+  }
+
+  @Override
+  public boolean standby() {
+    return standby;
   }
 
   public synchronized void resetKillSwitchTimer() {
@@ -91,12 +119,18 @@ public class WorkerServiceImpl implements WorkerService, Closeable {
 
       } finally {
         connectorTask = null;
+        connectorTaskConfig = null;
+        partitionController = null;
       }
     }
   }
 
   @Override
   public synchronized void startStreaming(Membership membership, String config) {
+    if (tryChangePartitions(membership, config)) {
+      return;
+    }
+
     stopStreaming();
 
     startKillSwitchTimer();
@@ -108,19 +142,61 @@ public class WorkerServiceImpl implements WorkerService, Closeable {
         .withGroup(ImmutableGroupConfig.copyOf(originalConfig.group())
             .withStaticMembership(membership));
 
-    connectorTask = AsyncTask.run(() -> ElasticsearchConnector.run(patchedConfig), fatalErrorListener);
+    connectorTask = AsyncTask.run(() -> ElasticsearchConnector.run(patchedConfig, runtime, c -> partitionController = c), fatalErrorListener);
+    connectorTaskConfig = config;
 
     this.status = new Status(membership);
   }
 
+  /**
+   * If the connector is already streaming with the same config, and the new membership
+   * has explicit partitions, adjusts the streamed partitions in place instead of restarting.
+   *
+   * @return true if the partitions were changed in place
+   */
+  private boolean tryChangePartitions(Membership membership, String config) {
+    final PartitionController controller = this.partitionController;
+    if (connectorTask == null
+        || controller == null
+        || membership.getExplicitPartitions() == null
+        || !config.equals(connectorTaskConfig)) {
+      return false;
+    }
+
+    try {
+      LOGGER.info("Changing partitions in place; new membership is {}", membership);
+      controller.setPartitions(membership.getExplicitPartitions());
+      this.status = new Status(membership);
+      return true;
+
+    } catch (Throwable t) {
+      LOGGER.warn("Failed to change partitions in place; restarting connector.", t);
+      return false;
+    }
+  }
+
   @Override
   public synchronized Status status() {
-    return status;
+    final PartitionController controller = this.partitionController;
+    return controller == null || status.getMembership() == null
+        ? status
+        : new Status(status.getMembership(), controller.numPartitions(), controller.partitions());
+  }
+
+  @Override
+  public Map<Integer, Double> partitionLoad() {
+    final PartitionController controller = this.partitionController;
+    return controller == null ? emptyMap() : controller.partitionLoad();
   }
 
   @Override
   public void close() {
     stopStreaming();
     executor.shutdownNow();
+    try {
+      runtime.close();
+    } catch (Exception e) {
+      LOGGER.warn("Failed to close connector runtime.", e);
+    }
   }
 }
@@ -21,6 +21,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -29,10 +30,13 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static com.couchbase.client.core.logging.RedactableArgument.redactSystem;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class Broadcaster implements Closeable {
   private static final Logger LOGGER = LoggerFactory.getLogger(Broadcaster.class);
@@ -47,14 +51,41 @@ public class Broadcaster implements Closeable {
   }
 
   public <S, T> Map<RpcEndpoint, RpcResult<T>> broadcast(String description, List<RpcEndpoint> endpoints, Class<S> serviceInterface, Function<S, T> endpointCallback) {
+    return broadcast(description, endpoints, serviceInterface, (endpoint, service) -> endpointCallback.apply(service), 1, Duration.ZERO);
+  }
+
+  /**
+   * Sends a request to every endpoint concurrently. The callback is told which endpoint
+   * it's talking to, so each endpoint can be sent a different request.
+   * <p>
+   * If the callback fails for an endpoint, it is retried for that endpoint alone
+   * (up to {@code maxAttempts} attempts in all) without waiting for the other endpoints.
+   * The returned map has the final result for each endpoint.
+   */
+  public <S, T> Map<RpcEndpoint, RpcResult<T>> broadcast(String description, List<RpcEndpoint> endpoints, Class<S> serviceInterface,
+                                                         BiFunction<RpcEndpoint, S, T> endpointCallback,
+                                                         int maxAttempts, Duration retryDelay) {
+    checkArgument(maxAttempts > 0, "maxAttempts must be > 0");
     LOGGER.info("Broadcasting '{}' request to {} endpoints", description, endpoints.size());
 
     final Stopwatch timer = Stopwatch.createStarted();
 
     final List<Future<RpcResult<T>>> futures = new ArrayList<>();
     for (RpcEndpoint endpoint : endpoints) {
-      futures.add(executor.submit(
-          () -> RpcResult.newSuccess(endpointCallback.apply(endpoint.service(serviceInterface)))));
+      futures.add(executor.submit(() -> {
+        final S service = endpoint.service(serviceInterface);
+        for (int attempt = 1; ; attempt++) {
+          try {
+            return RpcResult.newSuccess(endpointCallback.apply(endpoint, service));
+          } catch (RuntimeException e) {
+            if (attempt >= maxAttempts) {
+              throw e;
+            }
+            LOGGER.warn("Attempt #{} of '{}' request to endpoint {} failed; will retry in {}", attempt, description, redactSystem(endpoint), retryDelay, e);
+            MILLISECONDS.sleep(retryDelay.toMillis());
+          }
+        }
+      }));
     }
 
     LOGGER.info("Scheduled all '{}' requests for broadcast. Awaiting responses...", description);
@@ -22,7 +22,6 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
-import com.github.therapi.jsonrpc.client.JsonRpcHttpClient;
 import com.google.common.base.Strings;
 import com.orbitz.consul.KeyValueClient;
 import com.orbitz.consul.model.ConsulResponse;
@@ -44,7 +43,11 @@ import static com.couchbase.connector.elasticsearch.io.BackoffPolicyBuilder.cons
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
-public class ConsulRpcTransport implements JsonRpcHttpClient {
+/**
+ * Sends requests by appending them to the endpoint document in Consul,
+ * and waits for the server to write the response to the same document.
+ */
+public class ConsulRpcTransport implements RpcTransport {
   private static final Logger LOGGER = LoggerFactory.getLogger(ConsulRpcTransport.class);
 
   private final KeyValueClient kv;
@@ -62,6 +65,7 @@ public class ConsulRpcTransport implements JsonRpcHttpClient {
     this.timeout = requireNonNull(timeout);
   }
 
+  @Override
   public ConsulRpcTransport withTimeout(Duration timeout) {
     return new ConsulRpcTransport(kv, watcher, endpointKey, timeout);
   }
@@ -153,6 +157,11 @@ public class ConsulRpcTransport implements JsonRpcHttpClient {
     });
   }
 
+  @Override
+  public String getEndpointKey() {
+    return endpointKey;
+  }
+
   @Override
   public String toString() {
     return "ConsulRpcTransport{" +
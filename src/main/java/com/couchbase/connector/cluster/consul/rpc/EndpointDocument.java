@@ -16,6 +16,7 @@
 
 package com.couchbase.connector.cluster.consul.rpc;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.LongNode;
@@ -35,10 +36,24 @@ public class EndpointDocument {
   private final List<ObjectNode> requests;
   private final List<ObjectNode> responses;
 
+  // URL for direct HTTP requests, or null if the server only accepts requests via this document.
+  private final String address;
+
   public EndpointDocument(@JsonProperty("requests") List<ObjectNode> requests,
-                          @JsonProperty("responses") List<ObjectNode> responses) {
+                          @JsonProperty("responses") List<ObjectNode> responses,
+                          @JsonProperty("address") String address) {
     this.requests = requests != null ? requests : new ArrayList<>();
     this.responses = responses != null ? responses : new ArrayList<>();
+    this.address = address;
+  }
+
+  /**
+   * Returns the URL where the server accepts JSON-RPC requests over HTTP,
+   * or null if the server does not accept direct requests.
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public String getAddress() {
+    return address;
   }
 
   public List<ObjectNode> getRequests() {
@@ -122,6 +137,7 @@ public class EndpointDocument {
     return "EndpointDocument{" +
         "requests=" + requests +
         ", responses=" + responses +
+        ", address=" + (address == null ? null : "<redacted>") +
         '}';
   }
 }
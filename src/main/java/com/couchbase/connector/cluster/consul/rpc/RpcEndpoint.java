@@ -20,34 +20,71 @@ import com.couchbase.connector.cluster.consul.ConsulDocumentWatcher;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.therapi.jsonrpc.client.ServiceFactory;
 import com.orbitz.consul.KeyValueClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.URL;
 import java.time.Duration;
 
+import static com.couchbase.client.core.logging.RedactableArgument.redactSystem;
 import static com.github.therapi.jackson.ObjectMappers.newLenientObjectMapper;
+import static com.google.common.base.Strings.isNullOrEmpty;
 import static java.util.Objects.requireNonNull;
 
 /**
  * Used by RPC client to create service instances that talk to remote server.
  */
 public class RpcEndpoint {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RpcEndpoint.class);
+
   private static final ObjectMapper rpcObjectMapper = newLenientObjectMapper();
 
-  private final ConsulRpcTransport transport;
+  private final RpcTransport transport;
   private final ServiceFactory serviceFactory;
 
   public RpcEndpoint(KeyValueClient kv, ConsulDocumentWatcher watcher, String endpointKey, Duration timeout) {
     this(new ConsulRpcTransport(kv, watcher, endpointKey, timeout));
   }
 
-  public RpcEndpoint(ConsulRpcTransport transport) {
+  public RpcEndpoint(RpcTransport transport) {
     this.transport = requireNonNull(transport);
     this.serviceFactory = new ServiceFactory(rpcObjectMapper, transport);
   }
 
+  /**
+   * Returns an endpoint that talks to the server directly over HTTP if the endpoint document
+   * advertises an address, otherwise via the endpoint document in Consul.
+   *
+   * @param endpointDocument the current content of the endpoint document, or null if unknown.
+   */
+  public static RpcEndpoint forDocument(KeyValueClient kv, ConsulDocumentWatcher watcher, String endpointKey,
+                                        String endpointDocument, Duration timeout) {
+    if (!isNullOrEmpty(endpointDocument)) {
+      try {
+        final String address = rpcObjectMapper.readValue(endpointDocument, EndpointDocument.class).getAddress();
+        if (address != null) {
+          return new RpcEndpoint(new HttpRpcTransport(endpointKey, new URL(address), timeout));
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Failed to read address from RPC endpoint document {}; will send requests via Consul.", redactSystem(endpointKey), e);
+      }
+    }
+    return new RpcEndpoint(kv, watcher, endpointKey, timeout);
+  }
+
   public <T> T service(Class<T> remotableServiceInterface) {
     return serviceFactory.createService(remotableServiceInterface);
   }
 
+  /**
+   * Returns the Consul key of the endpoint document. Two endpoints with the same key
+   * talk to the same server.
+   */
+  public String getKey() {
+    return transport.getEndpointKey();
+  }
+
   public RpcEndpoint withTimeout(Duration timeout) {
     return new RpcEndpoint(transport.withTimeout(timeout));
   }
@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.time.Duration;
 import java.util.List;
@@ -60,8 +61,18 @@ public class RpcServerTask extends AbstractLongPollTask<RpcServerTask> {
   private final KeyValueClient kv;
   private final String sessionId;
   private final JsonRpcDispatcher dispatcher;
+  private final String initialEndpointDocument;
 
   public RpcServerTask(JsonRpcDispatcher dispatcher, ConsulContext ctx, String sessionId, String endpointId, Consumer<Throwable> fatalErrorConsumer) {
+    this(dispatcher, ctx, sessionId, endpointId, null, fatalErrorConsumer);
+  }
+
+  /**
+   * @param directAddress URL where this server also accepts JSON-RPC requests over HTTP,
+   * or null if requests are accepted only via the endpoint document.
+   */
+  public RpcServerTask(JsonRpcDispatcher dispatcher, ConsulContext ctx, String sessionId, String endpointId,
+                       String directAddress, Consumer<Throwable> fatalErrorConsumer) {
     super(ctx, "rpc-server-", sessionId);
     this.kv = requireNonNull(ctx.consul().keyValueClient());
     this.sessionId = requireNonNull(sessionId);
@@ -70,6 +81,12 @@ public class RpcServerTask extends AbstractLongPollTask<RpcServerTask> {
 
     this.endpointId = requireNonNull(endpointId);
     this.endpointKey = ctx.keys().rpcEndpoint(endpointId);
+
+    try {
+      this.initialEndpointDocument = mapper.writeValueAsString(new EndpointDocument(null, null, directAddress));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   @Override
@@ -156,7 +173,7 @@ public class RpcServerTask extends AbstractLongPollTask<RpcServerTask> {
     while (!closed()) {
       LOGGER.info("Attempting to binding to RPC endpoint document {}", endpointKey);
 
-      final boolean acquired = kv.acquireLock(endpointKey, "{}", sessionId);
+      final boolean acquired = kv.acquireLock(endpointKey, initialEndpointDocument, sessionId);
       if (acquired) {
         LOGGER.info("Successfully bound to RPC endpoint document {}", endpointKey);
         return;
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.cluster.consul.rpc;
+
+import com.github.therapi.jsonrpc.client.JsonRpcHttpClient;
+
+import java.time.Duration;
+
+/**
+ * Carries JSON-RPC requests from the client to an RPC endpoint.
+ */
+public interface RpcTransport extends JsonRpcHttpClient {
+  /**
+   * Returns the Consul key of the endpoint document identifying the server.
+   */
+  String getEndpointKey();
+
+  RpcTransport withTimeout(Duration timeout);
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.common;
+
+import com.couchbase.connector.config.ConfigException;
+import com.couchbase.connector.config.toml.ConfigTable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.immutables.value.Value;
+
+import static com.couchbase.connector.config.ConfigHelper.getTime;
+
+/**
+ * Controls the optional metrics broken down by Elasticsearch index and by partition group.
+ */
+@Value.Immutable
+public interface BreakdownConfig {
+  /**
+   * Number of busiest indexes that get their own metrics. The rest are combined.
+   * Zero disables the per-index breakdown.
+   */
+  int topIndexes();
+
+  /**
+   * Number of groups the partitions are divided into, each with its own metrics.
+   * Zero disables the per-partition-group breakdown.
+   */
+  int partitionGroups();
+
+  /**
+   * How often the broken-down metrics are updated.
+   */
+  TimeValue interval();
+
+  default boolean enabled() {
+    return topIndexes() > 0 || partitionGroups() > 0;
+  }
+
+  static ImmutableBreakdownConfig from(ConfigTable config) {
+    config.expectOnly("topIndexes", "partitionGroups", "interval");
+
+    final TimeValue interval = getTime(config, "interval").orElse(TimeValue.timeValueMinutes(1));
+    if (interval.millis() < 1000) {
+      throw new ConfigException("Value for 'interval' at " + config.inputPositionOf("interval") + " must be at least one second.");
+    }
+
+    return ImmutableBreakdownConfig.builder()
+        .topIndexes(config.getIntInRange("topIndexes", 0, 100).orElse(0))
+        .partitionGroups(config.getIntInRange("partitionGroups", 0, 1024).orElse(0))
+        .interval(interval)
+        .build();
+  }
+}
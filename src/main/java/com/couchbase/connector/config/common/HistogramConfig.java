@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.common;
+
+import com.couchbase.connector.config.ConfigException;
+import com.couchbase.connector.config.toml.ConfigTable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.immutables.value.Value;
+
+import java.util.List;
+
+import static com.couchbase.connector.config.ConfigHelper.getTime;
+
+/**
+ * Controls the latency distributions published for the connector's timers.
+ */
+@Value.Immutable
+public interface HistogramConfig {
+  /**
+   * Whether to publish histogram buckets, so percentiles can be
+   * calculated (and aggregated across connector instances) by the monitoring system.
+   */
+  boolean percentileHistogram();
+
+  /**
+   * Percentiles calculated by the connector, each between 0 and 1.
+   * These can't be aggregated across connector instances.
+   */
+  List<Double> percentiles();
+
+  /**
+   * Additional bucket boundaries, so the monitoring system can tell exactly
+   * what fraction of requests met a latency objective.
+   */
+  List<TimeValue> slo();
+
+  /**
+   * Smallest bucket boundary of the percentile histogram.
+   */
+  TimeValue minExpected();
+
+  /**
+   * Largest bucket boundary of the percentile histogram.
+   */
+  TimeValue maxExpected();
+
+  static ImmutableHistogramConfig from(ConfigTable config) {
+    config.expectOnly("percentileHistogram", "percentiles", "slo", "minExpected", "maxExpected");
+
+    final List<Double> percentiles = config.getOptionalDoubleList("percentiles");
+    for (double p : percentiles) {
+      if (p < 0 || p > 1) {
+        throw new ConfigException("Values in 'percentiles' at " + config.inputPositionOf("percentiles") + " must be between 0.0 and 1.0");
+      }
+    }
+
+    final TimeValue minExpected = getTime(config, "minExpected").orElse(TimeValue.timeValueMillis(1));
+    final TimeValue maxExpected = getTime(config, "maxExpected").orElse(TimeValue.timeValueMinutes(1));
+    if (minExpected.nanos() <= 0 || minExpected.nanos() >= maxExpected.nanos()) {
+      throw new ConfigException("Histogram 'minExpected' must be positive and less than 'maxExpected'.");
+    }
+
+    return ImmutableHistogramConfig.builder()
+        .percentileHistogram(config.getBoolean("percentileHistogram").orElse(true))
+        .percentiles(percentiles)
+        .slo(config.getOptionalList("slo", s -> TimeValue.parseTimeValue(s, "'slo' at " + config.inputPositionOf("slo"))))
+        .minExpected(minExpected)
+        .maxExpected(maxExpected)
+        .build();
+  }
+}
@@ -21,19 +21,39 @@ import com.couchbase.connector.config.ConfigException;
 import com.couchbase.connector.config.toml.ConfigTable;
 import org.immutables.value.Value;
 
+import java.util.List;
+
 @Value.Immutable
 public interface LoggingConfig {
 
   boolean logDocumentLifecycle();
 
+  /**
+   * Fraction of documents whose lifecycle milestones are logged, chosen by document ID
+   * so every milestone of a chosen document is logged.
+   */
+  double documentLifecycleSampleRate();
+
+  /**
+   * If not empty, only documents whose IDs start with one of these prefixes have their milestones logged.
+   */
+  List<String> documentLifecycleKeyPrefixes();
+
   RedactionLevel redactionLevel();
 
   static ImmutableLoggingConfig from(ConfigTable config) {
-    config.expectOnly("logDocumentLifecycle", "redactionLevel");
+    config.expectOnly("logDocumentLifecycle", "documentLifecycleSampleRate", "documentLifecycleKeyPrefixes", "redactionLevel");
+
+    final double sampleRate = config.getDouble("documentLifecycleSampleRate").orElse(1.0);
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new ConfigException("Value for 'documentLifecycleSampleRate' at " + config.inputPositionOf("documentLifecycleSampleRate") + " must be between 0.0 and 1.0");
+    }
 
     try {
       return ImmutableLoggingConfig.builder()
           .logDocumentLifecycle(config.getBoolean("logDocumentLifecycle").orElse(false))
+          .documentLifecycleSampleRate(sampleRate)
+          .documentLifecycleKeyPrefixes(config.getOptionalList("documentLifecycleKeyPrefixes", s -> s))
           .redactionLevel(config.getEnum("redactionLevel", RedactionLevel.class).orElse(RedactionLevel.NONE))
           .build();
     } catch (IllegalArgumentException e) {
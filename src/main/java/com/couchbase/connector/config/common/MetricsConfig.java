@@ -16,6 +16,7 @@
 
 package com.couchbase.connector.config.common;
 
+import com.couchbase.connector.config.ConfigException;
 import com.couchbase.connector.config.toml.ConfigTable;
 import org.elasticsearch.common.unit.TimeValue;
 import org.immutables.value.Value;
@@ -28,12 +29,53 @@ public interface MetricsConfig {
 
   int httpPort();
 
+  /**
+   * How long the HTTP server may reuse a metrics response. Zero disables caching.
+   */
+  TimeValue httpCacheTtl();
+
+  /**
+   * Whether the HTTP server accepts requests that change the connector's settings while it runs.
+   */
+  boolean adminEndpoints();
+
+  HistogramConfig histogram();
+
+  BreakdownConfig breakdown();
+
+  /**
+   * Fraction of document changes whose trip through the connector is exported as trace spans.
+   * Zero disables span export.
+   */
+  double spanSampleRate();
+
+  /**
+   * File where trace spans are appended in OTLP/JSON format.
+   */
+  String spanFile();
+
   static ImmutableMetricsConfig from(ConfigTable config) {
-    config.expectOnly("logInterval", "httpPort");
+    config.expectOnly("logInterval", "httpPort", "httpCacheTtl", "adminEndpoints", "histogram", "breakdown", "spanSampleRate", "spanFile");
+
+    final double spanSampleRate = config.getDouble("spanSampleRate").orElse(0.0);
+    if (spanSampleRate < 0 || spanSampleRate > 1) {
+      throw new ConfigException("Value for 'spanSampleRate' at " + config.inputPositionOf("spanSampleRate") + " must be between 0.0 and 1.0");
+    }
+
+    final String spanFile = config.getString("spanFile").orElse("");
+    if (spanSampleRate > 0 && spanFile.isEmpty()) {
+      throw new ConfigException("Missing 'spanFile' in [metrics] section; it is required when 'spanSampleRate' is greater than zero.");
+    }
 
     return ImmutableMetricsConfig.builder()
         .logInterval(getTime(config, "logInterval").orElse(TimeValue.timeValueMinutes(1)))
         .httpPort(config.getIntInRange("httpPort", -1, 65535).orElse(-1))
+        .httpCacheTtl(getTime(config, "httpCacheTtl").orElse(TimeValue.timeValueMillis(0)))
+        .adminEndpoints(config.getBoolean("adminEndpoints").orElse(false))
+        .histogram(HistogramConfig.from(config.getTableOrEmpty("histogram")))
+        .breakdown(BreakdownConfig.from(config.getTableOrEmpty("breakdown")))
+        .spanSampleRate(spanSampleRate)
+        .spanFile(spanFile)
         .build();
   }
 }
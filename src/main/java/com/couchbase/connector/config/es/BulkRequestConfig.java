@@ -31,8 +31,20 @@ import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
 public interface BulkRequestConfig {
   int maxActions();
 
+  /**
+   * A worker sends a bulk request as soon as it has at least this many actions,
+   * without waiting for the linger time to elapse.
+   */
+  int minActions();
+
   ByteSizeValue maxBytes();
 
+  /**
+   * How long a worker may hold a partial batch (fewer than {@link #minActions()} actions)
+   * while waiting for more changes to arrive.
+   */
+  TimeValue linger();
+
   int concurrentRequests();
 
   TimeValue timeout();
@@ -42,15 +54,37 @@ public interface BulkRequestConfig {
     if (concurrentRequests() <= 0) {
       throw new IllegalArgumentException("concurrentRequests must be > 0");
     }
+    if (minActions() > maxActions()) {
+      throw new IllegalArgumentException("minActions must be <= actions");
+    }
   }
 
+  BulkRequestConfig DEFAULTS = ImmutableBulkRequestConfig.builder()
+      .maxActions(1000)
+      .minActions(1)
+      .maxBytes(new ByteSizeValue(10, MB))
+      .linger(new TimeValue(0, TimeUnit.MILLISECONDS))
+      .timeout(new TimeValue(1, TimeUnit.MINUTES))
+      .concurrentRequests(2)
+      .build();
+
   static ImmutableBulkRequestConfig from(ConfigTable config) {
-    config.expectOnly("actions", "bytes", "timeout", "concurrentRequests");
+    return from(config, DEFAULTS);
+  }
+
+  /**
+   * Returns a config with the values from the given table, using the given config
+   * for any values the table doesn't have.
+   */
+  static ImmutableBulkRequestConfig from(ConfigTable config, BulkRequestConfig defaults) {
+    config.expectOnly("actions", "minActions", "bytes", "linger", "timeout", "concurrentRequests");
     return ImmutableBulkRequestConfig.builder()
-        .maxActions(config.getInt("actions").orElse(1000))
-        .maxBytes(getSize(config, "bytes").orElse(new ByteSizeValue(10, MB)))
-        .timeout(getTime(config, "timeout").orElse(new TimeValue(1, TimeUnit.MINUTES)))
-        .concurrentRequests(config.getIntInRange("concurrentRequests", 1, 16).orElse(2))
+        .maxActions(config.getInt("actions").orElse(defaults.maxActions()))
+        .minActions(config.getIntInRange("minActions", 1, Integer.MAX_VALUE).orElse(defaults.minActions()))
+        .maxBytes(getSize(config, "bytes").orElse(defaults.maxBytes()))
+        .linger(getTime(config, "linger").orElse(defaults.linger()))
+        .timeout(getTime(config, "timeout").orElse(defaults.timeout()))
+        .concurrentRequests(config.getIntInRange("concurrentRequests", 1, 16).orElse(defaults.concurrentRequests()))
         .build();
   }
 }
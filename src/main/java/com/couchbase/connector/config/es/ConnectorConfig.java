@@ -16,19 +16,26 @@
 
 package com.couchbase.connector.config.es;
 
+import com.couchbase.connector.config.ConfigException;
 import com.couchbase.connector.config.common.CouchbaseConfig;
 import com.couchbase.connector.config.common.GroupConfig;
+import com.couchbase.connector.config.common.ImmutableCouchbaseConfig;
+import com.couchbase.connector.config.common.ImmutableGroupConfig;
 import com.couchbase.connector.config.common.LoggingConfig;
 import com.couchbase.connector.config.common.MetricsConfig;
 import com.couchbase.connector.config.common.TrustStoreConfig;
+import com.couchbase.connector.config.toml.ConfigArray;
 import com.couchbase.connector.config.toml.ConfigTable;
 import com.couchbase.connector.config.toml.Toml;
+import com.google.common.collect.ImmutableList;
 import org.immutables.value.Value;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
 
 import static com.couchbase.connector.config.ConfigHelper.resolveVariables;
 
@@ -47,17 +54,62 @@ public interface ConnectorConfig {
 
   TrustStoreConfig trustStore();
 
+  /**
+   * Replication pipelines declared with [[pipeline]]. If there are any, the process runs
+   * these pipelines instead of streaming the bucket named in the [couchbase] section.
+   */
+  ImmutableList<PipelineConfig> pipelines();
+
+  @Value.Check
+  default void checkPipelines() {
+    final Set<String> names = new HashSet<>();
+    final Set<String> groupNames = new HashSet<>();
+    for (PipelineConfig p : pipelines()) {
+      if (!names.add(p.name())) {
+        throw new ConfigException("Duplicate pipeline name '" + p.name() + "'");
+      }
+      if (!groupNames.add(p.groupName())) {
+        throw new ConfigException("Pipeline '" + p.name() + "' has the same group name as another pipeline: '" + p.groupName() + "'");
+      }
+    }
+  }
+
+  /**
+   * Returns a self-contained config for running just the given pipeline.
+   */
+  default ImmutableConnectorConfig forPipeline(PipelineConfig p) {
+    return ImmutableConnectorConfig.copyOf(this)
+        .withPipelines(ImmutableList.of())
+        .withCouchbase(ImmutableCouchbaseConfig.copyOf(couchbase())
+            .withBucket(p.bucket())
+            .withMetadataBucket(p.metadataBucket())
+            .withScope(p.scope())
+            .withCollections(p.collections()))
+        .withElasticsearch(p.types().isEmpty() ? elasticsearch() : ImmutableElasticsearchConfig.copyOf(elasticsearch())
+            .withTypes(p.types()))
+        .withGroup(ImmutableGroupConfig.copyOf(group())
+            .withName(p.groupName()));
+  }
+
   static ImmutableConnectorConfig from(ConfigTable config) {
-    config.expectOnly("couchbase", "elasticsearch", "logging", "metrics", "group", "truststore");
+    config.expectOnly("couchbase", "elasticsearch", "logging", "metrics", "group", "truststore", "pipeline");
 
-    return ImmutableConnectorConfig.builder()
+    final GroupConfig group = GroupConfig.from(config.getTableOrEmpty("group"));
+    final ImmutableConnectorConfig.Builder builder = ImmutableConnectorConfig.builder()
         .couchbase(CouchbaseConfig.from(config.getTableOrEmpty("couchbase")))
         .elasticsearch(ElasticsearchConfig.from(config.getTableOrEmpty("elasticsearch")))
         .logging(LoggingConfig.from(config.getTableOrEmpty("logging")))
         .metrics(MetricsConfig.from(config.getTableOrEmpty("metrics")))
-        .group(GroupConfig.from(config.getTableOrEmpty("group")))
-        .trustStore(TrustStoreConfig.from(config.getTableOrEmpty("truststore")))
-        .build();
+        .group(group)
+        .trustStore(TrustStoreConfig.from(config.getTableOrEmpty("truststore")));
+
+    final ConfigArray pipelines = config.getArrayOrEmpty("pipeline");
+    for (int i = 0; i < pipelines.size(); i++) {
+      builder.addPipelines(PipelineConfig.from(pipelines.getTable(i),
+          config.getTableOrEmpty("couchbase"), config.getTableOrEmpty("elasticsearch"), group.name()));
+    }
+
+    return builder.build();
   }
 
   static ImmutableConnectorConfig from(String toml) {
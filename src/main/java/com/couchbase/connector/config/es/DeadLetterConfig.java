@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import com.couchbase.connector.config.ConfigException;
+import com.couchbase.connector.config.toml.ConfigTable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.immutables.value.Value;
+
+import static com.couchbase.connector.config.ConfigHelper.getSize;
+import static org.elasticsearch.common.unit.ByteSizeUnit.GB;
+import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
+
+@Value.Immutable
+public interface DeadLetterConfig {
+  /**
+   * Directory where documents Elasticsearch permanently rejected are saved,
+   * so they can be replayed later. Empty string means don't save them.
+   */
+  String directory();
+
+  /**
+   * Maximum disk space used by the saved documents. When full, more rejected documents are not saved.
+   */
+  ByteSizeValue maxSize();
+
+  /**
+   * Size at which the connector starts a new file.
+   */
+  ByteSizeValue segmentSize();
+
+  @Value.Check
+  default void check() {
+    if (segmentSize().getBytes() > maxSize().getBytes()) {
+      throw new ConfigException("deadLetter.segmentSize must be <= maxSize");
+    }
+  }
+
+  static ImmutableDeadLetterConfig from(ConfigTable config) {
+    config.expectOnly("directory", "maxSize", "segmentSize");
+    return ImmutableDeadLetterConfig.builder()
+        .directory(config.getString("directory").orElse(""))
+        .maxSize(getSize(config, "maxSize").orElse(new ByteSizeValue(1, GB)))
+        .segmentSize(getSize(config, "segmentSize").orElse(new ByteSizeValue(64, MB)))
+        .build();
+  }
+}
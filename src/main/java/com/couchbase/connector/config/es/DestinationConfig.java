@@ -0,0 +1,78 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import com.couchbase.connector.config.ConfigException;
+import com.couchbase.connector.config.common.ClientCertConfig;
+import com.couchbase.connector.config.toml.ConfigPosition;
+import com.couchbase.connector.config.toml.ConfigTable;
+import com.google.common.collect.ImmutableList;
+import org.apache.http.HttpHost;
+import org.immutables.value.Value;
+
+import static com.couchbase.connector.config.ConfigHelper.createHttpHost;
+import static com.couchbase.connector.config.ConfigHelper.readPassword;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * An additional Elasticsearch cluster that receives the same writes as the
+ * cluster in the [elasticsearch] section. Only the connection settings
+ * are specified here; everything else is shared with the primary cluster.
+ */
+@Value.Immutable
+public interface DestinationConfig {
+  String name();
+
+  ImmutableList<HttpHost> hosts();
+
+  String username();
+
+  @Value.Redacted
+  String password();
+
+  boolean secureConnection();
+
+  ClientCertConfig clientCert();
+
+  AwsConfig aws();
+
+  static ImmutableDestinationConfig from(ConfigTable config, ConfigPosition position) {
+    config.expectOnly("name", "hosts", "username", "pathToPassword", "secureConnection", "clientCertificate", "aws");
+
+    final String name = config.getString("name").orElseThrow(() ->
+        new ConfigException("Destination at " + position + " must have a 'name'."));
+
+    final boolean secureConnection = config.getBoolean("secureConnection").orElse(false);
+    final AwsConfig aws = AwsConfig.from(config.getTableOrEmpty("aws"));
+
+    // Same defaults as the primary cluster.
+    final int defaultPort = aws.region().isEmpty() ? 9200 :
+        secureConnection ? 443 : 80;
+
+    return ImmutableDestinationConfig.builder()
+        .name(name)
+        .secureConnection(secureConnection)
+        .hosts(config.getRequiredStrings("hosts").stream()
+            .map(h -> createHttpHost(h, defaultPort, secureConnection))
+            .collect(toList()))
+        .username(config.getString("username").orElse(""))
+        .password(readPassword(config, "elasticsearch.destination", "pathToPassword"))
+        .clientCert(ClientCertConfig.from(config.getTableOrEmpty("clientCertificate"), "elasticsearch.destination.clientCertificate"))
+        .aws(aws)
+        .build();
+  }
+}
@@ -24,6 +24,11 @@ import com.google.common.collect.ImmutableList;
 import org.apache.http.HttpHost;
 import org.immutables.value.Value;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import static com.couchbase.connector.config.ConfigHelper.createHttpHost;
 import static com.couchbase.connector.config.ConfigHelper.readPassword;
 import static java.util.stream.Collectors.toList;
@@ -49,17 +54,59 @@ public interface ElasticsearchConfig {
 
   RejectLogConfig rejectLog();
 
+  DeadLetterConfig deadLetter();
+
   AwsConfig aws();
 
+  ExternalVersion externalVersion();
+
+  /**
+   * Additional clusters that receive the same writes, declared with [[elasticsearch.destination]].
+   */
+  ImmutableList<DestinationConfig> destinations();
+
   @Value.Check
   default void check() {
     if (types().isEmpty()) {
       throw new ConfigException("Must declare at least one [[elasticsearch.type]]");
     }
+
+    final Set<String> names = new HashSet<>();
+    for (DestinationConfig d : destinations()) {
+      if (!names.add(d.name())) {
+        throw new ConfigException("Duplicate Elasticsearch destination name '" + d.name() + "'");
+      }
+    }
+  }
+
+  /**
+   * Returns a config for writing to the given destination instead of the primary cluster.
+   */
+  default ImmutableElasticsearchConfig forDestination(DestinationConfig d) {
+    return ImmutableElasticsearchConfig.copyOf(this)
+        .withDestinations(ImmutableList.of())
+        .withHosts(d.hosts())
+        .withUsername(d.username())
+        .withPassword(d.password())
+        .withSecureConnection(d.secureConnection())
+        .withClientCert(d.clientCert())
+        .withAws(d.aws());
+  }
+
+  /**
+   * Returns configs for the primary cluster followed by each additional destination.
+   */
+  default List<ElasticsearchConfig> allDestinations() {
+    final List<ElasticsearchConfig> result = new ArrayList<>();
+    result.add(ImmutableElasticsearchConfig.copyOf(this).withDestinations(ImmutableList.of()));
+    for (DestinationConfig d : destinations()) {
+      result.add(forDestination(d));
+    }
+    return result;
   }
 
   static ImmutableElasticsearchConfig from(ConfigTable config) {
-    config.expectOnly("hosts", "username", "pathToPassword", "secureConnection", "clientCertificate", "aws", "bulkRequestLimits", "docStructure", "typeDefaults", "type", "rejectionLog");
+    config.expectOnly("hosts", "username", "pathToPassword", "secureConnection", "clientCertificate", "aws", "bulkRequestLimits", "docStructure", "typeDefaults", "type", "rejectionLog", "deadLetter", "externalVersion", "destination");
 
     final boolean secureConnection = config.getBoolean("secureConnection").orElse(false);
 
@@ -80,12 +127,31 @@ public interface ElasticsearchConfig {
         .bulkRequest(BulkRequestConfig.from(config.getTableOrEmpty("bulkRequestLimits")))
         .aws(aws)
         .clientCert(clientCert)
+        .externalVersion(config.getEnum("externalVersion", ExternalVersion.class).orElse(ExternalVersion.NONE))
         .docStructure(DocStructureConfig.from(config.getTableOrEmpty("docStructure")));
 
+    final TypeConfig defaultTypeConfig = typeDefaults(config);
+    builder.types(types(config.getArrayOrEmpty("type"), defaultTypeConfig));
+
+    final ConfigArray destinations = config.getArrayOrEmpty("destination");
+    for (int i = 0; i < destinations.size(); i++) {
+      builder.addDestinations(DestinationConfig.from(destinations.getTable(i), destinations.inputPositionOf(i)));
+    }
+
+    builder.rejectLog(RejectLogConfig.from(config.getTableOrEmpty("rejectionLog"), defaultTypeConfig.type()));
+    builder.deadLetter(DeadLetterConfig.from(config.getTableOrEmpty("deadLetter")));
+    return builder.build();
+
+  }
+
+  /**
+   * Returns the type defaults declared in the given [elasticsearch] table.
+   */
+  static TypeConfig typeDefaults(ConfigTable config) {
     final ConfigTable typeDefaults = config.getTableOrEmpty("typeDefaults");
     typeDefaults.expectOnly("typeName", "index", "pipeline", "ignore", "ignoreDeletes", "matchOnQualifiedKey");
 
-    final TypeConfig defaultTypeConfig = ImmutableTypeConfig.builder()
+    return ImmutableTypeConfig.builder()
         .index(typeDefaults.getString("index").orElse(null))
         .type(typeDefaults.getString("typeName").orElse("_doc"))
         .pipeline(typeDefaults.getString("pipeline").orElse(null))
@@ -94,16 +160,13 @@ public interface ElasticsearchConfig {
         .matchOnQualifiedKey(typeDefaults.getBoolean("matchOnQualifiedKey").orElse(false))
         .matcher(s -> null)
         .build();
+  }
 
+  static ImmutableList<TypeConfig> types(ConfigArray types, TypeConfig defaultTypeConfig) {
     ImmutableList.Builder<TypeConfig> typeConfigs = ImmutableList.builder();
-    ConfigArray types = config.getArrayOrEmpty("type");
     for (int i = 0; i < types.size(); i++) {
       typeConfigs.add(TypeConfig.from(types.getTable(i), types.inputPositionOf(i), defaultTypeConfig));
     }
-    builder.types(typeConfigs.build());
-
-    builder.rejectLog(RejectLogConfig.from(config.getTableOrEmpty("rejectionLog"), defaultTypeConfig.type()));
-    return builder.build();
-
+    return typeConfigs.build();
   }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+/**
+ * Which property of a Couchbase document (if any) to send to Elasticsearch
+ * as an external version.
+ */
+public enum ExternalVersion {
+  /**
+   * Let Elasticsearch assign versions. The connector sends at most one
+   * request per document in each bulk request.
+   */
+  NONE,
+
+  /**
+   * Use the document's revision sequence number, which increases
+   * every time the document is modified.
+   */
+  REVISION,
+
+  /**
+   * Use the document's CAS value, a hybrid logical clock timestamp
+   * assigned by Couchbase Server every time the document is modified.
+   */
+  CAS,
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import com.couchbase.connector.config.ConfigException;
+import com.couchbase.connector.config.ScopeAndCollection;
+import com.couchbase.connector.config.toml.ConfigTable;
+import com.google.common.collect.ImmutableList;
+import org.immutables.value.Value;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * An independent replication pipeline hosted by the same connector process
+ * as other pipelines. Each pipeline streams its own bucket, and has its own
+ * checkpoints and type rules. Everything else comes from the top-level config.
+ */
+@Value.Immutable
+public interface PipelineConfig {
+  Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+  String name();
+
+  /**
+   * The group name for the pipeline's checkpoints and DCP connection.
+   */
+  String groupName();
+
+  String bucket();
+
+  String metadataBucket();
+
+  @Nullable
+  String scope();
+
+  List<ScopeAndCollection> collections();
+
+  /**
+   * Type rules for this pipeline, or empty to use the [[elasticsearch.type]] rules.
+   */
+  ImmutableList<TypeConfig> types();
+
+  @Value.Check
+  default void check() {
+    if (!isNullOrEmpty(scope()) && !collections().isEmpty()) {
+      throw new ConfigException("Invalid configuration for pipeline '" + name() + "'; you can specify 'scope' OR 'collections', but not both.");
+    }
+  }
+
+  /**
+   * @param couchbase the top-level [couchbase] table
+   * @param elasticsearch the top-level [elasticsearch] table
+   * @param parentGroupName name of the top-level group
+   */
+  static ImmutablePipelineConfig from(ConfigTable config, ConfigTable couchbase, ConfigTable elasticsearch, String parentGroupName) {
+    config.expectOnly("name", "groupName", "bucket", "metadataBucket", "scope", "collections", "type");
+
+    final String name = config.getRequiredString("name");
+    if (!VALID_NAME.matcher(name).matches()) {
+      throw new ConfigException("Invalid pipeline name '" + name + "' at " + config.inputPositionOf("name") +
+          "; name may contain only letters, digits, underscores, hyphens, and periods.");
+    }
+
+    final String bucket = config.getRequiredString("bucket");
+
+    // An explicit top-level metadata bucket is shared by all pipelines.
+    final String metadataBucket = config.getString("metadataBucket")
+        .orElseGet(() -> couchbase.getString("metadataBucket").orElse(""));
+
+    return ImmutablePipelineConfig.builder()
+        .name(name)
+        .groupName(config.getString("groupName").orElse(parentGroupName + "/" + name))
+        .bucket(bucket)
+        .metadataBucket(isNullOrEmpty(metadataBucket) ? bucket : metadataBucket)
+        .scope(config.getString("scope").orElse(null))
+        .collections(config.getOptionalList("collections", ScopeAndCollection::parse))
+        .types(ElasticsearchConfig.types(config.getArrayOrEmpty("type"), ElasticsearchConfig.typeDefaults(elasticsearch)))
+        .build();
+  }
+}
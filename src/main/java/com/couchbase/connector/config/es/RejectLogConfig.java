@@ -18,10 +18,14 @@ package com.couchbase.connector.config.es;
 
 import com.couchbase.connector.config.toml.ConfigTable;
 import com.google.common.base.Strings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.immutables.value.Value;
 
 import javax.annotation.Nullable;
 
+import static com.couchbase.connector.config.ConfigHelper.getSize;
+import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
+
 @Value.Immutable
 public interface RejectLogConfig {
   @Nullable
@@ -29,11 +33,30 @@ public interface RejectLogConfig {
 
   String typeName();
 
+  /**
+   * Maximum number of entries in a rejection log bulk request.
+   */
+  int maxActions();
+
+  /**
+   * Maximum size of a rejection log bulk request.
+   */
+  ByteSizeValue maxBytes();
+
+  /**
+   * Maximum number of entries waiting to be written. When the queue is full,
+   * document writers wait for room.
+   */
+  int queueCapacity();
+
   static ImmutableRejectLogConfig from(ConfigTable config, String defaultTypeName) {
-    config.expectOnly("index", "typeName");
+    config.expectOnly("index", "typeName", "actions", "bytes", "queueCapacity");
     return ImmutableRejectLogConfig.builder()
         .index(Strings.emptyToNull(config.getString("index").orElse(null)))
         .typeName(config.getString("typeName").orElse(defaultTypeName))
+        .maxActions(config.getInt("actions").orElse(500))
+        .maxBytes(getSize(config, "bytes").orElse(new ByteSizeValue(5, MB)))
+        .queueCapacity(config.getInt("queueCapacity").orElse(10000))
         .build();
   }
 }
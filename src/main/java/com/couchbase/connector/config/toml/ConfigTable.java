@@ -111,6 +111,18 @@ public class ConfigTable {
     }
   }
 
+  public Optional<Double> getDouble(String key) {
+    try {
+      final Object value = wrapped.get(key);
+      if (value instanceof Number) {
+        return Optional.of(((Number) value).doubleValue());
+      }
+      return getString(key).map(Double::valueOf);
+    } catch (NumberFormatException e) {
+      throw new ConfigException("Value of '" + key + "' could not be parsed as a number; " + e);
+    }
+  }
+
   @SuppressWarnings({"unchecked", "rawtypes"})
   public <T extends Enum<T>> Optional<T> getEnum(String keyName, Class<T> enumClass) {
     String s = wrapped.getString(keyName);
@@ -180,6 +192,23 @@ public class ConfigTable {
     }
   }
 
+  public List<Double> getOptionalDoubleList(String name) {
+    final TomlArray array = wrapped.getArray(name);
+    if (array == null) {
+      return ImmutableList.of();
+    }
+    try {
+      return ImmutableList.copyOf(
+          array.toList()
+              .stream()
+              .map(Number.class::cast)
+              .map(Number::doubleValue)
+              .collect(toList()));
+    } catch (ClassCastException e) {
+      throw new ConfigException("Array '" + name + "' may only contain numbers");
+    }
+  }
+
   public List<String> getRequiredStrings(String name) {
     List<String> results = getOptionalList(name, Function.identity());
     if (results.isEmpty()) {
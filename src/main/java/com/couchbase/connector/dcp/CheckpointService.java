@@ -19,63 +19,218 @@ package com.couchbase.connector.dcp;
 import com.couchbase.connector.elasticsearch.Metrics;
 import com.google.common.base.Stopwatch;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Tags;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Supplier;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class CheckpointService {
   private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointService.class);
 
-  private volatile AtomicReferenceArray<Checkpoint> positions;
+  private static final Duration HIGH_SEQNO_POLL_INTERVAL = Duration.ofSeconds(5);
+
+  // Latest position of each partition, as committed by each destination ("track").
+  // The saved position is the earliest position of any track.
+  private volatile List<AtomicReferenceArray<Checkpoint>> tracks;
+  private final int numTracks;
   private final CheckpointDao streamPositionDao;
   private final String bucketUuid;
+  private final Tags metricTags;
   private final Counter failures = Metrics.counter("save.state.fail", "Failed to save a replication checkpoint document to Couchbase.");
   private volatile boolean dirty;
 
+  // Partitions this connector instance is no longer responsible for.
+  // Their checkpoints are now managed by some other group member.
+  private final Set<Integer> released = ConcurrentHashMap.newKeySet();
+
   // Supplies a map from partition to sequence number for all partitions this
   // connector instance is responsible for.
   private volatile Supplier<Map<Integer, Long>> highSeqnoProvider = Collections::emptyMap;
 
+  // Latest known sequence number of each partition, or -1 if unknown.
+  // Refreshed by polling, and advanced by incoming events in between polls,
+  // so calculating the backlog never waits for Couchbase.
+  private volatile AtomicLongArray highSeqnos = new AtomicLongArray(0);
+
   public CheckpointService(String bucketUuid, CheckpointDao streamPositionDao) {
+    this(bucketUuid, streamPositionDao, 1);
+  }
+
+  /**
+   * @param numTracks number of destinations that must each write an event
+   * before the event's checkpoint is saved.
+   */
+  public CheckpointService(String bucketUuid, CheckpointDao streamPositionDao, int numTracks) {
+    this(bucketUuid, streamPositionDao, numTracks, Tags.empty());
+  }
+
+  /**
+   * @param numTracks number of destinations that must each write an event
+   * before the event's checkpoint is saved.
+   * @param metricTags tags for the backlog gauge, so services in the same process can be told apart.
+   */
+  public CheckpointService(String bucketUuid, CheckpointDao streamPositionDao, int numTracks, Tags metricTags) {
+    checkArgument(numTracks > 0, "must have at least one track");
     this.bucketUuid = bucketUuid;
     this.streamPositionDao = requireNonNull(streamPositionDao);
+    this.numTracks = numTracks;
+    this.metricTags = requireNonNull(metricTags);
   }
 
   /**
    * @param highSeqnoProvider a supplier to invoke to get the current sequence numbers
-   * in all partitions this connector instance is responsible for.
+   * in all partitions this connector instance is responsible for. Might block.
    */
   public void init(int numPartitions, Supplier<Map<Integer, Long>> highSeqnoProvider) {
     this.highSeqnoProvider = requireNonNull(highSeqnoProvider);
-    this.positions = new AtomicReferenceArray<>(numPartitions);
+    final List<AtomicReferenceArray<Checkpoint>> newTracks = new ArrayList<>();
+    for (int i = 0; i < numTracks; i++) {
+      newTracks.add(new AtomicReferenceArray<>(numPartitions));
+    }
+    this.tracks = newTracks;
+
+    final AtomicLongArray newHighSeqnos = new AtomicLongArray(numPartitions);
+    for (int i = 0; i < numPartitions; i++) {
+      newHighSeqnos.set(i, -1);
+    }
+    this.highSeqnos = newHighSeqnos;
+  }
+
+  /**
+   * Starts refreshing the current sequence numbers on the given executor.
+   * The high seqno provider is only ever invoked by the executor.
+   */
+  public void startPollingHighSeqnos(ScheduledExecutorService executor) {
+    executor.scheduleWithFixedDelay(this::pollHighSeqnos, 0, HIGH_SEQNO_POLL_INTERVAL.toMillis(), MILLISECONDS);
+  }
+
+  private void pollHighSeqnos() {
+    try {
+      final Stopwatch timer = Stopwatch.createStarted();
+      final Map<Integer, Long> current = highSeqnoProvider.get();
+      LOGGER.debug("Getting current seqnos took {}", timer);
+
+      final AtomicLongArray seqnos = highSeqnos;
+      current.forEach((partition, seqno) -> {
+        if (partition < seqnos.length()) {
+          seqnos.set(partition, seqno);
+        }
+      });
+    } catch (Exception e) {
+      LOGGER.warn("Failed to get current sequence numbers; backlog metrics may be out of date.", e);
+    }
+  }
+
+  /**
+   * Advances the event's partition's high seqno to the end of the event's snapshot,
+   * so the backlog stays current between polls. Call this as each event arrives.
+   */
+  public void observe(Event event) {
+    final AtomicLongArray seqnos = highSeqnos;
+    final int partition = event.getVbucket();
+    if (partition >= seqnos.length()) {
+      return;
+    }
+    final long snapshotEnd = event.getSnapshotEndSeqno();
+    // Snapshots are much larger than one event, so the update is usually unnecessary.
+    if (snapshotEnd > seqnos.get(partition)) {
+      seqnos.accumulateAndGet(partition, snapshotEnd, Math::max);
+    }
   }
 
   public void set(int vbucket, Checkpoint position) {
-    setWithoutMarkingDirty(vbucket, position);
+    set(0, vbucket, position);
+  }
+
+  public void set(int track, int vbucket, Checkpoint position) {
+    setWithoutMarkingDirty(track, vbucket, position);
     dirty = true;
   }
 
   public void setWithoutMarkingDirty(int vbucket, Checkpoint position) {
-    LOGGER.debug("New position for vbucket {} is {}", vbucket, position);
-    positions.set(vbucket, position);
+    setWithoutMarkingDirty(0, vbucket, position);
+  }
+
+  public void setWithoutMarkingDirty(int track, int vbucket, Checkpoint position) {
+    if (released.contains(vbucket)) {
+      LOGGER.debug("Ignoring new position for released vbucket {}", vbucket);
+      return;
+    }
+    LOGGER.debug("New position for vbucket {} track {} is {}", vbucket, track, position);
+    tracks.get(track).set(vbucket, position);
+  }
+
+  /**
+   * Returns the earliest position of the given vbucket across all tracks,
+   * or null if there is no position.
+   */
+  private Checkpoint position(int vbucket) {
+    Checkpoint result = tracks.get(0).get(vbucket);
+    for (int i = 1; i < tracks.size() && result != null; i++) {
+      result = earlier(result, tracks.get(i).get(vbucket));
+    }
+    return result;
+  }
+
+  /**
+   * Returns whichever checkpoint has the lower seqno, or null if either is null.
+   * If the checkpoints have different vbuuids (rollback?) the seqnos can't be
+   * properly compared, so lean towards writing some events again.
+   */
+  private static Checkpoint earlier(Checkpoint a, Checkpoint b) {
+    if (a == null || b == null) {
+      return null;
+    }
+    return Long.compareUnsigned(a.getSeqno(), b.getSeqno()) <= 0 ? a : b;
+  }
+
+  /**
+   * Forgets the checkpoints for the given vbuckets, and ignores future updates
+   * until the checkpoints are loaded again. Call this after the vbuckets have been
+   * handed off to another group member, so this connector instance does not
+   * overwrite the new owner's checkpoints with stale ones.
+   * <p>
+   * Caller is responsible for saving the checkpoints first, if desired.
+   */
+  public synchronized void release(Set<Integer> vbuckets) {
+    released.addAll(vbuckets);
+    for (AtomicReferenceArray<Checkpoint> positions : tracks) {
+      for (int vbucket : vbuckets) {
+        positions.set(vbucket, null);
+      }
+    }
+    LOGGER.info("Released checkpoints for vbuckets {}", vbuckets);
   }
 
   public synchronized Map<Integer, Checkpoint> load(Set<Integer> vbuckets) throws IOException {
+    released.removeAll(vbuckets);
+
     final Map<Integer, Checkpoint> result = streamPositionDao.load(bucketUuid, vbuckets);
     LOGGER.debug("Loaded checkpoints: {}", result);
 
     for (Map.Entry<Integer, Checkpoint> entry : result.entrySet()) {
       final int partition = entry.getKey();
-      setWithoutMarkingDirty(partition, entry.getValue());
+      for (int track = 0; track < numTracks; track++) {
+        setWithoutMarkingDirty(track, partition, entry.getValue());
+      }
     }
 
     registerBacklogMetrics();
@@ -91,8 +246,9 @@ public class CheckpointService {
 
     try {
       final Map<Integer, Checkpoint> partitionToPosition = new HashMap<>();
-      for (int i = 0; i < positions.length(); i++) {
-        partitionToPosition.put(i, positions.get(i));
+      final int numPartitions = tracks.get(0).length();
+      for (int i = 0; i < numPartitions; i++) {
+        partitionToPosition.put(i, position(i));
       }
       streamPositionDao.save(bucketUuid, partitionToPosition);
       dirty = false;
@@ -105,9 +261,16 @@ public class CheckpointService {
   }
 
   private void registerBacklogMetrics() {
-    Metrics.cachedGauge("backlog",
+    Metrics.gauge("backlog",
         "Estimated Couchbase changes yet to be processed by this node.",
-        this, CheckpointService::getLocalBacklog);
+        metricTags, this, CheckpointService::getLocalBacklog);
+  }
+
+  /**
+   * Removes the gauges registered by this service.
+   */
+  public void removeMetrics() {
+    Metrics.removeGauge("backlog", metricTags);
   }
 
   /**
@@ -115,30 +278,81 @@ public class CheckpointService {
    * in all partitions this connector instance is responsible for.
    */
   private long getLocalBacklog() {
-    Stopwatch timer = Stopwatch.createStarted();
-    Map<Integer, Long> highSeqnos = highSeqnoProvider.get();
-    timer.stop();
-    LOGGER.info("Getting current seqnos took {}", timer);
-
     long result = 0;
-    for (Map.Entry<Integer, Long> entry : highSeqnos.entrySet()) {
-      int partition = entry.getKey();
-      long seqno = entry.getValue();
+    for (long backlogForPartition : getLocalBacklogByPartition().values()) {
+      try {
+        result = Math.addExact(result, backlogForPartition);
+      } catch (ArithmeticException e) {
+        result = Long.MAX_VALUE;
+      }
+    }
+    return result;
+  }
 
-      Checkpoint checkpoint = positions.get(partition);
+  /**
+   * Returns an estimate of the number of unprocessed sequence numbers
+   * in each partition this connector instance is responsible for.
+   * Partitions without a checkpoint or a known high seqno are omitted.
+   * <p>
+   * Does not block; uses the latest sequence numbers from polling and incoming events.
+   */
+  public Map<Integer, Long> getLocalBacklogByPartition() {
+    final AtomicLongArray highSeqnos = this.highSeqnos;
+
+    Map<Integer, Long> result = new HashMap<>();
+    for (int partition = 0; partition < highSeqnos.length(); partition++) {
+      long seqno = highSeqnos.get(partition);
+      if (seqno < 0 || released.contains(partition)) {
+        continue;
+      }
+
+      Checkpoint checkpoint = position(partition);
       if (checkpoint == null) {
-        LOGGER.warn("Can't calculate local backlog for partition {}; no checkpoint available (yet?)", partition);
         continue;
       }
 
       long backlogForPartition = Math.max(0, seqno - checkpoint.getSeqno());
       LOGGER.debug("Local backlog for partition {}: {} (connector: {} server: {})", partition, backlogForPartition, checkpoint.getSeqno(), seqno);
-      try {
-        result = Math.addExact(result, backlogForPartition);
-      } catch (ArithmeticException e) {
-        result = Long.MAX_VALUE;
+      result.put(partition, backlogForPartition);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the checkpoint and backlog of each partition this connector instance
+   * is responsible for, for diagnostics. Does not block.
+   */
+  public List<Map<String, Object>> getPartitionStatus() {
+    final List<AtomicReferenceArray<Checkpoint>> tracks = this.tracks;
+    final AtomicLongArray highSeqnos = this.highSeqnos;
+    final List<Map<String, Object>> result = new ArrayList<>();
+    if (tracks == null) {
+      return result; // not initialized yet
+    }
+
+    for (int partition = 0; partition < tracks.get(0).length(); partition++) {
+      final Checkpoint checkpoint = position(partition);
+      if (checkpoint == null || released.contains(partition)) {
+        continue;
       }
 
+      final Map<String, Object> status = new LinkedHashMap<>();
+      status.put("partition", partition);
+      status.put("checkpoint", checkpoint);
+      if (tracks.size() > 1) {
+        final List<Long> trackSeqnos = new ArrayList<>();
+        for (AtomicReferenceArray<Checkpoint> track : tracks) {
+          trackSeqnos.add(track.get(partition).getSeqno());
+        }
+        status.put("seqnoByDestination", trackSeqnos);
+      }
+
+      final long highSeqno = partition < highSeqnos.length() ? highSeqnos.get(partition) : -1;
+      if (highSeqno >= 0) {
+        status.put("highSeqno", highSeqno);
+        status.put("backlog", Math.max(0, highSeqno - checkpoint.getSeqno()));
+      }
+      result.add(status);
     }
     return result;
   }
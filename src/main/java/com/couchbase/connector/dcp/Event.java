@@ -20,22 +20,87 @@ import com.couchbase.client.dcp.highlevel.DocumentChange;
 import com.couchbase.client.dcp.highlevel.Mutation;
 import com.couchbase.client.dcp.highlevel.StreamOffset;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 import static java.util.Objects.requireNonNull;
 
 public class Event {
+  // Events received from Couchbase but not yet acknowledged, across all connectors in this process.
+  // Each one holds on to some of the DCP flow control buffer.
+  private static final LongAdder unreleasedCount = new LongAdder();
+  private static final LongAdder unreleasedBytes = new LongAdder();
+
   private final DocumentChange change;
   private final boolean mutation;
+  private final long estimatedSizeInBytes;
   private final long receivedNanos = System.nanoTime();
 
+  // Number of owners that have not yet released the event.
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
   public Event(DocumentChange change) {
-    this.change = requireNonNull(change);
-    this.mutation = change instanceof Mutation;
+    this(requireNonNull(change), change instanceof Mutation, estimatedSizeInBytes(change));
+  }
+
+  /**
+   * For test doubles in this package, which must override the accessors they use
+   * as well as {@link #flowControlAck()}.
+   */
+  Event(boolean mutation) {
+    this(null, mutation, 0);
+  }
+
+  private Event(DocumentChange change, boolean mutation, long estimatedSizeInBytes) {
+    this.change = change;
+    this.mutation = mutation;
+    this.estimatedSizeInBytes = estimatedSizeInBytes;
+    unreleasedCount.increment();
+    unreleasedBytes.add(estimatedSizeInBytes);
+  }
+
+  /**
+   * Returns the number of events received from Couchbase that have not yet been released.
+   */
+  public static long getUnreleasedCount() {
+    return unreleasedCount.sum();
+  }
+
+  /**
+   * Returns the approximate size of the events received from Couchbase that have not yet been released.
+   * This is roughly how much of the DCP flow control buffer the connector is holding.
+   */
+  public static long getUnreleasedBytes() {
+    return unreleasedBytes.sum();
+  }
+
+  private static long estimatedSizeInBytes(DocumentChange change) {
+    final byte[] content = change.getContent();
+    return (content == null ? 0 : content.length) + change.getKey().length();
+  }
+
+  /**
+   * Adds owners to the event. Each owner must call {@link #release()} when finished,
+   * so when the event is written to several destinations, it is acknowledged
+   * only after all of them are done with it.
+   */
+  public Event retain(int additionalOwners) {
+    refCount.addAndGet(additionalOwners);
+    return this;
   }
 
   /**
    * Must be called when the connector is finished processing the event.
    */
   public void release() {
+    if (refCount.decrementAndGet() == 0) {
+      unreleasedCount.decrement();
+      unreleasedBytes.add(-estimatedSizeInBytes);
+      flowControlAck();
+    }
+  }
+
+  void flowControlAck() {
     change.flowControlAck();
   }
 
@@ -74,6 +139,14 @@ public class Event {
     return change.getOffset().getSeqno();
   }
 
+  /**
+   * Returns the end of the DCP snapshot containing this event. The partition
+   * has at least this many changes, even if the connector hasn't received them yet.
+   */
+  public long getSnapshotEndSeqno() {
+    return change.getOffset().getSnapshot().getEndSeqno();
+  }
+
   public Checkpoint getCheckpoint() {
     return toCheckpoint(change.getOffset());
   }
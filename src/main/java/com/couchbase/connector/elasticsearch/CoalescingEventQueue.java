@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.connector.dcp.Event;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A queue of events waiting to be handled by a worker. When a newer version
+ * of a queued document arrives, the older event is released immediately,
+ * and the newer event goes to the back of the queue.
+ * <p>
+ * Only events that are certain to be written may replace a queued event.
+ * A deletion, or an event the writer will skip (because its type is ignored,
+ * or it has no usable content, for example) is queued behind the older event
+ * instead. Otherwise the older version would never be written, even though
+ * the checkpoint moves past it. In particular, a deletion for a type with
+ * ignoreDeletes must not discard the mutation before it.
+ * <p>
+ * Moving the newer event to the back keeps the queue in arrival order,
+ * so events for the same vbucket are always dequeued in ascending seqno order.
+ * This matters because the writer saves a vbucket's checkpoint based on the
+ * highest seqno it has written. A superseded event's seqno is always lower
+ * than that of the event that replaced it, so the checkpoint never skips
+ * over an event that is still waiting in the queue.
+ * <p>
+ * Documents are identified by their qualified key (including scope and collection).
+ * The type rules match on the key alone, so events for the same key
+ * always go to the same index.
+ * <p>
+ * Thread-safe.
+ */
+class CoalescingEventQueue {
+  // Keyed by qualified document key. An event that could not replace the queued event
+  // for its document is keyed by itself instead, so nothing can replace it.
+  private final LinkedHashMap<Object, Event> events = new LinkedHashMap<>();
+
+  private final Predicate<Event> canSupersede;
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  // Set by wakeUp() to make a waiting consumer return early.
+  private boolean wakeUpRequested;
+
+  /**
+   * @param canSupersede tells whether an event may replace the queued event for the same document.
+   * Called only when the queue holds an older version, and without holding the queue's lock,
+   * since it may need to parse the document.
+   */
+  CoalescingEventQueue(Predicate<Event> canSupersede) {
+    this.canSupersede = requireNonNull(canSupersede);
+  }
+
+  /**
+   * Adds the event to the back of the queue, releasing the queued event
+   * for the same document if the new event can replace it.
+   */
+  public void add(Event event) {
+    final String key = event.getKey(true);
+    synchronized (this) {
+      if (!events.containsKey(key)) {
+        events.put(key, event);
+        notifyAll();
+        submitted.incrementAndGet();
+        return;
+      }
+    }
+
+    final boolean replace = canSupersede.test(event);
+    final Event superseded;
+    synchronized (this) {
+      // The older version might have been dequeued in the meantime.
+      superseded = replace ? events.remove(key) : null;
+      if (events.containsKey(key)) {
+        // Goes behind the older version, where nothing can replace it.
+        events.put(event, event);
+      } else {
+        events.put(key, event);
+      }
+      notifyAll();
+    }
+
+    submitted.incrementAndGet();
+    if (superseded != null) {
+      coalesced.incrementAndGet();
+      Metrics.coalescedCounter().increment();
+      DocumentLifecycle.logSkippedBecauseNewerVersionReceived(superseded, event.getTracingToken());
+      superseded.release();
+    }
+  }
+
+  /**
+   * Removes and returns the event at the head of the queue,
+   * waiting if necessary until an event is available.
+   *
+   * @return the head of the queue, or null if {@link #wakeUp()} was called first.
+   */
+  @Nullable
+  public synchronized Event take() throws InterruptedException {
+    while (events.isEmpty() && !wakeUpRequested) {
+      wait();
+    }
+    return removeFirstOrWakeUp();
+  }
+
+  /**
+   * Removes and returns the event at the head of the queue,
+   * waiting up to the specified time if necessary for an event to become available.
+   *
+   * @return the head of the queue, or null if the timeout elapsed
+   * or {@link #wakeUp()} was called first.
+   */
+  @Nullable
+  public synchronized Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+    final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    while (events.isEmpty() && !wakeUpRequested) {
+      final long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        return null;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+    }
+    return removeFirstOrWakeUp();
+  }
+
+  /**
+   * Causes the current or next blocking call to {@link #take()} or {@link #poll(long, TimeUnit)}
+   * to return null if the queue is empty, so the consumer can attend to other business.
+   */
+  public synchronized void wakeUp() {
+    wakeUpRequested = true;
+    notifyAll();
+  }
+
+  /**
+   * Removes and returns the event at the head of the queue,
+   * or null if the queue is empty.
+   */
+  @Nullable
+  public synchronized Event poll() {
+    return events.isEmpty() ? null : removeFirst();
+  }
+
+  public synchronized int size() {
+    return events.size();
+  }
+
+  /**
+   * For each queued event, increments the count at the index of the event's partition.
+   */
+  public synchronized void addSizesByPartition(int[] counts) {
+    for (Event e : events.values()) {
+      final int partition = e.getVbucket();
+      if (partition < counts.length) {
+        counts[partition]++;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of events submitted to this queue.
+   */
+  public long getSubmittedCount() {
+    return submitted.get();
+  }
+
+  /**
+   * Returns the number of events released because a newer version
+   * of the same document was submitted before they were dequeued.
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Removes all events from the queue and releases them.
+   */
+  public void clearAndRelease() {
+    final List<Event> releaseMe;
+    synchronized (this) {
+      releaseMe = new ArrayList<>(events.values());
+      events.clear();
+    }
+    releaseMe.forEach(Event::release);
+  }
+
+  @Nullable
+  private Event removeFirstOrWakeUp() {
+    if (events.isEmpty()) {
+      wakeUpRequested = false;
+      return null;
+    }
+    return removeFirst();
+  }
+
+  private Event removeFirst() {
+    final Iterator<Event> i = events.values().iterator();
+    final Event result = i.next();
+    i.remove();
+    return result;
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.env.ClusterEnvironment;
+import com.couchbase.connector.config.common.CouchbaseConfig;
+import com.couchbase.connector.config.common.TrustStoreConfig;
+import com.couchbase.connector.config.es.ElasticsearchConfig;
+import com.couchbase.connector.dcp.CouchbaseHelper;
+import com.couchbase.connector.util.HttpServer;
+import com.google.common.collect.ImmutableList;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.newElasticsearchClient;
+import static java.util.Collections.singletonList;
+
+/**
+ * Long-lived resources shared by successive runs of the connector in the same process.
+ * <p>
+ * In distributed mode a worker may be stopped and restarted many times, for example
+ * when the group rebalances or the config changes. Creating a Couchbase cluster environment,
+ * an Elasticsearch client, or the metrics HTTP server takes time and spins up new threads,
+ * so a resource is reused as long as the config properties it depends on are unchanged.
+ * When they change, the old resource is closed and a new one created.
+ * <p>
+ * Pipelines running in the same process share one runtime, so the methods that return
+ * a resource may be called concurrently. Concurrent callers must ask for the same resources;
+ * otherwise one caller would close a resource another caller is still using.
+ */
+public class ConnectorRuntime implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectorRuntime.class);
+
+  private List<Object> couchbaseKey;
+  private ClusterEnvironment couchbaseEnv;
+  private Cluster couchbaseCluster;
+
+  // Clients for each Elasticsearch cluster the most recent run wrote to.
+  private Map<List<Object>, RestHighLevelClient> elasticsearchClients = new LinkedHashMap<>();
+
+  private HttpServer httpServer;
+
+  /**
+   * Returns a Couchbase cluster for the given config, reusing the previous one if possible.
+   */
+  public synchronized Cluster couchbaseCluster(CouchbaseConfig config, TrustStoreConfig trustStore) {
+    // Everything that goes into building the cluster, and nothing else.
+    // In particular, not the bucket, so pipelines streaming different buckets can share the cluster.
+    final List<Object> key = ImmutableList.of(
+        config.hosts(),
+        config.network(),
+        config.username(),
+        config.password(),
+        config.secureConnection(),
+        config.hostnameVerification(),
+        trustStore,
+        config.clientCert(),
+        config.env());
+    if (couchbaseCluster != null && key.equals(couchbaseKey)) {
+      LOGGER.info("Reusing Couchbase cluster connection.");
+      return couchbaseCluster;
+    }
+
+    closeCouchbase();
+    couchbaseEnv = CouchbaseHelper.environmentBuilder(config, trustStore).build();
+    couchbaseCluster = CouchbaseHelper.createCluster(config, couchbaseEnv);
+    couchbaseKey = key;
+    return couchbaseCluster;
+  }
+
+  /**
+   * Returns an Elasticsearch client for the given config, reusing the previous one if possible.
+   */
+  public RestHighLevelClient elasticsearchClient(ElasticsearchConfig config, TrustStoreConfig trustStore) throws Exception {
+    return elasticsearchClients(singletonList(config), trustStore).get(0);
+  }
+
+  /**
+   * Returns an Elasticsearch client for each of the given configs, reusing previous clients
+   * where possible. Closes any previous clients that are no longer needed.
+   */
+  public synchronized List<RestHighLevelClient> elasticsearchClients(List<ElasticsearchConfig> configs, TrustStoreConfig trustStore) throws Exception {
+    final Map<List<Object>, RestHighLevelClient> previous = elasticsearchClients;
+    final Map<List<Object>, RestHighLevelClient> next = new LinkedHashMap<>();
+    final List<RestHighLevelClient> result = new ArrayList<>();
+
+    try {
+      for (ElasticsearchConfig config : configs) {
+        final List<Object> key = elasticsearchKey(config, trustStore);
+        RestHighLevelClient client = next.get(key);
+        if (client == null) {
+          client = previous.remove(key);
+          if (client != null) {
+            LOGGER.info("Reusing Elasticsearch client.");
+          } else {
+            client = newElasticsearchClient(config, trustStore);
+          }
+          next.put(key, client);
+        }
+        result.add(client);
+      }
+    } finally {
+      // Keep track of every open client, even if creating one of them failed.
+      next.putAll(previous);
+      elasticsearchClients = next;
+    }
+
+    closeElasticsearch(previous.keySet());
+    return result;
+  }
+
+  private static List<Object> elasticsearchKey(ElasticsearchConfig config, TrustStoreConfig trustStore) {
+    // Everything that goes into building the client, and nothing else.
+    return ImmutableList.of(
+        config.hosts(),
+        config.username(),
+        config.password(),
+        config.secureConnection(),
+        trustStore,
+        config.clientCert(),
+        config.aws(),
+        config.bulkRequest().timeout());
+  }
+
+  /**
+   * Returns a started HTTP server listening on the given port, reusing the previous one if possible.
+   *
+   * @param port the port to listen on, 0 for an ephemeral port, or negative to disable the server.
+   * @param metricsCacheTtl how long a metrics response may be reused. Zero disables caching.
+   */
+  public synchronized HttpServer startHttpServer(int port, TimeValue metricsCacheTtl) throws IOException {
+    if (httpServer != null && httpServer.getConfiguredPort() == port) {
+      httpServer.setMetricsCacheTtl(Duration.ofMillis(metricsCacheTtl.millis()));
+      return httpServer;
+    }
+
+    closeHttpServer();
+    final HttpServer server = new HttpServer(port);
+    server.setMetricsCacheTtl(Duration.ofMillis(metricsCacheTtl.millis()));
+    server.start();
+    httpServer = server;
+    return httpServer;
+  }
+
+  private void closeCouchbase() {
+    if (couchbaseCluster != null) {
+      couchbaseCluster.disconnect();
+      couchbaseEnv.shutdown();
+    }
+    couchbaseCluster = null;
+    couchbaseEnv = null;
+    couchbaseKey = null;
+  }
+
+  private void closeElasticsearch(Collection<List<Object>> keys) throws IOException {
+    IOException failure = null;
+    for (List<Object> key : new ArrayList<>(keys)) {
+      // Forget the client even if closing fails, so it's not reused.
+      final RestHighLevelClient client = elasticsearchClients.remove(key);
+      if (client == null) {
+        continue;
+      }
+      try {
+        client.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void closeHttpServer() throws IOException {
+    if (httpServer != null) {
+      final HttpServer server = httpServer;
+      httpServer = null;
+      server.close();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      closeHttpServer();
+      closeElasticsearch(elasticsearchClients.keySet());
+    } finally {
+      closeCouchbase();
+    }
+  }
+}
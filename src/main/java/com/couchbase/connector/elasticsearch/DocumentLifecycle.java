@@ -23,20 +23,24 @@ import com.couchbase.connector.dcp.DcpHelper;
 import com.couchbase.connector.dcp.Event;
 import com.couchbase.connector.elasticsearch.io.EventDocWriteRequest;
 import com.couchbase.connector.elasticsearch.io.EventRejectionIndexRequest;
+import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 import static java.time.temporal.ChronoUnit.MICROS;
-import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptyList;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * Utility methods for logging document lifecycle events.
+ * <p>
+ * The thread processing a document only records the milestone in a preallocated buffer;
+ * a background thread formats and logs it. Milestones are dropped instead of slowing
+ * down the connector if the background thread can't keep up.
  */
 public class DocumentLifecycle {
 
@@ -48,6 +52,7 @@ public class DocumentLifecycle {
     SKIPPED_BECAUSE_RULE_SAYS_IGNORE,
     SKIPPED_BECAUSE_RULE_SAYS_IGNORE_DELETES,
     SKIPPED_BECAUSE_NEWER_VERSION_RECEIVED,
+    SKIPPED_BECAUSE_ELASTICSEARCH_HAS_NEWER_VERSION,
 
     ELASTICSEARCH_WRITE_STARTED,
     ELASTICSEARCH_WRITE_SUCCEEDED,
@@ -59,70 +64,88 @@ public class DocumentLifecycle {
   private static final Logger log = LoggerFactory.getLogger(DocumentLifecycle.class);
   private static volatile LogLevel logLevel = LogLevel.DEBUG;
 
+  // Only documents whose ID hashes below this value are traced.
+  private static volatile long sampleThreshold = 1L << 32;
+  private static volatile List<String> keyPrefixes = emptyList();
+
+  // Created the first time a milestone is recorded.
+  private static volatile DocumentLifecycleRecorder recorder;
+
+  private static final int RECORDER_CAPACITY = 16 * 1024;
+
   public static void setLogLevel(LogLevel level) {
     logLevel = level;
     log.info("Document lifecycle milestones will be logged to this category at {} level.", level);
   }
 
+  /**
+   * Limits logging to some of the documents, so milestones can be logged in production
+   * without slowing down the connector.
+   *
+   * @param sampleRate fraction of document IDs to log, between 0 and 1.
+   * The same IDs are always chosen, so every milestone of a chosen document is logged.
+   * @param prefixes if not empty, only documents whose IDs start with one of these prefixes are logged.
+   */
+  public static void setSampling(double sampleRate, List<String> prefixes) {
+    sampleThreshold = (long) (sampleRate * (1L << 32));
+    keyPrefixes = ImmutableList.copyOf(prefixes);
+    if (sampleRate < 1 || !prefixes.isEmpty()) {
+      log.info("Document lifecycle milestones will be logged for {}% of document IDs{}.",
+          sampleRate * 100, prefixes.isEmpty() ? "" : " starting with " + prefixes);
+    }
+  }
+
   private DocumentLifecycle() {
     throw new AssertionError("not instantiable");
   }
 
   public static void logReceivedFromCouchbase(Event event, int worker) {
     if (shouldLog(event)) {
-      LinkedHashMap<String, Object> details = new LinkedHashMap<>();
-      details.put("revision", event.getChange().getRevision());
-      details.put("type", event.isMutation() ? "mutation" : "deletion");
-      details.put("partition", event.getVbucket());
-      details.put("sequenceNumber", event.getSeqno());
-      details.put("assignedToWorker", worker);
-      details.put("usSinceCouchbaseChange(might be inaccurate before Couchbase 7)", event.getChange().getTimestamp().until(Instant.now(), MICROS));
-      logMilestone(event, Milestone.RECEIVED_FROM_COUCHBASE, details);
+      record(event, Milestone.RECEIVED_FROM_COUCHBASE, 0, worker, null, null);
     }
   }
 
   public static void logMatchedTypeRule(Event event, String index, TypeConfig typeConfig) {
     if (shouldLog(event)) {
-      LinkedHashMap<String, Object> details = new LinkedHashMap<>();
-      details.put("elasticsearchIndex", index);
-      details.put("typeConfig", typeConfig.toString()); // toString() because we don't want Jackson to try to serialize it
-      logMilestone(event, Milestone.MATCHED_TYPE_RULE, details);
+      record(event, Milestone.MATCHED_TYPE_RULE, 0, 0, index, typeConfig);
     }
   }
 
   public static void logSkippedBecauseMatchedNoRules(Event event) {
     if (shouldLog(event)) {
-      logMilestone(event, Milestone.SKIPPED_BECAUSE_MATCHED_NO_RULES);
+      record(event, Milestone.SKIPPED_BECAUSE_MATCHED_NO_RULES);
     }
   }
 
   public static void logSkippedBecauseMatchedIgnoredType(Event event, TypeConfig typeConfig) {
     if (shouldLog(event)) {
-      LinkedHashMap<String, Object> details = new LinkedHashMap<>();
-      details.put("typeConfig", typeConfig);
-      logMilestone(event, Milestone.SKIPPED_BECAUSE_RULE_SAYS_IGNORE, details);
+      record(event, Milestone.SKIPPED_BECAUSE_RULE_SAYS_IGNORE, 0, 0, typeConfig, null);
     }
   }
 
   public static void logSkippedBecauseRuleSaysIgnoreDeletes(Event event) {
-    logMilestone(event, Milestone.SKIPPED_BECAUSE_RULE_SAYS_IGNORE_DELETES);
+    if (shouldLog(event)) {
+      record(event, Milestone.SKIPPED_BECAUSE_RULE_SAYS_IGNORE_DELETES);
+    }
   }
 
   public static void logSkippedBecauseNewerVersionReceived(Event event, long newerVersionTracingToken) {
-    if (logLevel.isEnabled(log)) {
-      LinkedHashMap<String, Object> details = new LinkedHashMap<>();
-      details.put("newerVersionTracingToken", newerVersionTracingToken);
-      logMilestone(event, Milestone.SKIPPED_BECAUSE_NEWER_VERSION_RECEIVED, details);
+    if (shouldLog(event)) {
+      record(event, Milestone.SKIPPED_BECAUSE_NEWER_VERSION_RECEIVED, newerVersionTracingToken, 0, null, null);
+    }
+  }
+
+  public static void logSkippedBecauseElasticsearchHasNewerVersion(EventDocWriteRequest request) {
+    if (shouldLog(request)) {
+      record(request.getEvent(), Milestone.SKIPPED_BECAUSE_ELASTICSEARCH_HAS_NEWER_VERSION, request.version(), 0, null, null);
     }
   }
 
   public static void logEsWriteStarted(List<EventDocWriteRequest> requests, int attemptCounter) {
     if (logLevel.isEnabled(log)) {
-      LinkedHashMap<String, Object> details = new LinkedHashMap<>();
-      details.put("attempt", attemptCounter);
       for (EventDocWriteRequest request : requests) {
         if (shouldLog(request)) { // filter out EventRejectionIndexRequest
-          logMilestone(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_STARTED, details);
+          record(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_STARTED, 0, attemptCounter, null, null);
         }
       }
     }
@@ -130,46 +153,136 @@ public class DocumentLifecycle {
 
   public static void logEsWriteSucceeded(EventDocWriteRequest request) {
     if (shouldLog(request)) {
-      logMilestone(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_SUCCEEDED);
+      record(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_SUCCEEDED);
     }
   }
 
   public static void logEsWriteFailedWillRetry(EventDocWriteRequest request) {
     if (shouldLog(request)) {
-      logMilestone(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_FAILED_WILL_RETRY);
+      record(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_FAILED_WILL_RETRY);
     }
   }
 
   public static void logEsWriteRejected(EventDocWriteRequest request, int httpStatusCode, String message) {
     if (shouldLog(request)) {
-      LinkedHashMap<String, Object> details = new LinkedHashMap<>();
-      details.put("httpStatusCode", httpStatusCode);
-      details.put("rejectionMessage", message);
-      logMilestone(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_PERMANENTLY_REJECTED, details);
+      record(request.getEvent(), Milestone.ELASTICSEARCH_WRITE_PERMANENTLY_REJECTED, 0, httpStatusCode, message, null);
     }
   }
 
-  private static void logMilestone(Event event, Milestone milestone) {
-    logMilestone(event, milestone, emptyMap());
+  private static void record(Event event, Milestone milestone) {
+    record(event, milestone, 0, 0, null, null);
   }
 
-  private static void logMilestone(Event event, Milestone milestone, Map<String, Object> milestoneDetails) {
-    if (shouldLog(event)) {
-      LinkedHashMap<String, Object> message = new LinkedHashMap<>();
-      message.put("milestone", milestone);
-      message.put("tracingToken", event.getTracingToken());
-      message.put("documentId", event.getKey(true));
-      message.putAll(milestoneDetails);
-      message.put("usSinceReceipt", NANOSECONDS.toMicros(System.nanoTime() - event.getReceivedNanos()));
-      logLevel.log(log, Mapper.encodeAsString(message));
+  /**
+   * Hands the milestone to a background thread for logging. The meaning of the
+   * detail arguments depends on the milestone; see {@link #format}.
+   */
+  private static void record(Event event, Milestone milestone, long longDetail, int intDetail, Object detail, Object detail2) {
+    final DocumentLifecycleRecorder rec = recorder();
+    final DocumentLifecycleRecorder.Record r = rec.claim();
+    if (r == null) {
+      return; // background thread fell behind
+    }
+    r.milestone = milestone;
+    r.event = event;
+    r.longDetail = longDetail;
+    r.intDetail = intDetail;
+    r.detail = detail;
+    r.detail2 = detail2;
+    rec.publish(r);
+  }
+
+  private static DocumentLifecycleRecorder recorder() {
+    DocumentLifecycleRecorder result = recorder;
+    if (result == null) {
+      synchronized (DocumentLifecycle.class) {
+        result = recorder;
+        if (result == null) {
+          result = new DocumentLifecycleRecorder(RECORDER_CAPACITY, DocumentLifecycle::format);
+          recorder = result;
+        }
+      }
     }
+    return result;
+  }
+
+  /**
+   * Called on the recorder's background thread.
+   */
+  private static void format(DocumentLifecycleRecorder.Record r) {
+    final Event event = r.event;
+
+    LinkedHashMap<String, Object> message = new LinkedHashMap<>();
+    message.put("milestone", r.milestone);
+    message.put("tracingToken", event.getTracingToken());
+    message.put("documentId", event.getKey(true));
+
+    switch (r.milestone) {
+      case RECEIVED_FROM_COUCHBASE:
+        message.put("revision", event.getChange().getRevision());
+        message.put("type", event.isMutation() ? "mutation" : "deletion");
+        message.put("partition", event.getVbucket());
+        message.put("sequenceNumber", event.getSeqno());
+        message.put("assignedToWorker", r.intDetail);
+        message.put("usSinceCouchbaseChange(might be inaccurate before Couchbase 7)",
+            event.getChange().getTimestamp().until(Instant.ofEpochMilli(r.wallClockMillis), MICROS));
+        break;
+      case MATCHED_TYPE_RULE:
+        message.put("elasticsearchIndex", r.detail);
+        message.put("typeConfig", String.valueOf(r.detail2)); // String because we don't want Jackson to try to serialize it
+        break;
+      case SKIPPED_BECAUSE_RULE_SAYS_IGNORE:
+        message.put("typeConfig", String.valueOf(r.detail));
+        break;
+      case SKIPPED_BECAUSE_NEWER_VERSION_RECEIVED:
+        message.put("newerVersionTracingToken", r.longDetail);
+        break;
+      case SKIPPED_BECAUSE_ELASTICSEARCH_HAS_NEWER_VERSION:
+        message.put("externalVersion", r.longDetail);
+        break;
+      case ELASTICSEARCH_WRITE_STARTED:
+        message.put("attempt", r.intDetail);
+        break;
+      case ELASTICSEARCH_WRITE_PERMANENTLY_REJECTED:
+        message.put("httpStatusCode", r.intDetail);
+        message.put("rejectionMessage", r.detail);
+        break;
+      default:
+        break;
+    }
+
+    message.put("usSinceReceipt", NANOSECONDS.toMicros(r.nanoTime - event.getReceivedNanos()));
+    logLevel.log(log, Mapper.encodeAsString(message));
   }
 
   private static boolean shouldLog(Event event) {
-    return logLevel.isEnabled(log) && !DcpHelper.isMetadata(event);
+    return logLevel.isEnabled(log) && !DcpHelper.isMetadata(event) && isSampled(event.getKey());
   }
 
   private static boolean shouldLog(EventDocWriteRequest request) {
     return shouldLog(request.getEvent()) && !(request instanceof EventRejectionIndexRequest);
   }
+
+  private static boolean isSampled(String documentId) {
+    final List<String> prefixes = keyPrefixes;
+    if (!prefixes.isEmpty() && !startsWithAny(documentId, prefixes)) {
+      return false;
+    }
+    final long threshold = sampleThreshold;
+    if (threshold > 0xFFFFFFFFL) {
+      return true;
+    }
+    // Spread the bits of the hash code, so similar IDs aren't all in or all out.
+    final int hash = documentId.hashCode() * 0x9E3779B9;
+    return (hash & 0xFFFFFFFFL) < threshold;
+  }
+
+  private static boolean startsWithAny(String s, List<String> prefixes) {
+    for (int i = 0; i < prefixes.size(); i++) {
+      if (s.startsWith(prefixes.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
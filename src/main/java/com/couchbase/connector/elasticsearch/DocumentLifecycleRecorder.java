@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.DocumentLifecycle.Milestone;
+import io.micrometer.core.instrument.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A fixed-size ring of preallocated milestone records. Threads that process documents
+ * claim a record and fill in a few fields; a background thread turns the records
+ * into log messages. Recording a milestone never blocks and never allocates.
+ * If the background thread falls behind and the ring is full, new milestones are dropped.
+ * <p>
+ * Thread-safe. Any number of threads may record milestones.
+ */
+class DocumentLifecycleRecorder {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DocumentLifecycleRecorder.class);
+
+  private static final Counter dropped = Metrics.counter("lifecycle.dropped",
+      "Document lifecycle milestones not logged because the log writer fell behind.");
+
+  /**
+   * A milestone waiting to be logged. The meaning of the detail fields depends on the milestone.
+   */
+  static class Record {
+    // Sequence number of the milestone in this slot, written last to publish the other fields.
+    private volatile long sequence = -1;
+    private long claimedSequence;
+
+    Milestone milestone;
+    Event event;
+    long nanoTime;
+    long wallClockMillis;
+    long longDetail;
+    int intDetail;
+    Object detail;
+    Object detail2;
+
+    private void clear() {
+      event = null;
+      detail = null;
+      detail2 = null;
+    }
+  }
+
+  private final Record[] ring;
+  private final int mask;
+  private final AtomicLong nextClaim = new AtomicLong();
+  private volatile long nextConsume;
+
+  private final Consumer<Record> formatter;
+
+  /**
+   * @param capacity number of records in the ring. Must be a power of two.
+   * @param formatter called on the background thread for each record, in the order the records were claimed
+   */
+  DocumentLifecycleRecorder(int capacity, Consumer<Record> formatter) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two, but got " + capacity);
+    }
+    this.ring = new Record[capacity];
+    for (int i = 0; i < capacity; i++) {
+      ring[i] = new Record();
+    }
+    this.mask = capacity - 1;
+    this.formatter = requireNonNull(formatter);
+    final Thread thread = new Thread(this::drainForever, "doc-lifecycle-logger");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns a record for the caller to fill in, or null if the ring is full.
+   * The caller must pass the record to {@link #publish} after filling it in.
+   */
+  Record claim() {
+    while (true) {
+      final long seq = nextClaim.get();
+      if (seq - nextConsume >= ring.length) {
+        dropped.increment();
+        return null;
+      }
+      if (nextClaim.compareAndSet(seq, seq + 1)) {
+        final Record r = ring[(int) seq & mask];
+        r.nanoTime = System.nanoTime();
+        r.wallClockMillis = System.currentTimeMillis();
+        r.claimedSequence = seq;
+        return r;
+      }
+    }
+  }
+
+  /**
+   * Hands a filled-in record to the background thread.
+   */
+  void publish(Record r) {
+    r.sequence = r.claimedSequence;
+  }
+
+  private void drainForever() {
+    try {
+      while (!Thread.interrupted()) {
+        if (!drain()) {
+          LockSupport.parkNanos(MILLISECONDS.toNanos(5));
+        }
+      }
+    } catch (Throwable t) {
+      LOGGER.error("Document lifecycle logger stopped unexpectedly.", t);
+    }
+  }
+
+  /**
+   * Formats all published records. Returns false if there were none.
+   */
+  private boolean drain() {
+    boolean any = false;
+    long seq = nextConsume;
+    while (true) {
+      final Record r = ring[(int) seq & mask];
+      if (r.sequence != seq) {
+        break;
+      }
+      try {
+        formatter.accept(r);
+      } catch (Exception e) {
+        LOGGER.warn("Failed to log document lifecycle milestone {}", r.milestone, e);
+      }
+      r.clear(); // don't keep the event reachable
+      nextConsume = ++seq; // frees the slot
+      any = true;
+    }
+    return any;
+  }
+}
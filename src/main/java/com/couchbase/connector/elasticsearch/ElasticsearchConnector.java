@@ -27,24 +27,31 @@ import com.couchbase.client.dcp.util.Version;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.Collection;
-import com.couchbase.client.java.env.ClusterEnvironment;
 import com.couchbase.connector.cluster.Coordinator;
 import com.couchbase.connector.cluster.Membership;
 import com.couchbase.connector.cluster.StaticCoordinator;
 import com.couchbase.connector.config.ConfigException;
+import com.couchbase.connector.config.es.BulkRequestConfig;
 import com.couchbase.connector.config.es.ConnectorConfig;
+import com.couchbase.connector.config.es.DeadLetterConfig;
 import com.couchbase.connector.config.es.ElasticsearchConfig;
+import com.couchbase.connector.config.es.PipelineConfig;
 import com.couchbase.connector.config.es.TypeConfig;
+import com.couchbase.connector.config.toml.Toml;
 import com.couchbase.connector.dcp.CheckpointDao;
 import com.couchbase.connector.dcp.CheckpointService;
 import com.couchbase.connector.dcp.CouchbaseCheckpointDao;
 import com.couchbase.connector.dcp.CouchbaseHelper;
 import com.couchbase.connector.dcp.DcpHelper;
+import com.couchbase.connector.dcp.Event;
 import com.couchbase.connector.elasticsearch.cli.AbstractCliCommand;
+import com.couchbase.connector.elasticsearch.io.DeadLetterSpool;
 import com.couchbase.connector.elasticsearch.io.RequestFactory;
 import com.couchbase.connector.util.HttpServer;
 import com.couchbase.connector.util.RuntimeHelper;
 import com.couchbase.connector.util.ThrowableHelper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Tags;
 import joptsimple.OptionSet;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.unit.TimeValue;
@@ -52,17 +59,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
 
 import static com.couchbase.client.core.logging.RedactableArgument.redactSystem;
 import static com.couchbase.connector.VersionHelper.getVersionString;
+import static com.couchbase.connector.config.ConfigHelper.resolveIfRelative;
 import static com.couchbase.connector.dcp.CouchbaseHelper.requireCouchbaseVersion;
 import static com.couchbase.connector.dcp.DcpHelper.initEventListener;
 import static com.couchbase.connector.dcp.DcpHelper.initSessionState;
-import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.newElasticsearchClient;
+import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.maxBulkRequestTimeout;
 import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.waitForElasticsearchAndRequireVersion;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -76,6 +93,9 @@ public class ElasticsearchConnector extends AbstractCliCommand {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchConnector.class);
 
+  // How long to wait for the workers to finish their work when the number of workers changes.
+  private static final Duration BULK_REQUEST_LIMITS_TIMEOUT = Duration.ofSeconds(30);
+
   private static class OptionsParser extends CommonParser {
   }
 
@@ -105,6 +125,91 @@ public class ElasticsearchConnector extends AbstractCliCommand {
   }
 
   public static void run(ConnectorConfig config) throws Throwable {
+    try (ConnectorRuntime runtime = new ConnectorRuntime()) {
+      if (config.pipelines().isEmpty()) {
+        run(config, runtime, partitionController -> {
+        });
+      } else {
+        runPipelines(config, runtime);
+      }
+    }
+  }
+
+  /**
+   * Runs each of the config's pipelines on its own thread. The pipelines share
+   * the runtime's Couchbase cluster, Elasticsearch client, and HTTP server.
+   * If any pipeline fails, stops the others and throws the failure.
+   */
+  private static void runPipelines(ConnectorConfig config, ConnectorRuntime runtime) throws Throwable {
+    configureProcess(config);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(config.pipelines().size());
+    final ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+
+    try (Slf4jReporter metricReporter = newSlf4jReporter(config.metrics().logInterval())) {
+      for (PipelineConfig pipeline : config.pipelines()) {
+        final ConnectorConfig pipelineConfig = config.forPipeline(pipeline);
+        final Tags tags = Tags.of("pipeline", pipeline.name());
+        completionService.submit(() -> {
+          Thread.currentThread().setName("pipeline-" + pipeline.name());
+          LOGGER.info("Starting pipeline '{}' for bucket '{}'", pipeline.name(), redactSystem(pipeline.bucket()));
+          run(pipelineConfig, tags, runtime, partitionController -> {
+          });
+          return null;
+        });
+      }
+
+      try {
+        completionService.take().get();
+        throw new IllegalStateException("Pipeline exited without throwing exception");
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      }
+
+    } finally {
+      // Interrupting the other pipelines makes them save their checkpoints and shut down.
+      executor.shutdownNow();
+      if (!executor.awaitTermination(30, SECONDS)) {
+        LOGGER.warn("Some pipelines didn't exit in allotted time.");
+      }
+    }
+  }
+
+  /**
+   * @param runtime connections and servers that may be reused from a previous run. Not closed by this method.
+   * @param partitionControllerListener called once streaming has started,
+   * with a controller that can change the streamed partitions while the connector runs.
+   */
+  public static void run(ConnectorConfig config, ConnectorRuntime runtime, Consumer<PartitionController> partitionControllerListener) throws Throwable {
+    configureProcess(config);
+    try (Slf4jReporter metricReporter = newSlf4jReporter(config.metrics().logInterval())) {
+      run(config, Tags.empty(), runtime, partitionControllerListener);
+    }
+  }
+
+  /**
+   * Applies the settings that are shared by everything in the process.
+   * Must be called before any pipeline starts, since pipelines don't configure them.
+   */
+  private static void configureProcess(ConnectorConfig config) throws IOException {
+    DocumentLifecycle.setLogLevel(config.logging().logDocumentLifecycle() ? LogLevel.INFO : LogLevel.DEBUG);
+    DocumentLifecycle.setSampling(config.logging().documentLifecycleSampleRate(), config.logging().documentLifecycleKeyPrefixes());
+    Metrics.configureHistograms(config.metrics().histogram());
+    SpanExporter.configure(config.metrics().spanSampleRate(),
+        config.metrics().spanFile().isEmpty() ? null : resolveIfRelative(config.metrics().spanFile()));
+    final DeadLetterConfig deadLetter = config.elasticsearch().deadLetter();
+    DeadLetterSpool.configure(deadLetter.directory().isEmpty() ? null : resolveIfRelative(deadLetter.directory()),
+        deadLetter.maxSize().getBytes(), deadLetter.segmentSize().getBytes());
+    LogRedaction.setRedactionLevel(config.logging().redactionLevel());
+    DcpHelper.setRedactionLevel(config.logging().redactionLevel());
+  }
+
+  /**
+   * Runs a single pipeline. Process-wide settings must already be configured (see {@link #configureProcess}).
+   *
+   * @param metricTags tags for the gauges that describe this run, so runs in the same process can be told apart.
+   */
+  private static void run(ConnectorConfig config, Tags metricTags, ConnectorRuntime runtime, Consumer<PartitionController> partitionControllerListener) throws Throwable {
     final Throwable fatalError;
 
     final Membership membership = config.group().staticMembership();
@@ -115,89 +220,126 @@ public class ElasticsearchConnector extends AbstractCliCommand {
 
     final ScheduledExecutorService checkpointExecutor = Executors.newSingleThreadScheduledExecutor();
 
-    try (Slf4jReporter metricReporter = newSlf4jReporter(config.metrics().logInterval());
-         HttpServer httpServer = new HttpServer(config.metrics().httpPort());
-         RestHighLevelClient esClient = newElasticsearchClient(config.elasticsearch(), config.trustStore())) {
+    // Separate from the checkpoint executor, because asking Couchbase for the current seqnos might block.
+    final ScheduledExecutorService seqnoExecutor = Executors.newSingleThreadScheduledExecutor();
 
-      DocumentLifecycle.setLogLevel(config.logging().logDocumentLifecycle() ? LogLevel.INFO : LogLevel.DEBUG);
-      LogRedaction.setRedactionLevel(config.logging().redactionLevel());
-      DcpHelper.setRedactionLevel(config.logging().redactionLevel());
+    // The primary Elasticsearch cluster, followed by any additional destinations.
+    final List<RestHighLevelClient> esClients = runtime.elasticsearchClients(config.elasticsearch().allDestinations(), config.trustStore());
 
-      final ClusterEnvironment env = CouchbaseHelper.environmentBuilder(config.couchbase(), config.trustStore()).build();
-      final Cluster cluster = CouchbaseHelper.createCluster(config.couchbase(), env);
+    final Cluster cluster = runtime.couchbaseCluster(config.couchbase(), config.trustStore());
 
+    for (RestHighLevelClient esClient : esClients) {
       final Version elasticsearchVersion = waitForElasticsearchAndRequireVersion(
           esClient, new Version(2, 0, 0), new Version(5, 6, 16));
       LOGGER.info("Elasticsearch version {}", elasticsearchVersion);
 
       validateConfig(elasticsearchVersion, config.elasticsearch());
+    }
 
-      // Wait for couchbase server to come online, then open the bucket.
-      final Bucket bucket = CouchbaseHelper.waitForBucket(cluster, config.couchbase().bucket());
-      final Set<SeedNode> kvNodes = CouchbaseHelper.getKvNodes(config.couchbase(), bucket);
-
-      final boolean storeMetadataInSourceBucket = config.couchbase().metadataBucket().equals(config.couchbase().bucket());
-      final Bucket metadataBucket = storeMetadataInSourceBucket ? bucket : CouchbaseHelper.waitForBucket(cluster, config.couchbase().metadataBucket());
-      final Collection metadataCollection = CouchbaseHelper.getMetadataCollection(metadataBucket, config.couchbase());
-
-      // Do this after waiting for the bucket, because waitForBucket has nicer retry backoff.
-      // Checkpoint metadata is stored using Extended Attributes, a feature introduced in 5.0.
-      LOGGER.info("Couchbase Server version {}", requireCouchbaseVersion(cluster, new Version(5, 0, 0)));
-
-      final CheckpointDao checkpointDao = new CouchbaseCheckpointDao(metadataCollection, config.group().name());
-
-      final String bucketUuid = ""; // todo get this from dcp client
-      final CheckpointService checkpointService = new CheckpointService(bucketUuid, checkpointDao);
-      final RequestFactory requestFactory = new RequestFactory(
-          config.elasticsearch().types(), config.elasticsearch().docStructure(), config.elasticsearch().rejectLog());
-
-      final ElasticsearchWorkerGroup workers = new ElasticsearchWorkerGroup(
-          esClient,
-          checkpointService,
-          requestFactory,
-          ErrorListener.NOOP,
-          config.elasticsearch().bulkRequest());
-
-      Metrics.gauge("write.queue",
-          "Document events currently buffered in memory.",
-          workers, ElasticsearchWorkerGroup::getQueueSize);
-
-      Metrics.gauge("es.wait.ms", null, workers, ElasticsearchWorkerGroup::getCurrentRequestMillis); // High value indicates the connector has stalled
-
-      // Same as "es.wait.ms" but normalized to seconds for Prometheus
-      Metrics.gauge("es.wait.seconds",
-          "Duration of in-flight Elasticsearch bulk request (including any retries). Long duration may indicate connector has stalled.",
-          workers, value -> value.getCurrentRequestMillis() / (double) SECONDS.toMillis(1));
-
-      final Client dcpClient = DcpHelper.newClient(config.group().name(), config.couchbase(), kvNodes, config.trustStore());
-
-      initEventListener(dcpClient, coordinator, workers::submit);
-
-      final Thread saveCheckpoints = new Thread(checkpointService::save, "save-checkpoints");
-
+    // Wait for couchbase server to come online, then open the bucket.
+    final Bucket bucket = CouchbaseHelper.waitForBucket(cluster, config.couchbase().bucket());
+    final Set<SeedNode> kvNodes = CouchbaseHelper.getKvNodes(config.couchbase(), bucket);
+
+    final boolean storeMetadataInSourceBucket = config.couchbase().metadataBucket().equals(config.couchbase().bucket());
+    final Bucket metadataBucket = storeMetadataInSourceBucket ? bucket : CouchbaseHelper.waitForBucket(cluster, config.couchbase().metadataBucket());
+    final Collection metadataCollection = CouchbaseHelper.getMetadataCollection(metadataBucket, config.couchbase());
+
+    // Do this after waiting for the bucket, because waitForBucket has nicer retry backoff.
+    // Checkpoint metadata is stored using Extended Attributes, a feature introduced in 5.0.
+    LOGGER.info("Couchbase Server version {}", requireCouchbaseVersion(cluster, new Version(5, 0, 0)));
+
+    final CheckpointDao checkpointDao = new CouchbaseCheckpointDao(metadataCollection, config.group().name());
+
+    final String bucketUuid = ""; // todo get this from dcp client
+    final CheckpointService checkpointService = new CheckpointService(bucketUuid, checkpointDao, esClients.size(), metricTags);
+    final RequestFactory requestFactory = new RequestFactory(
+        config.elasticsearch().types(), config.elasticsearch().docStructure(), config.elasticsearch().rejectLog(),
+        config.elasticsearch().externalVersion(), esClients.size() > 1);
+
+    final MetricBreakdown breakdown = new MetricBreakdown(config.metrics().breakdown(), metricTags);
+
+    final ElasticsearchWorkerGroup workers = new ElasticsearchWorkerGroup(
+        esClients,
+        checkpointService,
+        requestFactory,
+        ErrorListener.NOOP,
+        config.elasticsearch().bulkRequest(),
+        breakdown);
+
+    Metrics.gauge("write.queue",
+        "Document events currently buffered in memory.",
+        metricTags, workers, ElasticsearchWorkerGroup::getQueueSize);
+
+    Metrics.gauge("retry.queue",
+        "Document events waiting to be retried after a temporary indexing failure.",
+        metricTags, workers, ElasticsearchWorkerGroup::getRetryQueueSize);
+
+    Metrics.gauge("rejection.log.queue",
+        "Rejection log entries waiting to be written.",
+        metricTags, workers, ElasticsearchWorkerGroup::getRejectionLogQueueSize);
+
+    Metrics.gauge("write.coalesce.ratio",
+        "Fraction of document events skipped because a newer version of the same document arrived before the older one was written.",
+        metricTags, workers, ElasticsearchWorkerGroup::getCoalesceRatio);
+
+    Metrics.gauge("es.wait.ms", null, metricTags, workers, ElasticsearchWorkerGroup::getCurrentRequestMillis); // High value indicates the connector has stalled
+
+    // Same as "es.wait.ms" but normalized to seconds for Prometheus
+    Metrics.gauge("es.wait.seconds",
+        "Duration of in-flight Elasticsearch bulk request (including any retries). Long duration may indicate connector has stalled.",
+        metricTags, workers, value -> value.getCurrentRequestMillis() / (double) SECONDS.toMillis(1));
+
+    final Client dcpClient = DcpHelper.newClient(config.group().name(), config.couchbase(), kvNodes, config.trustStore());
+
+    initEventListener(dcpClient, coordinator, event -> {
+      checkpointService.observe(event);
+      workers.submit(event);
+    });
+
+    final Thread saveCheckpoints = new Thread(checkpointService::save, "save-checkpoints");
+
+    // Diagnostic and admin endpoints, registered with the HTTP server once it's running.
+    // Pipelines share the server, so each gets its own paths.
+    final String pipelinePath = metricTags.stream()
+        .filter(tag -> tag.getKey().equals("pipeline"))
+        .map(tag -> "/" + tag.getValue())
+        .findFirst()
+        .orElse("");
+    final String statusPath = "/status" + pipelinePath;
+    final Map<String, HttpServer.JsonGetHandler> statusHandlers = new LinkedHashMap<>();
+    final Map<String, HttpServer.JsonPostHandler> adminHandlers = new LinkedHashMap<>();
+    HttpServer statusServer = null;
+
+    try {
       try {
-        try {
-          dcpClient.connect().block(Duration.ofMillis(config.couchbase().dcp().connectTimeout().millis()));
-        } catch (Exception e) {
-          LOGGER.error("Failed to establish initial DCP connection within {} -- shutting down.", config.couchbase().dcp().connectTimeout(), e);
-          System.exit(1);
-        }
+        dcpClient.connect().block(Duration.ofMillis(config.couchbase().dcp().connectTimeout().millis()));
+      } catch (Exception e) {
+        LOGGER.error("Failed to establish initial DCP connection within {} -- shutting down.", config.couchbase().dcp().connectTimeout(), e);
+        System.exit(1);
+      }
 
-        final int numPartitions = dcpClient.numPartitions();
-        LOGGER.info("Bucket has {} partitions. Membership = {}", numPartitions, membership);
-        final Set<Integer> partitions = membership.getPartitions(numPartitions);
-        if (partitions.isEmpty()) {
-          // need to do this check, because if we started streaming with an empty list, the DCP client would open streams for *all* partitions
-          throw new IllegalArgumentException("There are more workers than Couchbase vbuckets; this worker doesn't have any work to do.");
-        }
-        checkpointService.init(numPartitions, () -> DcpHelper.getCurrentSeqnosAsMap(dcpClient, partitions, Duration.ofSeconds(5)));
+      final int numPartitions = dcpClient.numPartitions();
+      LOGGER.info("Bucket has {} partitions. Membership = {}", numPartitions, membership);
+      final Set<Integer> partitions = membership.getPartitions(numPartitions);
+      if (partitions.isEmpty() && !membership.isStandby()) {
+        // need to do this check, because if we started streaming with an empty list, the DCP client would open streams for *all* partitions
+        throw new IllegalArgumentException("There are more workers than Couchbase vbuckets; this worker doesn't have any work to do.");
+      }
+      final PartitionController partitionController = new PartitionController(
+          dcpClient, checkpointService, workers, numPartitions, partitions);
+      checkpointService.init(numPartitions, () -> DcpHelper.getCurrentSeqnosAsMap(dcpClient, partitionController.partitions(), Duration.ofSeconds(5)));
+      checkpointService.startPollingHighSeqnos(seqnoExecutor);
+      breakdown.start(numPartitions, checkpointService, workers, checkpointExecutor);
 
-        dcpClient.initializeState(StreamFrom.BEGINNING, StreamTo.INFINITY).block();
-        initSessionState(dcpClient, checkpointService, partitions);
+      dcpClient.initializeState(StreamFrom.BEGINNING, StreamTo.INFINITY).block();
+      initSessionState(dcpClient, checkpointService, partitions);
 
-        checkpointExecutor.scheduleWithFixedDelay(checkpointService::save, 10, 10, SECONDS);
-        RuntimeHelper.addShutdownHook(saveCheckpoints);
+      checkpointExecutor.scheduleWithFixedDelay(checkpointService::save, 10, 10, SECONDS);
+      RuntimeHelper.addShutdownHook(saveCheckpoints);
 
+      if (membership.isStandby()) {
+        LOGGER.info("Standing by. Connections are open, but no partitions will stream until some are assigned.");
+      } else {
         try {
           LOGGER.debug("Opening DCP streams for partitions: {}", partitions);
           dcpClient.startStreaming(partitions).block();
@@ -205,50 +347,112 @@ public class ElasticsearchConnector extends AbstractCliCommand {
           ThrowableHelper.propagateCauseIfPossible(e, InterruptedException.class);
           throw e;
         }
+      }
 
-        // Start HTTP server *after* other setup is complete, so the metrics endpoint
-        // can be used as a "successful startup" probe.
-        httpServer.start();
-        if (config.metrics().httpPort() >= 0) {
-          LOGGER.info("Prometheus metrics available at http://localhost:{}/metrics/prometheus", httpServer.getBoundPort());
-          LOGGER.info("Dropwizard metrics available at http://localhost:{}/metrics/dropwizard?pretty", httpServer.getBoundPort());
-        } else {
-          LOGGER.info("Metrics HTTP server is disabled. Edit the [metrics] 'httpPort' config property to enable.");
+      partitionControllerListener.accept(partitionController);
+
+      // Start HTTP server *after* other setup is complete, so the metrics endpoint
+      // can be used as a "successful startup" probe.
+      final HttpServer httpServer = runtime.startHttpServer(config.metrics().httpPort(), config.metrics().httpCacheTtl());
+      if (config.metrics().httpPort() >= 0) {
+        statusHandlers.put(statusPath + "/workers", workers::getWorkerStatus);
+        statusHandlers.put(statusPath + "/partitions", checkpointService::getPartitionStatus);
+        statusHandlers.put(statusPath + "/dcp", () -> dcpStatus(config, partitionController));
+        statusHandlers.forEach(httpServer::addGetHandler);
+        if (config.metrics().adminEndpoints()) {
+          final TimeValue maxTimeout = config.elasticsearch().allDestinations().stream()
+              .map(destination -> maxBulkRequestTimeout(destination.bulkRequest().timeout()))
+              .min(Comparator.comparingLong(TimeValue::millis))
+              .get();
+          adminHandlers.put("/admin" + pipelinePath + "/bulkRequestLimits", body -> setBulkRequestLimits(workers, body, maxTimeout));
+          adminHandlers.forEach(httpServer::addPostHandler);
         }
+        statusServer = httpServer;
+
+        LOGGER.info("Prometheus metrics available at http://localhost:{}/metrics/prometheus", httpServer.getBoundPort());
+        LOGGER.info("Dropwizard metrics available at http://localhost:{}/metrics/dropwizard?pretty", httpServer.getBoundPort());
+        LOGGER.info("Worker status available at http://localhost:{}{}/workers?pretty", httpServer.getBoundPort(), statusPath);
+      } else {
+        LOGGER.info("Metrics HTTP server is disabled. Edit the [metrics] 'httpPort' config property to enable.");
+      }
 
-        LOGGER.info("Elasticsearch connector startup complete.");
+      LOGGER.info("Elasticsearch connector startup complete.");
 
-        fatalError = workers.awaitFatalError();
-        LOGGER.error("Terminating due to fatal error from worker", fatalError);
+      fatalError = workers.awaitFatalError();
+      LOGGER.error("Terminating due to fatal error from worker", fatalError);
 
-      } catch (InterruptedException shutdownRequest) {
-        LOGGER.info("Graceful shutdown requested. Saving checkpoints and cleaning up.");
-        checkpointService.save();
-        throw shutdownRequest;
+    } catch (InterruptedException shutdownRequest) {
+      LOGGER.info("Graceful shutdown requested. Saving checkpoints and cleaning up.");
+      checkpointService.save();
+      throw shutdownRequest;
 
-      } catch (Throwable t) {
-        LOGGER.error("Terminating due to fatal error during setup", t);
-        throw t;
+    } catch (Throwable t) {
+      LOGGER.error("Terminating due to fatal error during setup", t);
+      throw t;
 
-      } finally {
-        // If we get here it means there was a fatal exception, or the connector is running in distributed
-        // or test mode and a graceful shutdown was requested. Don't need the shutdown hook for any of those cases.
-        RuntimeHelper.removeShutdownHook(saveCheckpoints);
+    } finally {
+      // If we get here it means there was a fatal exception, or the connector is running in distributed
+      // or test mode and a graceful shutdown was requested. Don't need the shutdown hook for any of those cases.
+      RuntimeHelper.removeShutdownHook(saveCheckpoints);
 
-        checkpointExecutor.shutdown();
-        metricReporter.stop();
-        dcpClient.disconnect().block();
-        workers.close(); // to avoid buffer leak, must close *after* dcp client stops feeding it events
-        checkpointExecutor.awaitTermination(10, SECONDS);
-        cluster.disconnect();
-        env.shutdown(); // can't reuse, because connector config might have different SSL settings next time
+      if (statusServer != null) {
+        statusHandlers.forEach(statusServer::removeGetHandler);
+        adminHandlers.forEach(statusServer::removePostHandler);
       }
+      breakdown.close();
+      checkpointService.removeMetrics();
+      seqnoExecutor.shutdownNow();
+      checkpointExecutor.shutdown();
+      dcpClient.disconnect().block();
+      workers.close(); // to avoid buffer leak, must close *after* dcp client stops feeding it events
+      checkpointExecutor.awaitTermination(10, SECONDS);
+      // The Couchbase cluster, Elasticsearch client, and HTTP server belong to the runtime.
     }
 
     MILLISECONDS.sleep(500); // give stdout a chance to quiet down so the stack trace on stderr isn't interleaved with stdout.
     throw fatalError;
   }
 
+  /**
+   * Applies the bulk request limits from a request body in the same format as the
+   * [elasticsearch.bulkRequestLimits] config section. Limits not in the body are unchanged.
+   *
+   * @param maxTimeout largest timeout the pipeline's Elasticsearch clients support
+   * @return the limits now in effect, as JSON
+   */
+  private static String setBulkRequestLimits(ElasticsearchWorkerGroup workers, String requestBody, TimeValue maxTimeout) throws Exception {
+    final BulkRequestConfig limits = BulkRequestConfig.from(Toml.parse(requestBody), workers.getBulkRequestConfig());
+    if (limits.timeout().millis() > maxTimeout.millis()) {
+      // The client would give up on the connection before Elasticsearch gave up on the request.
+      throw new IllegalArgumentException("timeout must be <= " + maxTimeout
+          + " while the connector is running; a larger timeout requires a restart.");
+    }
+    LOGGER.info("Changing bulk request limits at runtime: {}", limits);
+    workers.setBulkRequestConfig(limits, BULK_REQUEST_LIMITS_TIMEOUT);
+
+    final Map<String, Object> result = new LinkedHashMap<>();
+    result.put("actions", limits.maxActions());
+    result.put("minActions", limits.minActions());
+    result.put("bytes", limits.maxBytes().toString());
+    result.put("linger", limits.linger().toString());
+    result.put("timeout", limits.timeout().toString());
+    result.put("concurrentRequests", limits.concurrentRequests());
+    return new ObjectMapper().writeValueAsString(result);
+  }
+
+  /**
+   * Returns how much DCP data the connector is holding, for diagnostics.
+   */
+  private static Map<String, Object> dcpStatus(ConnectorConfig config, PartitionController partitionController) {
+    final Map<String, Object> status = new LinkedHashMap<>();
+    status.put("partitions", partitionController.partitions());
+    status.put("flowControlBufferBytes", config.couchbase().dcp().flowControlBuffer().getBytes());
+    // Counted across all pipelines in this process.
+    status.put("unreleasedEvents", Event.getUnreleasedCount());
+    status.put("unreleasedBytes", Event.getUnreleasedBytes());
+    return status;
+  }
+
   private static void validateConfig(Version elasticsearchVersion, ElasticsearchConfig config) {
     // The default/example config is for Elasticsearch 6, and isn't 100% compatible with ES 5.x.
     // Rather than spamming the log with indexing errors, let's do a preflight check.
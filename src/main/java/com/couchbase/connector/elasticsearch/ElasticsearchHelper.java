@@ -120,9 +120,25 @@ public class ElasticsearchHelper {
     return timeValue.timeUnit().toMillis(timeValue.duration());
   }
 
+  // Gives Elasticsearch time to report a bulk request timeout before the client stops waiting.
+  private static final long SOCKET_TIMEOUT_MARGIN_MILLIS = SECONDS.toMillis(3);
+
+  private static long socketTimeoutMillis(TimeValue bulkRequestTimeout) {
+    return Math.max(SECONDS.toMillis(60), toMillis(bulkRequestTimeout) + SOCKET_TIMEOUT_MARGIN_MILLIS);
+  }
+
+  /**
+   * Returns the largest bulk request timeout supported by a client created
+   * with the given bulk request timeout. The client's socket timeout can't change
+   * after it's created, so a larger timeout requires a new client.
+   */
+  public static TimeValue maxBulkRequestTimeout(TimeValue bulkRequestTimeout) {
+    return TimeValue.timeValueMillis(socketTimeoutMillis(bulkRequestTimeout) - SOCKET_TIMEOUT_MARGIN_MILLIS);
+  }
+
   public static RestHighLevelClient newElasticsearchClient(List<HttpHost> hosts, String username, String password, boolean secureConnection, Supplier<KeyStore> trustStore, ClientCertConfig clientCert, AwsConfig aws, TimeValue bulkRequestTimeout) throws Exception {
     final int connectTimeoutMillis = (int) SECONDS.toMillis(5);
-    final int socketTimeoutMillis = (int) Math.max(SECONDS.toMillis(60), toMillis(bulkRequestTimeout) + SECONDS.toMillis(3));
+    final int socketTimeoutMillis = (int) socketTimeoutMillis(bulkRequestTimeout);
     LOGGER.info("Elasticsearch client connect timeout = {}ms; socket timeout={}ms", connectTimeoutMillis, socketTimeoutMillis);
 
     final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
@@ -131,9 +147,14 @@ public class ElasticsearchHelper {
 
     final SSLContext sslContext = !secureConnection ? null : newSslContext(trustStore.get(), clientCert);
 
+    final NodeHealthTracker nodeHealth = new NodeHealthTracker(hosts);
+
     final RestClientBuilder builder = RestClient.builder(Iterables.toArray(hosts, HttpHost.class))
+        .setNodeSelector(nodeHealth)
         .setHttpClientConfigCallback(httpClientBuilder -> {
           httpClientBuilder.setSSLContext(sslContext);
+          httpClientBuilder.addInterceptorFirst(nodeHealth.requestInterceptor());
+          httpClientBuilder.addInterceptorLast(nodeHealth.responseInterceptor());
           if (!clientCert.use()) {
             httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
           }
@@ -148,6 +169,7 @@ public class ElasticsearchHelper {
           @Override
           public void onFailure(Node host) {
             Metrics.elasticsearchHostOffline().increment();
+            nodeHealth.onFailure(host);
           }
         });
 
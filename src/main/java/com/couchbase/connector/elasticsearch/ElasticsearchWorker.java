@@ -16,19 +16,26 @@
 
 package com.couchbase.connector.elasticsearch;
 
+import com.couchbase.connector.config.es.BulkRequestConfig;
 import com.couchbase.connector.dcp.Event;
 import com.couchbase.connector.elasticsearch.io.ElasticsearchWriter;
 import org.elasticsearch.common.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 public class ElasticsearchWorker implements AutoCloseable {
   private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchWorker.class);
@@ -37,11 +44,23 @@ public class ElasticsearchWorker implements AutoCloseable {
   private final Thread thread;
   private final ErrorListener errorHandler;
   private final ElasticsearchWriter writer;
-  private final BlockingQueue<Event> eventQueue = new LinkedBlockingQueue<>();
+  // Replaces queued versions of a document with newer ones, so a hot document modified many times
+  // while a bulk request is in flight results in a single write.
+  private final CoalescingEventQueue eventQueue;
   private final BlockingQueue<Throwable> fatalErrorQueue;
 
+  // Tasks to run on the worker thread in between bulk requests.
+  private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+  // Set when the worker thread stops. Tasks submitted after that are cancelled instead of run.
+  private volatile boolean stopped;
+
+  // Set when the worker is stopped because it's no longer needed, so stopping isn't reported as a failure.
+  private volatile boolean retired;
+
   private ElasticsearchWorker(ElasticsearchWriter writer, BlockingQueue<Throwable> fatalErrorQueue, @Nullable ErrorListener errorListener) {
     this.writer = requireNonNull(writer);
+    this.eventQueue = new CoalescingEventQueue(writer::canSupersede);
     this.errorHandler = errorListener == null ? ErrorListener.NOOP : errorListener;
     this.fatalErrorQueue = requireNonNull(fatalErrorQueue);
     this.thread = new Thread(doRun(), "es-worker-" + nameCounter.getAndIncrement());
@@ -65,43 +84,201 @@ public class ElasticsearchWorker implements AutoCloseable {
     return eventQueue.size();
   }
 
+  /**
+   * For each queued event, increments the count at the index of the event's partition.
+   */
+  public void addQueueSizesByPartition(int[] counts) {
+    eventQueue.addSizesByPartition(counts);
+  }
+
+  public long getSubmittedCount() {
+    return eventQueue.getSubmittedCount();
+  }
+
+  public long getCoalescedCount() {
+    return eventQueue.getCoalescedCount();
+  }
+
+  public int getRetryQueueSize() {
+    return writer.getRetryQueueSize();
+  }
+
   public long getCurrentRequestNanos() {
     return writer.getCurrentRequestNanos();
   }
 
+  /**
+   * Returns a snapshot of what the worker is doing, for diagnostics.
+   * Reads only values the worker publishes for other threads, so it never waits for the worker.
+   */
+  public Map<String, Object> getStatus() {
+    final Map<String, Object> status = new LinkedHashMap<>();
+    status.put("thread", thread.getName());
+    status.put("threadState", thread.getState());
+    status.put("queueSize", getQueueSize());
+    status.put("bufferedActions", writer.getBufferedActions());
+    status.put("bufferedBytes", writer.getBufferedBytes());
+
+    final long requestNanos = writer.getCurrentRequestNanos();
+    if (requestNanos != 0) {
+      final Map<String, Object> request = new LinkedHashMap<>();
+      request.put("ageMillis", NANOSECONDS.toMillis(requestNanos));
+      request.put("actions", writer.getCurrentRequestActions());
+      request.put("attempt", writer.getCurrentRequestAttempt());
+      status.put("requestInProgress", request);
+    }
+
+    status.put("retryQueueSize", getRetryQueueSize());
+    final long nanosUntilRetry = writer.getNanosUntilRetry();
+    if (nanosUntilRetry != Long.MAX_VALUE) {
+      status.put("retryDueInMillis", NANOSECONDS.toMillis(nanosUntilRetry));
+    }
+    return status;
+  }
+
+  /**
+   * Writes all queued and buffered events, and commits their checkpoints.
+   * Then discards any events for the given vbuckets that are waiting to be retried.
+   *
+   * @return a future that completes when the worker thread has written the events.
+   */
+  public CompletableFuture<Void> handOff(Set<Integer> vbuckets) {
+    return runOnWorkerThread(() -> {
+      Event event;
+      while ((event = eventQueue.poll()) != null) {
+        writer.write(event);
+      }
+      writer.handOff(vbuckets);
+    });
+  }
+
+  /**
+   * Applies new bulk request limits once the current bulk request (if any) is done.
+   */
+  public CompletableFuture<Void> setBulkRequestConfig(BulkRequestConfig config) {
+    return runOnWorkerThread(() -> writer.setBulkRequestConfig(config));
+  }
+
+  /**
+   * Writes all queued and buffered events, and retries failed writes until they succeed
+   * or the deadline passes. The caller must make sure no more events are submitted.
+   *
+   * @param deadlineNanos when to give up, in terms of {@link System#nanoTime()}
+   * @return a future that completes when everything is written, or fails with
+   * TimeoutException if some writes were still waiting to be retried at the deadline.
+   */
+  public CompletableFuture<Void> drain(long deadlineNanos) {
+    return runOnWorkerThread(() -> {
+      Event event;
+      while ((event = eventQueue.poll()) != null) {
+        writer.write(event);
+      }
+      if (!writer.drain(deadlineNanos)) {
+        throw new TimeoutException(writer.getRetryQueueSize() + " actions still waiting to be retried.");
+      }
+    });
+  }
+
+  private interface WorkerTask {
+    void run() throws Exception;
+  }
+
+  private static class Task {
+    private final WorkerTask action;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    private Task(WorkerTask action) {
+      this.action = requireNonNull(action);
+    }
+
+    private void run() {
+      try {
+        action.run();
+        result.complete(null);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // so the worker loop sees it and terminates
+        result.completeExceptionally(e);
+      } catch (Throwable t) {
+        result.completeExceptionally(t);
+      }
+    }
+  }
+
+  private CompletableFuture<Void> runOnWorkerThread(WorkerTask action) {
+    final Task task = new Task(action);
+    tasks.add(task);
+    if (stopped) {
+      // The worker thread might have stopped before seeing the task.
+      cancelTasks();
+    } else {
+      eventQueue.wakeUp();
+    }
+    return task.result;
+  }
+
+  private void runTasks() {
+    Task task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  /**
+   * Fails the tasks that are still waiting, because the writer is closed and can't run them.
+   */
+  private void cancelTasks() {
+    Task task;
+    while ((task = tasks.poll()) != null) {
+      task.result.completeExceptionally(new CancellationException("Elasticsearch worker stopped."));
+    }
+  }
+
   private Runnable doRun() {
     return () -> {
       try {
         while (!Thread.interrupted()) {
 
-          // Wait for the next event, then grab as many as are immediately available
-          Event event = eventQueue.take();
-          writer.write(event);
-          while ((event = eventQueue.poll()) != null) {
+          // Wait for the next event (or until it's time to send a partial batch
+          // or retry failed writes), then grab as many as are immediately available
+          Event event = awaitEvent();
+          if (event != null) {
             writer.write(event);
+            while ((event = eventQueue.poll()) != null) {
+              writer.write(event);
+            }
           }
 
-          writer.flush();
+          writer.flushIfDue();
+          runTasks();
         }
 
       } catch (Throwable t) {
         if (!isNormalTermination(t)) {
           LOGGER.warn("Error in Elasticsearch worker thread", t);
         }
-        fatalErrorQueue.offer(t);
+        if (!retired) {
+          fatalErrorQueue.offer(t);
+        }
 
       } finally {
-        drainAndRelease(eventQueue);
+        stopped = true;
+        eventQueue.clearAndRelease();
         writer.close();
+        cancelTasks();
         LOGGER.info("{} stopped.", Thread.currentThread());
       }
     };
   }
 
-  private static void drainAndRelease(BlockingQueue<Event> drainMe) {
-    List<Event> releaseMe = new ArrayList<>(drainMe.size());
-    drainMe.drainTo(releaseMe);
-    releaseMe.forEach(Event::release);
+  /**
+   * Returns the next event, or null if the writer became due to flush
+   * before an event arrived.
+   */
+  private Event awaitEvent() throws InterruptedException {
+    final long nanosUntilFlushDue = writer.getNanosUntilFlushDue();
+    return nanosUntilFlushDue == Long.MAX_VALUE
+        ? eventQueue.take()
+        : eventQueue.poll(nanosUntilFlushDue, NANOSECONDS);
   }
 
   private boolean isNormalTermination(Throwable t) {
@@ -113,6 +290,14 @@ public class ElasticsearchWorker implements AutoCloseable {
     thread.interrupt();
   }
 
+  /**
+   * Stops the worker without reporting a fatal error. Call {@link #drain} first.
+   */
+  public void retire() {
+    retired = true;
+    close();
+  }
+
   public boolean join(long millis) throws InterruptedException {
     thread.join(millis);
     return !thread.isAlive();
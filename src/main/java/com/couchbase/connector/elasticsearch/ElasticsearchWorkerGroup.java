@@ -20,6 +20,7 @@ import com.couchbase.connector.config.es.BulkRequestConfig;
 import com.couchbase.connector.dcp.CheckpointService;
 import com.couchbase.connector.dcp.Event;
 import com.couchbase.connector.elasticsearch.io.ElasticsearchWriter;
+import com.couchbase.connector.elasticsearch.io.RejectionLogWriter;
 import com.couchbase.connector.elasticsearch.io.RequestFactory;
 import com.google.common.collect.ImmutableList;
 import org.elasticsearch.client.RestHighLevelClient;
@@ -28,41 +29,201 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.StampedLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.propagateIfPossible;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class ElasticsearchWorkerGroup implements Closeable {
   private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchWorkerGroup.class);
 
-  private final ImmutableList<ElasticsearchWorker> workers;
+  // How long new events may wait while the old workers finish, when changing the number of workers.
+  // Events wait in the DCP client's I/O thread, so this must be short.
+  private static final long PAUSED_DRAIN_NANOS = SECONDS.toNanos(2);
+
+  // Workers for each destination cluster, in the same order as the clients passed to the constructor.
+  // Each destination has its own workers, so a slow cluster doesn't hold up writes to the others.
+  // Replaced when the number of concurrent requests changes.
+  private volatile ImmutableList<ImmutableList<ElasticsearchWorker>> destinations;
+
+  // All workers for all destinations.
+  private volatile ImmutableList<ElasticsearchWorker> workers;
+
+  private volatile int workersPerDestination;
+
+  private volatile BulkRequestConfig bulkRequestConfig;
+
+  // Submitting holds a read lock. Replacing the workers holds the write lock,
+  // so no events arrive while the old workers finish their work.
+  private final StampedLock submitLock = new StampedLock();
+
+  private final List<RestHighLevelClient> clients;
+  private final CheckpointService checkpointService;
+  private final RequestFactory requestFactory;
+  private final ErrorListener errorListener;
+  private final MetricBreakdown breakdown;
+
+  // One rejection log writer for each destination cluster, shared by the destination's workers.
+  private final ImmutableList<RejectionLogWriter> rejectionLogs;
 
   // Workers communicate failures by writing them to this queue
   private final BlockingQueue<Throwable> fatalErrorQueue = new LinkedBlockingQueue<>();
 
+  private final PartitionLoadTracker loadTracker = new PartitionLoadTracker();
+
   public ElasticsearchWorkerGroup(RestHighLevelClient client,
                                   CheckpointService checkpointService,
                                   RequestFactory requestFactory,
                                   ErrorListener errorListener,
                                   BulkRequestConfig bulkRequestConfig) {
+    this(ImmutableList.of(client), checkpointService, requestFactory, errorListener, bulkRequestConfig, MetricBreakdown.DISABLED);
+  }
+
+  /**
+   * Creates a group that writes every event to each of the given clusters.
+   * The checkpoint service must have one track per cluster, and an event is acknowledged
+   * only after it has been written to all clusters.
+   *
+   * @param clients one client for each destination cluster
+   * @param breakdown receives the details of every successful write
+   */
+  public ElasticsearchWorkerGroup(List<RestHighLevelClient> clients,
+                                  CheckpointService checkpointService,
+                                  RequestFactory requestFactory,
+                                  ErrorListener errorListener,
+                                  BulkRequestConfig bulkRequestConfig,
+                                  MetricBreakdown breakdown) {
+    checkArgument(!clients.isEmpty(), "must have at least one destination");
+    this.clients = ImmutableList.copyOf(clients);
+    this.checkpointService = checkpointService;
+    this.requestFactory = requestFactory;
+    this.errorListener = errorListener;
+    this.breakdown = breakdown;
+
+    final ImmutableList.Builder<RejectionLogWriter> rejectionLogsBuilder = ImmutableList.builder();
+    for (int track = 0; track < clients.size(); track++) {
+      rejectionLogsBuilder.add(new RejectionLogWriter(clients.get(track), requestFactory.getRejectLogConfig(), "rejection-log-" + track, fatalErrorQueue));
+    }
+    this.rejectionLogs = rejectionLogsBuilder.build();
+
+    startWorkers(bulkRequestConfig);
+  }
+
+  private void startWorkers(BulkRequestConfig bulkRequestConfig) {
     checkArgument(bulkRequestConfig.concurrentRequests() > 0, "must have at least one worker");
 
-    final ImmutableList.Builder<ElasticsearchWorker> workersBuilder = ImmutableList.builder();
-    for (int i = 0; i < bulkRequestConfig.concurrentRequests(); i++) {
-      workersBuilder.add(ElasticsearchWorker.newWorker(
-          new ElasticsearchWriter(client, checkpointService, requestFactory, bulkRequestConfig), fatalErrorQueue, errorListener));
+    final ImmutableList.Builder<ImmutableList<ElasticsearchWorker>> destinationsBuilder = ImmutableList.builder();
+    for (int track = 0; track < clients.size(); track++) {
+      final ImmutableList.Builder<ElasticsearchWorker> workersBuilder = ImmutableList.builder();
+      for (int i = 0; i < bulkRequestConfig.concurrentRequests(); i++) {
+        workersBuilder.add(ElasticsearchWorker.newWorker(
+            new ElasticsearchWriter(clients.get(track), checkpointService, track, requestFactory, rejectionLogs.get(track), bulkRequestConfig, breakdown), fatalErrorQueue, errorListener));
+      }
+      destinationsBuilder.add(workersBuilder.build());
     }
-    this.workers = workersBuilder.build();
+    this.destinations = destinationsBuilder.build();
+    this.workers = destinations.stream()
+        .flatMap(List::stream)
+        .collect(ImmutableList.toImmutableList());
+    this.workersPerDestination = bulkRequestConfig.concurrentRequests();
+    this.bulkRequestConfig = bulkRequestConfig;
+  }
+
+  /**
+   * Returns the bulk request limits currently in effect.
+   */
+  public BulkRequestConfig getBulkRequestConfig() {
+    return bulkRequestConfig;
   }
 
   public void submit(Event e) {
-    // Events for the same document ID must always be handled by the same worker.
-    final int workerIndex = e.getVbucket() % workers.size();
-    DocumentLifecycle.logReceivedFromCouchbase(e, workerIndex);
-    workers.get(workerIndex).submit(e);
+    final long stamp = submitLock.readLock();
+    try {
+      // Events for the same document ID must always be handled by the same worker.
+      final int workerIndex = e.getVbucket() % workersPerDestination;
+      DocumentLifecycle.logReceivedFromCouchbase(e, workerIndex);
+      loadTracker.record(e.getVbucket());
+
+      // Each destination's worker releases the event when done with it.
+      final List<ImmutableList<ElasticsearchWorker>> destinations = this.destinations;
+      e.retain(destinations.size() - 1);
+      for (List<ElasticsearchWorker> destination : destinations) {
+        destination.get(workerIndex).submit(e);
+      }
+    } finally {
+      submitLock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Applies new bulk request limits without restarting the connector.
+   * <p>
+   * If the number of concurrent requests changed, the workers are replaced. The old workers
+   * write everything they have, including writes waiting to be retried, while new events
+   * keep arriving. Then new events wait (briefly) while the old workers write whatever
+   * arrived in the meantime, and the partitions are spread over the new workers.
+   *
+   * @throws TimeoutException if the old workers did not finish in time. They keep running
+   * with the old limits, and nothing is lost.
+   */
+  public synchronized void setBulkRequestConfig(BulkRequestConfig config, Duration timeout)
+      throws InterruptedException, TimeoutException, ExecutionException {
+    if (config.concurrentRequests() == workersPerDestination) {
+      final CompletableFuture<?>[] futures = workers.stream()
+          .map(w -> w.setBulkRequestConfig(config))
+          .toArray(CompletableFuture[]::new);
+      CompletableFuture.allOf(futures).get(timeout.toMillis(), MILLISECONDS);
+      this.bulkRequestConfig = config;
+      LOGGER.info("Applied new bulk request limits: {}", config);
+      return;
+    }
+
+    LOGGER.info("Changing number of workers per destination from {} to {}; waiting for the current workers to finish.",
+        workersPerDestination, config.concurrentRequests());
+    final long deadlineNanos = System.nanoTime() + timeout.toNanos();
+    final List<ElasticsearchWorker> oldWorkers = workers;
+
+    // Most of the writing happens here, without holding up new events.
+    drain(oldWorkers, deadlineNanos);
+
+    final long stamp = submitLock.writeLock();
+    try {
+      // Only events that arrived during the first drain are left.
+      drain(oldWorkers, Math.min(deadlineNanos, System.nanoTime() + PAUSED_DRAIN_NANOS));
+
+      oldWorkers.forEach(ElasticsearchWorker::retire);
+      startWorkers(config);
+      LOGGER.info("Applied new bulk request limits: {}", config);
+
+    } finally {
+      submitLock.unlockWrite(stamp);
+    }
+  }
+
+  private static void drain(List<ElasticsearchWorker> workers, long deadlineNanos)
+      throws InterruptedException, TimeoutException, ExecutionException {
+    final CompletableFuture<?>[] futures = workers.stream()
+        .map(w -> w.drain(deadlineNanos))
+        .toArray(CompletableFuture[]::new);
+    try {
+      CompletableFuture.allOf(futures).get(Math.max(0, deadlineNanos - System.nanoTime()), NANOSECONDS);
+    } catch (ExecutionException e) {
+      propagateIfPossible(e.getCause(), TimeoutException.class);
+      throw e;
+    }
   }
 
   public Throwable awaitFatalError() throws InterruptedException {
@@ -77,6 +238,62 @@ public class ElasticsearchWorkerGroup implements Closeable {
         .sum();
   }
 
+  /**
+   * Returns the number of queued events from each partition, summed over all destinations.
+   */
+  public int[] getQueueSizeByPartition(int numPartitions) {
+    final int[] result = new int[numPartitions];
+    for (ElasticsearchWorker w : workers) {
+      w.addQueueSizesByPartition(result);
+    }
+    return result;
+  }
+
+  /**
+   * Writes all queued and buffered events so their checkpoints are committed,
+   * then forgets the given vbuckets. Blocks until every worker has written its events.
+   *
+   * @throws TimeoutException if the events were not written before the timeout expired.
+   * The caller should assume some events for the vbuckets might still be written.
+   */
+  public synchronized void handOff(Set<Integer> vbuckets, Duration timeout) throws InterruptedException, TimeoutException, ExecutionException {
+    final CompletableFuture<?>[] futures = workers.stream()
+        .map(w -> w.handOff(vbuckets))
+        .toArray(CompletableFuture[]::new);
+    CompletableFuture.allOf(futures).get(timeout.toMillis(), MILLISECONDS);
+    loadTracker.reset(vbuckets);
+  }
+
+  /**
+   * Returns the recent rate (events per second) at which each vbucket has delivered events.
+   */
+  public Map<Integer, Double> getEventRates() {
+    return loadTracker.rates();
+  }
+
+  /**
+   * Returns the fraction of submitted events that were released without being written
+   * because a newer version of the same document arrived while they were queued.
+   */
+  public double getCoalesceRatio() {
+    final long submitted = workers.stream()
+        .mapToLong(ElasticsearchWorker::getSubmittedCount)
+        .sum();
+    final long coalesced = workers.stream()
+        .mapToLong(ElasticsearchWorker::getCoalescedCount)
+        .sum();
+    return submitted == 0 ? 0 : (double) coalesced / submitted;
+  }
+
+  /**
+   * Returns the number of actions waiting to be retried after a temporary failure.
+   */
+  public long getRetryQueueSize() {
+    return workers.stream()
+        .mapToLong(ElasticsearchWorker::getRetryQueueSize)
+        .sum();
+  }
+
   /**
    * Returns the duration in milliseconds of the active request that started the longest time ago,
    * or zero if there are no active requests.
@@ -88,9 +305,35 @@ public class ElasticsearchWorkerGroup implements Closeable {
         .orElseThrow(() -> new AssertionError("There should be at least one worker.")));
   }
 
+  /**
+   * Returns the number of rejection log entries waiting to be written, for all destinations.
+   */
+  public int getRejectionLogQueueSize() {
+    return rejectionLogs.stream()
+        .mapToInt(RejectionLogWriter::getQueueSize)
+        .sum();
+  }
+
+  /**
+   * Returns a snapshot of each worker's state, for diagnostics. Never waits for the workers.
+   */
+  public List<Map<String, Object>> getWorkerStatus() {
+    final List<ImmutableList<ElasticsearchWorker>> destinations = this.destinations;
+    final List<Map<String, Object>> result = new ArrayList<>();
+    for (int destination = 0; destination < destinations.size(); destination++) {
+      for (ElasticsearchWorker worker : destinations.get(destination)) {
+        final Map<String, Object> status = worker.getStatus();
+        status.put("destination", destination);
+        result.add(status);
+      }
+    }
+    return result;
+  }
+
   @Override
   public void close() {
     final TimeValue timeout = new TimeValue(3, SECONDS);
+    final List<ElasticsearchWorker> workers = this.workers;
     for (ElasticsearchWorker w : workers) {
       w.close();
     }
@@ -104,5 +347,6 @@ public class ElasticsearchWorkerGroup implements Closeable {
       Thread.currentThread().interrupt();
       LOGGER.warn("Interrupted while waiting for workers to stop.");
     }
+    rejectionLogs.forEach(RejectionLogWriter::close);
   }
 }
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.connector.config.common.BreakdownConfig;
+import com.couchbase.connector.config.common.ImmutableBreakdownConfig;
+import com.couchbase.connector.dcp.CheckpointService;
+import com.google.common.collect.ImmutableList;
+import io.micrometer.core.instrument.Tags;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Optional metrics broken down by Elasticsearch index and by partition group,
+ * for finding out which index or which partitions are falling behind.
+ * <p>
+ * To keep the number of time series bounded, only the busiest indexes get their own
+ * series; the rest are combined under the index name "_other". Writes are counted as
+ * they happen. At a fixed interval, the gauges are updated with the rates and latencies
+ * observed since the previous update, and the busiest indexes are chosen again.
+ * <p>
+ * Thread-safe.
+ */
+public class MetricBreakdown implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricBreakdown.class);
+
+  public static final MetricBreakdown DISABLED = new MetricBreakdown(ImmutableBreakdownConfig.builder()
+      .topIndexes(0)
+      .partitionGroups(0)
+      .interval(TimeValue.timeValueMinutes(1))
+      .build(), Tags.empty());
+
+  private static final String OTHER_INDEXES = "_other";
+
+  // Couchbase buckets never have more partitions than this.
+  private static final int MAX_PARTITIONS = 1024;
+
+  private static final List<GaugeDef> INDEX_GAUGES = ImmutableList.of(
+      new GaugeDef("index.write.rate", "Documents written to this Elasticsearch index per second.", s -> s.rate),
+      new GaugeDef("index.latency.mean.seconds", "Mean time between receiving a change and writing it to this Elasticsearch index.", s -> s.meanLatencySeconds),
+      new GaugeDef("index.latency.max.seconds", "Longest time between receiving a change and writing it to this Elasticsearch index.", s -> s.maxLatencySeconds));
+
+  private static final List<GaugeDef> PARTITION_GROUP_GAUGES = ImmutableList.of(
+      new GaugeDef("partition.group.write.rate", "Documents from these partitions written per second.", s -> s.rate),
+      new GaugeDef("partition.group.latency.mean.seconds", "Mean time between receiving a change from these partitions and writing it to Elasticsearch.", s -> s.meanLatencySeconds),
+      new GaugeDef("partition.group.latency.max.seconds", "Longest time between receiving a change from these partitions and writing it to Elasticsearch.", s -> s.maxLatencySeconds),
+      new GaugeDef("partition.group.backlog", "Estimated Couchbase changes in these partitions yet to be processed by this node.", s -> s.backlog),
+      new GaugeDef("partition.group.write.queue", "Document events from these partitions currently buffered in memory.", s -> s.queued));
+
+  private final int topIndexes;
+  private final int partitionGroups;
+  private final TimeValue interval;
+  private final Tags tags;
+
+  // Limits the number of indexes tracked between updates, in case there are very many.
+  private final int maxTrackedIndexes;
+  private final Map<String, WriteStats> indexStats = new ConcurrentHashMap<>();
+  private final WriteStats untrackedIndexStats = new WriteStats();
+  private final WriteStats[] partitionStats;
+
+  // Guarded by "this"
+  private final Map<String, Series> indexSeries = new HashMap<>();
+  private final List<Series> partitionGroupSeries = new ArrayList<>();
+  private long lastUpdateNanos = System.nanoTime();
+  private int numPartitions;
+  private CheckpointService checkpointService;
+  private ElasticsearchWorkerGroup workers;
+
+  private ScheduledFuture<?> updateTask;
+
+  /**
+   * @param tags added to every gauge, so breakdowns from different pipelines can be told apart
+   */
+  public MetricBreakdown(BreakdownConfig config, Tags tags) {
+    this.topIndexes = config.topIndexes();
+    this.partitionGroups = config.partitionGroups();
+    this.interval = config.interval();
+    this.tags = requireNonNull(tags);
+    this.maxTrackedIndexes = topIndexes * 10;
+
+    this.partitionStats = new WriteStats[partitionGroups > 0 ? MAX_PARTITIONS : 0];
+    for (int i = 0; i < partitionStats.length; i++) {
+      partitionStats[i] = new WriteStats();
+    }
+  }
+
+  /**
+   * Records a successful write. Called by the Elasticsearch writers.
+   */
+  public void recordWrite(int partition, String index, long latencyNanos) {
+    if (topIndexes > 0) {
+      indexStats(index).record(latencyNanos);
+    }
+    if (partition < partitionStats.length) {
+      partitionStats[partition].record(latencyNanos);
+    }
+  }
+
+  private WriteStats indexStats(String index) {
+    final WriteStats result = indexStats.get(index);
+    if (result != null) {
+      return result;
+    }
+    return indexStats.size() >= maxTrackedIndexes
+        ? untrackedIndexStats
+        : indexStats.computeIfAbsent(index, key -> new WriteStats());
+  }
+
+  /**
+   * Registers the gauges and starts updating them on the given executor.
+   * Does nothing if the breakdown is disabled.
+   */
+  public synchronized void start(int numPartitions, CheckpointService checkpointService,
+                                 ElasticsearchWorkerGroup workers, ScheduledExecutorService executor) {
+    if (topIndexes == 0 && partitionGroups == 0) {
+      return;
+    }
+
+    this.numPartitions = numPartitions;
+    this.checkpointService = requireNonNull(checkpointService);
+    this.workers = requireNonNull(workers);
+
+    final int groups = Math.min(partitionGroups, numPartitions);
+    for (int g = 0; g < groups; g++) {
+      final int first = g * numPartitions / groups;
+      final int last = (g + 1) * numPartitions / groups - 1;
+      final Series series = new Series(tags.and("partitions", first + "-" + last), first, last);
+      series.register(PARTITION_GROUP_GAUGES);
+      partitionGroupSeries.add(series);
+    }
+
+    LOGGER.info("Updating metrics broken down by {} busiest indexes and {} partition groups every {}",
+        topIndexes, groups, interval);
+    updateTask = executor.scheduleWithFixedDelay(this::update, interval.millis(), interval.millis(), MILLISECONDS);
+  }
+
+  private synchronized void update() {
+    // Don't let an exception cancel future updates.
+    try {
+      final long now = System.nanoTime();
+      final double elapsedSeconds = Math.max(1e-3, (now - lastUpdateNanos) / (double) SECONDS.toNanos(1));
+      lastUpdateNanos = now;
+
+      if (topIndexes > 0) {
+        updateIndexes(elapsedSeconds);
+      }
+      if (!partitionGroupSeries.isEmpty()) {
+        updatePartitionGroups(elapsedSeconds);
+      }
+    } catch (Throwable t) {
+      LOGGER.warn("Failed to update metrics breakdown", t);
+    }
+  }
+
+  private void updateIndexes(double elapsedSeconds) {
+    final Map<String, Snapshot> snapshots = new HashMap<>();
+    final Iterator<Map.Entry<String, WriteStats>> i = indexStats.entrySet().iterator();
+    while (i.hasNext()) {
+      final Map.Entry<String, WriteStats> entry = i.next();
+      final Snapshot snapshot = entry.getValue().snapshot();
+      if (snapshot.count == 0) {
+        i.remove(); // idle; make room for another index
+      } else {
+        snapshots.put(entry.getKey(), snapshot);
+      }
+    }
+
+    final List<String> busiest = snapshots.entrySet().stream()
+        .sorted(Comparator.comparingLong((Map.Entry<String, Snapshot> e) -> e.getValue().count).reversed())
+        .limit(topIndexes)
+        .map(Map.Entry::getKey)
+        .collect(toList());
+
+    Snapshot other = untrackedIndexStats.snapshot();
+    for (Map.Entry<String, Snapshot> entry : snapshots.entrySet()) {
+      if (!busiest.contains(entry.getKey())) {
+        other = other.plus(entry.getValue());
+      }
+    }
+
+    // Indexes that are no longer among the busiest lose their series.
+    final Iterator<Map.Entry<String, Series>> s = indexSeries.entrySet().iterator();
+    while (s.hasNext()) {
+      final Map.Entry<String, Series> entry = s.next();
+      if (!entry.getKey().equals(OTHER_INDEXES) && !busiest.contains(entry.getKey())) {
+        entry.getValue().unregister(INDEX_GAUGES);
+        s.remove();
+      }
+    }
+
+    for (String index : busiest) {
+      indexSeries(index).update(snapshots.get(index), elapsedSeconds);
+    }
+    indexSeries(OTHER_INDEXES).update(other, elapsedSeconds);
+  }
+
+  private Series indexSeries(String index) {
+    return indexSeries.computeIfAbsent(index, key -> {
+      final Series series = new Series(tags.and("index", key), 0, -1);
+      series.register(INDEX_GAUGES);
+      return series;
+    });
+  }
+
+  private void updatePartitionGroups(double elapsedSeconds) {
+    final Map<Integer, Long> backlog = checkpointService.getLocalBacklogByPartition();
+    final int[] queued = workers.getQueueSizeByPartition(numPartitions);
+
+    for (Series series : partitionGroupSeries) {
+      Snapshot snapshot = Snapshot.EMPTY;
+      long groupBacklog = 0;
+      long groupQueued = 0;
+      for (int p = series.firstPartition; p <= series.lastPartition; p++) {
+        snapshot = snapshot.plus(partitionStats[p].snapshot());
+        groupBacklog += backlog.getOrDefault(p, 0L);
+        groupQueued += queued[p];
+      }
+      series.update(snapshot, elapsedSeconds);
+      series.backlog = groupBacklog;
+      series.queued = groupQueued;
+    }
+  }
+
+  /**
+   * Stops updating the gauges, and removes them.
+   */
+  @Override
+  public synchronized void close() {
+    if (updateTask != null) {
+      updateTask.cancel(false);
+      updateTask = null;
+    }
+    indexSeries.values().forEach(s -> s.unregister(INDEX_GAUGES));
+    indexSeries.clear();
+    partitionGroupSeries.forEach(s -> s.unregister(PARTITION_GROUP_GAUGES));
+    partitionGroupSeries.clear();
+  }
+
+  /**
+   * Counts writes between updates.
+   */
+  private static class WriteStats {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    void record(long latencyNanos) {
+      count.increment();
+      totalLatencyNanos.add(latencyNanos);
+      maxLatencyNanos.accumulate(latencyNanos);
+    }
+
+    /**
+     * Returns the stats recorded since the previous snapshot.
+     */
+    Snapshot snapshot() {
+      return new Snapshot(count.sumThenReset(), totalLatencyNanos.sumThenReset(), maxLatencyNanos.getThenReset());
+    }
+  }
+
+  private static class Snapshot {
+    static final Snapshot EMPTY = new Snapshot(0, 0, 0);
+
+    final long count;
+    final long totalLatencyNanos;
+    final long maxLatencyNanos;
+
+    Snapshot(long count, long totalLatencyNanos, long maxLatencyNanos) {
+      this.count = count;
+      this.totalLatencyNanos = totalLatencyNanos;
+      this.maxLatencyNanos = maxLatencyNanos;
+    }
+
+    Snapshot plus(Snapshot other) {
+      return new Snapshot(
+          count + other.count,
+          totalLatencyNanos + other.totalLatencyNanos,
+          Math.max(maxLatencyNanos, other.maxLatencyNanos));
+    }
+  }
+
+  /**
+   * The current values of one set of gauges.
+   */
+  private static class Series {
+    private final Tags tags;
+    private final int firstPartition;
+    private final int lastPartition;
+
+    volatile double rate;
+    volatile double meanLatencySeconds;
+    volatile double maxLatencySeconds;
+    volatile double backlog;
+    volatile double queued;
+
+    Series(Tags tags, int firstPartition, int lastPartition) {
+      this.tags = tags;
+      this.firstPartition = firstPartition;
+      this.lastPartition = lastPartition;
+    }
+
+    void update(Snapshot s, double elapsedSeconds) {
+      final double nanosPerSecond = SECONDS.toNanos(1);
+      rate = s.count / elapsedSeconds;
+      meanLatencySeconds = s.count == 0 ? 0 : s.totalLatencyNanos / (double) s.count / nanosPerSecond;
+      maxLatencySeconds = s.maxLatencyNanos / nanosPerSecond;
+    }
+
+    void register(List<GaugeDef> gauges) {
+      for (GaugeDef g : gauges) {
+        Metrics.gauge(g.name, g.description, tags, this, g.value);
+      }
+    }
+
+    void unregister(List<GaugeDef> gauges) {
+      for (GaugeDef g : gauges) {
+        Metrics.removeGauge(g.name, tags);
+      }
+    }
+  }
+
+  private static class GaugeDef {
+    private final String name;
+    private final String description;
+    private final ToDoubleFunction<Series> value;
+
+    GaugeDef(String name, String description, ToDoubleFunction<Series> value) {
+      this.name = name;
+      this.description = description;
+      this.value = value;
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.couchbase.connector.elasticsearch;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.json.MetricsModule;
 import com.couchbase.client.dcp.metrics.DefaultDropwizardConfig;
+import com.couchbase.connector.config.common.HistogramConfig;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -26,6 +27,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.base.Suppliers;
 import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.Tag;
@@ -38,14 +40,23 @@ import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
 import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
 import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
 import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
 import io.micrometer.core.instrument.dropwizard.DropwizardMeterRegistry;
 import io.micrometer.core.instrument.util.HierarchicalNameMapper;
 import io.micrometer.prometheus.PrometheusConfig;
 import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.elasticsearch.common.unit.TimeValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.time.Duration;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.function.Supplier;
 import java.util.function.ToDoubleFunction;
@@ -82,11 +93,64 @@ public class Metrics {
         + "}";
   };
 
-  private static final PrometheusMeterRegistry prometheusRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+  // Replaced when the histogram settings change.
+  private static volatile PrometheusMeterRegistry prometheusRegistry = newPrometheusRegistry(null);
 
-  static {
-    prometheusRegistry.config()
+  @Nullable
+  private static HistogramConfig histogramConfig;
+
+  private static PrometheusMeterRegistry newPrometheusRegistry(@Nullable HistogramConfig histogramConfig) {
+    final PrometheusMeterRegistry result = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    result.config()
         .meterFilter(MeterFilter.denyNameStartsWith("cbes.es.wait.ms")); // superseded by "cbes.es.wait.seconds"
+    if (histogramConfig != null) {
+      result.config().meterFilter(histogramFilter(histogramConfig));
+    }
+    return result;
+  }
+
+  /**
+   * Returns a filter that applies the given settings to the connector's timers.
+   */
+  private static MeterFilter histogramFilter(HistogramConfig config) {
+    final DistributionStatisticConfig distribution = DistributionStatisticConfig.builder()
+        .percentilesHistogram(config.percentileHistogram())
+        .percentiles(config.percentiles().stream().mapToDouble(Double::doubleValue).toArray())
+        .serviceLevelObjectives(config.slo().stream().mapToDouble(TimeValue::nanos).toArray())
+        .minimumExpectedValue((double) config.minExpected().nanos())
+        .maximumExpectedValue((double) config.maxExpected().nanos())
+        .build();
+
+    return new MeterFilter() {
+      @Override
+      public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+        if (id.getType() != Meter.Type.TIMER || !id.getName().startsWith(PREFIX)) {
+          return config;
+        }
+        return distribution.merge(config);
+      }
+    };
+  }
+
+  /**
+   * Applies the given histogram settings to the timers exposed in Prometheus format.
+   * <p>
+   * Micrometer applies distribution settings only when a meter is registered,
+   * so this method moves all meters to a new Prometheus registry. Prometheus counters
+   * restart from zero, so call this at startup, before doing any real work.
+   */
+  public static synchronized void configureHistograms(HistogramConfig config) {
+    if (config.equals(histogramConfig)) {
+      return;
+    }
+    histogramConfig = config;
+
+    final PrometheusMeterRegistry oldRegistry = prometheusRegistry;
+    final PrometheusMeterRegistry newRegistry = newPrometheusRegistry(config);
+    registry.add(newRegistry); // registers all existing meters with the new registry
+    prometheusRegistry = newRegistry;
+    registry.remove(oldRegistry);
+    oldRegistry.close();
   }
 
   private static final MetricRegistry dropwizardBackingRegistry = new MetricRegistry();
@@ -125,8 +189,19 @@ public class Metrics {
   }
 
   public static Counter counter(String name, String description, String unit) {
+    return counter(name, description, unit, Tags.empty());
+  }
+
+  public static Counter counter(String name, String description, String unit, Iterable<Tag> tags) {
     return Counter.builder(PREFIX + name)
         .baseUnit(unit)
+        .description(description)
+        .tags(tags)
+        .register(registry);
+  }
+
+  public static DistributionSummary summary(String name, String description) {
+    return DistributionSummary.builder(PREFIX + name)
         .description(description)
         .register(registry);
   }
@@ -138,20 +213,34 @@ public class Metrics {
   }
 
   public static <T> T gauge(String name, String description, T stateObject, ToDoubleFunction<T> valueFunction) {
+    return gauge(name, description, Tags.empty(), stateObject, valueFunction);
+  }
+
+  public static <T> T gauge(String name, String description, Iterable<Tag> tags, T stateObject, ToDoubleFunction<T> valueFunction) {
     // Some of our gauges are backed by connections to Couchbase or other server.
     // These must be recreated for each connection, so remove first.
     synchronized (Metrics.class) {
       // The metrics registry is a singleton, but the integration tests run many connectors in the
       // same process and they all compete to register gauges. Synchronize to prevent rare race condition
       // that can cause exception to be thrown here when running integration tests.
-      registry.remove(new Meter.Id(PREFIX + name, Tags.empty(), null, description, Meter.Type.GAUGE));
+      registry.remove(new Meter.Id(PREFIX + name, Tags.of(tags), null, description, Meter.Type.GAUGE));
       Gauge.builder(PREFIX + name, stateObject, valueFunction)
           .description(description)
+          .tags(tags)
           .register(registry);
       return stateObject;
     }
   }
 
+  /**
+   * Removes a gauge registered by {@link #gauge}.
+   */
+  public static void removeGauge(String name, Iterable<Tag> tags) {
+    synchronized (Metrics.class) {
+      registry.remove(new Meter.Id(PREFIX + name, Tags.of(tags), null, null, Meter.Type.GAUGE));
+    }
+  }
+
   /**
    * For gauges whose values should be cached to prevent repeated calculation during reporting
    * when multiple reports are used.
@@ -179,9 +268,24 @@ public class Metrics {
   private static final Timer bulkIndexingTimer = Metrics.timer("bulk.index.per.doc", "Duration of an Elasticsearch bulk request (including retries), divided by the number of items in the bulk request.");
   private static final Timer retryDelayTimer = Metrics.timer("retry.delay", "Time spent waiting after a temporary indexing failure before the request is retried.");
   private static final Counter bulkRetriesCounter = Metrics.counter("bulk.retry", "Elasticsearch bulk request retry due to a temporary failure.");
+  private static final Counter coalescedCounter = Metrics.counter("doc.coalesced", "Document event skipped because a newer version of the same document arrived while it was waiting to be written.");
   private static final Counter httpFailures = Metrics.counter("es.conn.fail", "Failed Elasticsearch connection attempts.");
+  private static final Counter breakerOpenedCounter = Metrics.counter("es.node.breaker.opened", "Elasticsearch node circuit breaker opened because the node was failing, overloaded, or much slower than its peers.");
   private static final Timer latencyTimer = Metrics.timer("latency", "The time between when the connector is notified of a database change and when the change is written to Elasticsearch.");
 
+  private static final Timer queueWaitTimer = latencyStageTimer("queue");
+  private static final Timer transformTimer = latencyStageTimer("transform");
+  private static final Timer batchWaitTimer = latencyStageTimer("batch");
+  private static final Timer httpTimer = latencyStageTimer("http");
+  private static final Timer elasticsearchTookTimer = latencyStageTimer("es_took");
+
+  private static Timer latencyStageTimer(String stage) {
+    return Timer.builder(PREFIX + "latency.stage")
+        .description("Time spent in one stage of writing a database change to Elasticsearch. The 'stage' tag says which stage.")
+        .tag("stage", stage)
+        .register(registry);
+  }
+
   public static Counter bytesCounter() {
     return bytesMeter;
   }
@@ -206,10 +310,18 @@ public class Metrics {
     return bulkRetriesCounter;
   }
 
+  public static Counter coalescedCounter() {
+    return coalescedCounter;
+  }
+
   public static Counter elasticsearchHostOffline() {
     return httpFailures;
   }
 
+  public static Counter elasticsearchNodeBreakerOpened() {
+    return breakerOpenedCounter;
+  }
+
   public static Timer retryDelayTimer() {
     return retryDelayTimer;
   }
@@ -218,6 +330,43 @@ public class Metrics {
     return latencyTimer;
   }
 
+  /**
+   * Time between when an event was received from Couchbase and when a worker started processing it.
+   */
+  public static Timer queueWaitTimer() {
+    return queueWaitTimer;
+  }
+
+  /**
+   * Time spent matching an event to a type rule and building the Elasticsearch request.
+   */
+  public static Timer transformTimer() {
+    return transformTimer;
+  }
+
+  /**
+   * Time a request waited in the write buffer before its bulk request was sent.
+   */
+  public static Timer batchWaitTimer() {
+    return batchWaitTimer;
+  }
+
+  /**
+   * Duration of a bulk request attempt, minus the time Elasticsearch says it spent
+   * processing the request. This is the network and HTTP client overhead.
+   * Failed attempts are recorded in full.
+   */
+  public static Timer httpTimer() {
+    return httpTimer;
+  }
+
+  /**
+   * Time Elasticsearch says it spent processing a bulk request attempt (the "took" value).
+   */
+  public static Timer elasticsearchTookTimer() {
+    return elasticsearchTookTimer;
+  }
+
   private static final ObjectMapper mapper = new ObjectMapper();
 
   static {
@@ -236,7 +385,7 @@ public class Metrics {
     } catch (JsonProcessingException e) {
       throw new RuntimeException(e);
     } finally {
-      log.info("Serializing metrics as JSON took " + timer);
+      log.debug("Serializing metrics as JSON took {}", timer);
     }
   }
 
@@ -244,10 +393,34 @@ public class Metrics {
     return mapper.convertValue(dropwizardBackingRegistry, JsonNode.class);
   }
 
+  /**
+   * Writes the Dropwizard metrics as JSON directly to the given stream, without building a tree first.
+   */
+  public static void writeJson(OutputStream out, boolean pretty) throws IOException {
+    (pretty ? mapper.writerWithDefaultPrettyPrinter() : mapper.writer())
+        .writeValue(out, dropwizardBackingRegistry);
+  }
+
   public static String toPrometheusExpositionFormat() {
     return prometheusRegistry.scrape();
   }
 
+  public static final String PROMETHEUS_CONTENT_TYPE = TextFormat.CONTENT_TYPE_004;
+  public static final String OPENMETRICS_CONTENT_TYPE = OpenMetricsFormat.CONTENT_TYPE;
+
+  /**
+   * Writes the metrics to the given writer in Prometheus text format,
+   * or in OpenMetrics format if requested.
+   */
+  public static void writePrometheus(Writer writer, boolean openMetrics) throws IOException {
+    final Enumeration<MetricFamilySamples> samples = prometheusRegistry.getPrometheusRegistry().metricFamilySamples();
+    if (openMetrics) {
+      OpenMetricsFormat.write(writer, samples);
+    } else {
+      TextFormat.write004(writer, samples);
+    }
+  }
+
   public static MetricRegistry dropwizardRegistry() {
     return dropwizardBackingRegistry;
   }
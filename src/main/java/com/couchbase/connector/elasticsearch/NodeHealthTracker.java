@@ -0,0 +1,348 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import io.micrometer.core.instrument.Tags;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Tracks the health of each Elasticsearch node the connector talks to,
+ * and steers requests away from nodes that are failing, overloaded, or unusually slow.
+ * <p>
+ * Each node has a circuit breaker. When the breaker is OPEN, the node does not receive
+ * requests. After a cooldown period the breaker becomes HALF_OPEN, and a single trial request
+ * is allowed through. If the trial succeeds the breaker is CLOSED, otherwise it opens again.
+ * <p>
+ * The selector never rejects every node. If all nodes are unhealthy, the choice of node
+ * is left to the Elasticsearch client's own dead node handling.
+ * <p>
+ * Note that bulk item failures (like TOO_MANY_REQUESTS for an individual document)
+ * originate from whichever data node holds the target shard, not necessarily from the
+ * coordinating node that received the request, so they are not attributed to any host.
+ * Only request-level outcomes are tracked here.
+ */
+public class NodeHealthTracker implements NodeSelector {
+  private static final Logger LOGGER = LoggerFactory.getLogger(NodeHealthTracker.class);
+
+  private static final String START_NANOS_ATTRIBUTE = "cbes.request.start.nanos";
+
+  // Weight given to each new sample when updating the moving averages.
+  private static final double EWMA_ALPHA = 0.2;
+
+  // Don't judge a node until it has handled at least this many requests since its breaker last closed.
+  private static final int MIN_SAMPLES = 10;
+
+  private static final int MAX_CONSECUTIVE_FAILURES = 3;
+  private static final double MAX_ERROR_RATE = 0.5;
+
+  // A node is "slow" if its average latency is this many times higher than the fastest node's,
+  // and also higher than the floor.
+  private static final double SLOW_NODE_FACTOR = 4.0;
+  private static final Duration SLOW_NODE_FLOOR = Duration.ofSeconds(1);
+
+  private static final Duration OPEN_BREAKER_COOLDOWN = Duration.ofSeconds(30);
+
+  // If a trial request doesn't complete within this time, assume we missed the outcome.
+  private static final Duration TRIAL_TIMEOUT = Duration.ofMinutes(2);
+
+  public enum BreakerState {
+    CLOSED,
+    HALF_OPEN,
+    OPEN,
+  }
+
+  public static class NodeHealth {
+    private final HttpHost host;
+
+    // All mutable state is guarded by "this"
+    private double latencyEwmaNanos;
+    private double errorRateEwma;
+    private int samples;
+    private int consecutiveFailures;
+    private BreakerState state = BreakerState.CLOSED;
+    private long openedAtNanos;
+    private long trialStartNanos;
+    private boolean trialInFlight;
+
+    private NodeHealth(HttpHost host) {
+      this.host = host;
+    }
+
+    public HttpHost getHost() {
+      return host;
+    }
+
+    public synchronized double getLatencyMillis() {
+      return latencyEwmaNanos / MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized double getErrorRate() {
+      return errorRateEwma;
+    }
+
+    public synchronized BreakerState getState() {
+      return state;
+    }
+
+    synchronized boolean isAvailable(long nowNanos) {
+      switch (state) {
+        case CLOSED:
+          return true;
+
+        case OPEN:
+          if (nowNanos - openedAtNanos < OPEN_BREAKER_COOLDOWN.toNanos()) {
+            return false;
+          }
+          LOGGER.info("Circuit breaker for Elasticsearch node {} is now half-open; will send a trial request.", host);
+          state = BreakerState.HALF_OPEN;
+          trialInFlight = false;
+          return true;
+
+        case HALF_OPEN:
+          return !trialInFlight || nowNanos - trialStartNanos > TRIAL_TIMEOUT.toNanos();
+
+        default:
+          throw new AssertionError("unexpected state: " + state);
+      }
+    }
+
+    synchronized void onRequestStart(long nowNanos) {
+      if (state == BreakerState.HALF_OPEN) {
+        trialInFlight = true;
+        trialStartNanos = nowNanos;
+      }
+    }
+
+    synchronized void onSuccess(long latencyNanos) {
+      if (state != BreakerState.CLOSED) {
+        LOGGER.info("Trial request to Elasticsearch node {} succeeded; closing circuit breaker.", host);
+        state = BreakerState.CLOSED;
+        trialInFlight = false;
+
+        // start fresh; the old history is what got the node into trouble.
+        samples = 0;
+        errorRateEwma = 0;
+        latencyEwmaNanos = latencyNanos;
+      }
+
+      latencyEwmaNanos = samples == 0 ? latencyNanos : ewma(latencyEwmaNanos, latencyNanos);
+      errorRateEwma = ewma(errorRateEwma, 0);
+      consecutiveFailures = 0;
+      samples++;
+    }
+
+    synchronized void onFailure(String reason) {
+      errorRateEwma = samples == 0 ? 1 : ewma(errorRateEwma, 1);
+      consecutiveFailures++;
+      samples++;
+
+      if (state == BreakerState.HALF_OPEN) {
+        open("trial request failed (" + reason + ")");
+      } else if (state == BreakerState.CLOSED) {
+        if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+          open(consecutiveFailures + " consecutive failures (" + reason + ")");
+        } else if (samples >= MIN_SAMPLES && errorRateEwma >= MAX_ERROR_RATE) {
+          open("error rate " + String.format("%.2f", errorRateEwma) + " (" + reason + ")");
+        }
+      }
+    }
+
+    synchronized boolean isSlowComparedTo(double fastestLatencyNanos) {
+      return state == BreakerState.CLOSED
+          && samples >= MIN_SAMPLES
+          && latencyEwmaNanos > SLOW_NODE_FLOOR.toNanos()
+          && latencyEwmaNanos > fastestLatencyNanos * SLOW_NODE_FACTOR;
+    }
+
+    synchronized double getLatencyNanosIfJudged() {
+      return state == BreakerState.CLOSED && samples >= MIN_SAMPLES ? latencyEwmaNanos : Double.NaN;
+    }
+
+    synchronized void open(String reason) {
+      if (state != BreakerState.OPEN) {
+        LOGGER.warn("Opening circuit breaker for Elasticsearch node {}; reason: {}. Will try again in {}.",
+            host, reason, OPEN_BREAKER_COOLDOWN);
+        Metrics.elasticsearchNodeBreakerOpened().increment();
+      }
+      state = BreakerState.OPEN;
+      openedAtNanos = System.nanoTime();
+      trialInFlight = false;
+    }
+
+    private static double ewma(double average, double sample) {
+      return average + EWMA_ALPHA * (sample - average);
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "NodeHealth{" +
+          "host=" + host +
+          ", state=" + state +
+          ", latencyMillis=" + String.format("%.1f", getLatencyMillis()) +
+          ", errorRate=" + String.format("%.2f", errorRateEwma) +
+          '}';
+    }
+  }
+
+  private final ConcurrentMap<HttpHost, NodeHealth> nodes = new ConcurrentHashMap<>();
+
+  public NodeHealthTracker(Collection<HttpHost> hosts) {
+    hosts.forEach(this::health);
+  }
+
+  private NodeHealth health(HttpHost host) {
+    return nodes.computeIfAbsent(host, h -> {
+      final NodeHealth health = new NodeHealth(h);
+      final Tags tags = Tags.of("host", h.toHostString());
+      Metrics.gauge("es.node.latency.ms", "Moving average of Elasticsearch request latency, by node.",
+          tags, health, NodeHealth::getLatencyMillis);
+      Metrics.gauge("es.node.error.rate", "Moving average of the fraction of Elasticsearch requests that failed, by node.",
+          tags, health, NodeHealth::getErrorRate);
+      Metrics.gauge("es.node.breaker.state", "Circuit breaker state, by node (0 = closed, 1 = half-open, 2 = open).",
+          tags, health, value -> value.getState().ordinal());
+      return health;
+    });
+  }
+
+  /**
+   * Returns a snapshot of the health of every known node.
+   */
+  public List<NodeHealth> nodes() {
+    return Collections.unmodifiableList(new ArrayList<>(nodes.values()));
+  }
+
+  @Override
+  public void select(Iterable<Node> candidates) {
+    final long nowNanos = System.nanoTime();
+
+    double fastestLatencyNanos = Double.MAX_VALUE;
+    int available = 0;
+    for (Node node : candidates) {
+      final NodeHealth health = health(node.getHost());
+      if (health.isAvailable(nowNanos)) {
+        available++;
+        final double latency = health.getLatencyNanosIfJudged();
+        if (!Double.isNaN(latency)) {
+          fastestLatencyNanos = Math.min(fastestLatencyNanos, latency);
+        }
+      }
+    }
+
+    if (available == 0) {
+      // Don't reject every node; the client would fail the request without even trying.
+      LOGGER.debug("All Elasticsearch nodes are unhealthy; letting the client choose.");
+      return;
+    }
+
+    // Trip the breaker for nodes that are much slower than their peers,
+    // as long as at least one other node remains available.
+    if (available > 1 && fastestLatencyNanos != Double.MAX_VALUE) {
+      for (Node node : candidates) {
+        final NodeHealth health = health(node.getHost());
+        if (available > 1 && health.isSlowComparedTo(fastestLatencyNanos)) {
+          health.open(String.format("average latency %.1f ms is much higher than fastest node's %.1f ms",
+              health.getLatencyMillis(), fastestLatencyNanos / 1_000_000));
+          available--;
+        }
+      }
+    }
+
+    for (Iterator<Node> i = candidates.iterator(); i.hasNext(); ) {
+      final NodeHealth health = health(i.next().getHost());
+      if (!health.isAvailable(nowNanos)) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Call when the Elasticsearch client reports a node failure
+   * (connection failure, timeout, or 502/503/504 response).
+   */
+  public void onFailure(Node node) {
+    health(node.getHost()).onFailure("request failed");
+  }
+
+  /**
+   * Records the start time of each request. Add this interceptor first,
+   * so the timing includes the work done by other interceptors.
+   */
+  public HttpRequestInterceptor requestInterceptor() {
+    return (request, context) -> {
+      final long nowNanos = System.nanoTime();
+      context.setAttribute(START_NANOS_ATTRIBUTE, nowNanos);
+
+      final HttpHost host = HttpClientContext.adapt(context).getTargetHost();
+      if (host != null) {
+        health(host).onRequestStart(nowNanos);
+      }
+    };
+  }
+
+  /**
+   * Records the outcome and latency of each request.
+   */
+  public HttpResponseInterceptor responseInterceptor() {
+    return (response, context) -> {
+      final HttpHost host = HttpClientContext.adapt(context).getTargetHost();
+      final Object startNanos = context.getAttribute(START_NANOS_ATTRIBUTE);
+      if (host == null || !(startNanos instanceof Long)) {
+        return;
+      }
+
+      final int status = response.getStatusLine().getStatusCode();
+      switch (status) {
+        case 429: // TOO_MANY_REQUESTS; the node is overloaded
+          health(host).onFailure("status code " + status);
+          break;
+
+        case 502:
+        case 503:
+        case 504:
+          // The client reports these to the failure listener; don't count them twice.
+          break;
+
+        default:
+          health(host).onSuccess(System.nanoTime() - (Long) startNanos);
+          break;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "NodeHealthTracker";
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Enumeration;
+
+/**
+ * Writes metric samples in the OpenMetrics 1.0 text format.
+ * <p>
+ * The Prometheus client bundled with Micrometer only knows the older text format,
+ * which differs mostly in how counters are named and how the output ends.
+ */
+class OpenMetricsFormat {
+  static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+  private static final String TOTAL_SUFFIX = "_total";
+
+  private OpenMetricsFormat() {
+    throw new AssertionError("not instantiable");
+  }
+
+  static void write(Writer writer, Enumeration<MetricFamilySamples> families) throws IOException {
+    while (families.hasMoreElements()) {
+      final MetricFamilySamples family = families.nextElement();
+
+      // A counter family is named without the suffix its samples have.
+      String familyName = family.name;
+      if (family.type == Collector.Type.COUNTER && familyName.endsWith(TOTAL_SUFFIX)) {
+        familyName = familyName.substring(0, familyName.length() - TOTAL_SUFFIX.length());
+      }
+
+      writer.write("# TYPE ");
+      writer.write(familyName);
+      writer.write(' ');
+      writer.write(typeString(family.type));
+      writer.write('\n');
+
+      if (family.help != null && !family.help.isEmpty()) {
+        writer.write("# HELP ");
+        writer.write(familyName);
+        writer.write(' ');
+        writeEscaped(writer, family.help);
+        writer.write('\n');
+      }
+
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        writer.write(sample.name);
+        if (family.type == Collector.Type.COUNTER && !sample.name.endsWith(TOTAL_SUFFIX)) {
+          writer.write(TOTAL_SUFFIX);
+        }
+        if (!sample.labelNames.isEmpty()) {
+          writer.write('{');
+          for (int i = 0; i < sample.labelNames.size(); i++) {
+            if (i > 0) {
+              writer.write(',');
+            }
+            writer.write(sample.labelNames.get(i));
+            writer.write("=\"");
+            writeEscaped(writer, sample.labelValues.get(i));
+            writer.write('"');
+          }
+          writer.write('}');
+        }
+        writer.write(' ');
+        writer.write(Collector.doubleToGoString(sample.value));
+        if (sample.timestampMs != null) {
+          // OpenMetrics timestamps are in seconds
+          writer.write(' ');
+          writer.write(Double.toString(sample.timestampMs / 1000.0));
+        }
+        writer.write('\n');
+      }
+    }
+    writer.write("# EOF\n");
+  }
+
+  private static String typeString(Collector.Type type) {
+    switch (type) {
+      case COUNTER:
+        return "counter";
+      case GAUGE:
+        return "gauge";
+      case SUMMARY:
+        return "summary";
+      case HISTOGRAM:
+        return "histogram";
+      default:
+        return "unknown";
+    }
+  }
+
+  private static void writeEscaped(Writer writer, String s) throws IOException {
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        default:
+          writer.write(c);
+      }
+    }
+  }
+}
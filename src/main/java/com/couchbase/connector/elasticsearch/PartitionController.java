@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.client.dcp.Client;
+import com.couchbase.connector.dcp.CheckpointService;
+import com.couchbase.connector.dcp.DcpHelper;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Changes which partitions a running connector streams, without restarting it.
+ * In distributed mode, this lets the leader move a few partitions between
+ * group members while the rest of the partitions keep streaming.
+ * <p>
+ * Thread-safe.
+ */
+public class PartitionController {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PartitionController.class);
+
+  // How long to wait for the workers to write buffered events for partitions that are being handed off.
+  // Must be less than the leader's RPC timeout, so the leader hears about a failed handoff.
+  private static final Duration HANDOFF_TIMEOUT = Duration.ofSeconds(10);
+
+  // When estimating load, a partition's backlog counts as if it had to be processed within this many seconds.
+  private static final double BACKLOG_DRAIN_SECONDS = 60;
+
+  private final Client dcpClient;
+  private final CheckpointService checkpointService;
+  private final ElasticsearchWorkerGroup workers;
+  private final int numPartitions;
+
+  private volatile ImmutableSet<Integer> partitions;
+
+  PartitionController(Client dcpClient, CheckpointService checkpointService, ElasticsearchWorkerGroup workers,
+                      int numPartitions, Set<Integer> initialPartitions) {
+    this.dcpClient = requireNonNull(dcpClient);
+    this.checkpointService = requireNonNull(checkpointService);
+    this.workers = requireNonNull(workers);
+    this.numPartitions = numPartitions;
+    this.partitions = ImmutableSet.copyOf(new TreeSet<>(initialPartitions));
+  }
+
+  /**
+   * Returns the number of partitions in the bucket.
+   */
+  public int numPartitions() {
+    return numPartitions;
+  }
+
+  /**
+   * Returns the partitions this connector is currently streaming.
+   */
+  public Set<Integer> partitions() {
+    return partitions;
+  }
+
+  /**
+   * Returns the estimated load of each partition this connector is streaming,
+   * in events per second. The estimate combines the recent event rate
+   * with the partition's backlog, so a partition that is falling behind
+   * looks busier than one that is keeping up.
+   */
+  public Map<Integer, Double> partitionLoad() {
+    final Set<Integer> current = partitions;
+    final Map<Integer, Double> rates = workers.getEventRates();
+    final Map<Integer, Long> backlogs = checkpointService.getLocalBacklogByPartition();
+
+    final Map<Integer, Double> result = new TreeMap<>();
+    for (int p : current) {
+      result.put(p, rates.getOrDefault(p, 0d) + backlogs.getOrDefault(p, 0L) / BACKLOG_DRAIN_SECONDS);
+    }
+    return result;
+  }
+
+  /**
+   * Stops streaming any current partitions not in the given set, and starts streaming
+   * any partitions in the given set that are not already streaming.
+   * <p>
+   * Before this method returns, buffered events from removed partitions are written
+   * to Elasticsearch and the partitions' checkpoints are saved. The new owner
+   * of a removed partition resumes from the saved checkpoint, so it does not
+   * write the same events again. (The exception is events waiting to be retried
+   * after a temporary failure; the new owner writes those instead.)
+   * <p>
+   * An empty set puts the connector on standby: connections stay open, but nothing streams.
+   */
+  public synchronized void setPartitions(Set<Integer> newPartitions) throws Exception {
+    for (int p : newPartitions) {
+      if (p < 0 || p >= numPartitions) {
+        throw new IllegalArgumentException("Invalid partition " + p + "; bucket has " + numPartitions + " partitions.");
+      }
+    }
+
+    final Set<Integer> removed = new TreeSet<>(Sets.difference(partitions, newPartitions));
+    final Set<Integer> added = new TreeSet<>(Sets.difference(newPartitions, partitions));
+
+    if (removed.isEmpty() && added.isEmpty()) {
+      LOGGER.info("Partition assignment unchanged.");
+      return;
+    }
+
+    if (!removed.isEmpty()) {
+      LOGGER.info("Stopping DCP streams for partitions: {}", removed);
+      dcpClient.stopStreaming(removed).block();
+      partitions = ImmutableSet.copyOf(Sets.difference(partitions, removed));
+
+      final Stopwatch timer = Stopwatch.createStarted();
+      workers.handOff(removed, HANDOFF_TIMEOUT);
+      checkpointService.save();
+      checkpointService.release(removed);
+      LOGGER.info("Handed off partitions {} in {}", removed, timer);
+    }
+
+    // Careful: if we started streaming with an empty list, the DCP client would open streams for *all* partitions.
+    if (!added.isEmpty()) {
+      LOGGER.info("Opening DCP streams for partitions: {}", added);
+      DcpHelper.initSessionState(dcpClient, checkpointService, added);
+      partitions = ImmutableSet.copyOf(new TreeSet<>(Sets.union(partitions, added)));
+      dcpClient.startStreaming(added).block();
+    }
+
+    LOGGER.info("Now streaming {} partitions: {}", partitions.size(), partitions);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Estimates the rate at which each partition delivers events, so the
+ * group leader can spread busy partitions across workers.
+ * <p>
+ * Rates are exponentially weighted moving averages, updated whenever they are read.
+ * The first reading is the average rate since the tracker was created.
+ * <p>
+ * Thread-safe.
+ */
+class PartitionLoadTracker {
+  // Older samples lose most of their weight after this many seconds.
+  private static final double AVERAGING_WINDOW_SECONDS = 60;
+
+  private final Map<Integer, LongAdder> counts = new ConcurrentHashMap<>();
+
+  // Guarded by "this"
+  private final Map<Integer, Long> lastCounts = new HashMap<>();
+  private final Map<Integer, Double> rates = new HashMap<>();
+  private long lastSampleNanos = System.nanoTime();
+  private boolean sampled;
+
+  public void record(int partition) {
+    counts.computeIfAbsent(partition, key -> new LongAdder()).increment();
+  }
+
+  /**
+   * Returns the estimated events per second for each partition that has delivered any events.
+   */
+  public synchronized Map<Integer, Double> rates() {
+    final long now = System.nanoTime();
+    final double elapsedSeconds = (now - lastSampleNanos) / (double) SECONDS.toNanos(1);
+    if (elapsedSeconds < 1 && sampled) {
+      return new HashMap<>(rates);
+    }
+
+    final double alpha = sampled ? 1 - Math.exp(-elapsedSeconds / AVERAGING_WINDOW_SECONDS) : 1;
+
+    counts.forEach((partition, adder) -> {
+      final long count = adder.sum();
+      final long previous = lastCounts.getOrDefault(partition, 0L);
+      final double instantRate = (count - previous) / Math.max(elapsedSeconds, 1e-3);
+      final double oldRate = rates.getOrDefault(partition, 0d);
+      rates.put(partition, oldRate + alpha * (instantRate - oldRate));
+      lastCounts.put(partition, count);
+    });
+
+    lastSampleNanos = now;
+    sampled = true;
+    return new HashMap<>(rates);
+  }
+
+  /**
+   * Forgets the history of the given partitions, typically because they moved to another worker.
+   */
+  public synchronized void reset(Iterable<Integer> partitions) {
+    for (Integer p : partitions) {
+      counts.remove(p);
+      lastCounts.remove(p);
+      rates.remove(p);
+    }
+  }
+}
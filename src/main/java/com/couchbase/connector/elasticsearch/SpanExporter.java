@@ -0,0 +1,301 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.connector.dcp.DcpHelper;
+import com.couchbase.connector.dcp.Event;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Writes the timing of sampled document writes as trace spans, so a slow write
+ * can be broken down into time spent in the connector, on the network, and in Elasticsearch.
+ * <p>
+ * Spans are appended to a file in OTLP/JSON format (one {@code ExportTraceServiceRequest} per line),
+ * which an OpenTelemetry Collector can read with its "otlpjsonfile" receiver.
+ * A background thread does the formatting and writing. If it can't keep up,
+ * traces are dropped instead of slowing down the connector.
+ */
+public class SpanExporter {
+  private static final Logger log = LoggerFactory.getLogger(SpanExporter.class);
+
+  private static final Counter dropped = Metrics.counter("span.dropped",
+      "Sampled document traces not exported because the span writer fell behind.");
+
+  private static final int QUEUE_CAPACITY = 4 * 1024;
+
+  // Bits of the scaled tracing token compared against the sample threshold.
+  private static final int SAMPLE_BITS = 53;
+
+  // Disabled until configured.
+  private static volatile long sampleThreshold;
+  private static volatile Exporter exporter;
+
+  // Current settings, so pipelines sharing the process don't restart the exporter.
+  private static double configuredSampleRate;
+  private static File configuredFile;
+
+  /**
+   * One stage of a document's trip through the connector.
+   * Times are from {@link System#nanoTime()}.
+   */
+  public static class Span {
+    private final String name;
+    private final long startNanos;
+    private final long endNanos;
+    private final Map<String, Object> attributes;
+
+    public Span(String name, long startNanos, long endNanos) {
+      this(name, startNanos, endNanos, ImmutableMap.of());
+    }
+
+    public Span(String name, long startNanos, long endNanos, Map<String, Object> attributes) {
+      this.name = name;
+      this.startNanos = startNanos;
+      this.endNanos = endNanos;
+      this.attributes = attributes;
+    }
+  }
+
+  private SpanExporter() {
+    throw new AssertionError("not instantiable");
+  }
+
+  /**
+   * @param sampleRate fraction of document changes to trace, between 0 and 1. Zero disables tracing.
+   * @param file where to append the spans. Ignored if the sample rate is zero.
+   */
+  public static synchronized void configure(double sampleRate, @Nullable File file) throws IOException {
+    if (sampleRate == configuredSampleRate && Objects.equals(file, configuredFile)) {
+      return;
+    }
+    configuredSampleRate = sampleRate;
+    configuredFile = file;
+
+    sampleThreshold = 0;
+    if (exporter != null) {
+      exporter.close();
+      exporter = null;
+    }
+    if (sampleRate <= 0 || file == null) {
+      return;
+    }
+
+    exporter = new Exporter(file);
+    sampleThreshold = (long) (sampleRate * (1L << SAMPLE_BITS));
+    log.info("Exporting trace spans for {}% of document changes to {}", sampleRate * 100, file.getAbsolutePath());
+  }
+
+  /**
+   * Returns true if the given event's trip through the connector should be traced.
+   * The decision depends only on the event, so every destination traces the same events.
+   */
+  public static boolean isSampled(Event event) {
+    final long threshold = sampleThreshold;
+    if (threshold == 0 || DcpHelper.isMetadata(event)) {
+      return false;
+    }
+    // Spread the bits of the (sequential) tracing token.
+    final long hash = (event.getTracingToken() * 0x9E3779B97F4A7C15L) >>> (64 - SAMPLE_BITS);
+    return hash < threshold;
+  }
+
+  /**
+   * Exports a trace whose root span covers the event's whole trip to one destination,
+   * from when it was received until the given end time. The given spans become children of the root.
+   *
+   * @param destination index of the destination cluster (0 is the primary cluster)
+   * @param outcome how the trip ended; for example, "written" or "rejected"
+   */
+  public static void export(Event event, int destination, String outcome, long endNanos, List<Span> stages) {
+    final Exporter e = exporter;
+    if (e == null) {
+      return;
+    }
+    final Trace trace = new Trace(event.getTracingToken(), event.getKey(true), event.getVbucket(), event.getSeqno(),
+        destination, outcome, event.getReceivedNanos(), endNanos, ImmutableList.copyOf(stages));
+    if (!e.queue.offer(trace)) {
+      dropped.increment();
+    }
+  }
+
+  private static class Trace {
+    private final long tracingToken;
+    private final String documentId;
+    private final int partition;
+    private final long seqno;
+    private final int destination;
+    private final String outcome;
+    private final long startNanos;
+    private final long endNanos;
+    private final List<Span> stages;
+
+    private Trace(long tracingToken, String documentId, int partition, long seqno, int destination,
+                  String outcome, long startNanos, long endNanos, List<Span> stages) {
+      this.tracingToken = tracingToken;
+      this.documentId = documentId;
+      this.partition = partition;
+      this.seqno = seqno;
+      this.destination = destination;
+      this.outcome = outcome;
+      this.startNanos = startNanos;
+      this.endNanos = endNanos;
+      this.stages = stages;
+    }
+  }
+
+  private static class Exporter {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Tracing tokens restart at zero when the process restarts, so they're only part of the trace ID.
+    private final String traceIdPrefix = String.format("%016x", ThreadLocalRandom.current().nextLong());
+
+    // Converts nanoTime to nanoseconds since the epoch (with millisecond precision).
+    private final long epochOffsetNanos = MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    private final BlockingQueue<Trace> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Writer out;
+    private final Thread thread;
+
+    private Exporter(File file) throws IOException {
+      final File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null && !parent.exists() && !parent.mkdirs()) {
+        throw new IOException("Failed to create directory " + parent);
+      }
+      this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF_8));
+      this.thread = new Thread(this::drainForever, "span-exporter");
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+
+    private void drainForever() {
+      try {
+        while (!Thread.interrupted()) {
+          Trace trace = queue.take();
+          do {
+            write(trace);
+          } while ((trace = queue.poll()) != null);
+          out.flush();
+        }
+      } catch (InterruptedException e) {
+        // closed
+      } catch (Throwable t) {
+        log.error("Span exporter stopped unexpectedly.", t);
+      } finally {
+        try {
+          out.close();
+        } catch (IOException e) {
+          log.warn("Failed to close span export file.", e);
+        }
+      }
+    }
+
+    private void close() {
+      thread.interrupt();
+    }
+
+    private void write(Trace trace) throws IOException {
+      final ObjectNode root = mapper.createObjectNode();
+      final ObjectNode resourceSpans = root.putArray("resourceSpans").addObject();
+      addAttribute(resourceSpans.putObject("resource").putArray("attributes"), "service.name", "couchbase-elasticsearch-connector");
+
+      final ObjectNode scopeSpans = resourceSpans.putArray("scopeSpans").addObject();
+      scopeSpans.putObject("scope").put("name", SpanExporter.class.getName());
+      final ArrayNode spans = scopeSpans.putArray("spans");
+
+      final String traceId = traceIdPrefix + String.format("%016x", trace.tracingToken);
+      final String rootSpanId = newSpanId();
+
+      final ArrayNode rootAttributes = addSpan(spans, traceId, rootSpanId, null, "document", trace.startNanos, trace.endNanos);
+      addAttribute(rootAttributes, "cbes.document.id", trace.documentId);
+      addAttribute(rootAttributes, "cbes.partition", trace.partition);
+      addAttribute(rootAttributes, "cbes.seqno", trace.seqno);
+      addAttribute(rootAttributes, "cbes.destination", trace.destination);
+      addAttribute(rootAttributes, "cbes.outcome", trace.outcome);
+
+      for (Span stage : trace.stages) {
+        final ArrayNode attributes = addSpan(spans, traceId, newSpanId(), rootSpanId, stage.name, stage.startNanos, stage.endNanos);
+        stage.attributes.forEach((k, v) -> addAttribute(attributes, k, v));
+      }
+
+      out.write(mapper.writeValueAsString(root));
+      out.write('\n');
+    }
+
+    /**
+     * Returns the span's (empty) attribute array.
+     */
+    private ArrayNode addSpan(ArrayNode spans, String traceId, String spanId, @Nullable String parentSpanId,
+                              String name, long startNanos, long endNanos) {
+      final ObjectNode span = spans.addObject()
+          .put("traceId", traceId)
+          .put("spanId", spanId);
+      if (parentSpanId != null) {
+        span.put("parentSpanId", parentSpanId);
+      }
+      return span
+          .put("name", name)
+          .put("kind", 1) // SPAN_KIND_INTERNAL
+          // OTLP/JSON encodes 64-bit integers as strings
+          .put("startTimeUnixNano", String.valueOf(startNanos + epochOffsetNanos))
+          .put("endTimeUnixNano", String.valueOf(Math.max(startNanos, endNanos) + epochOffsetNanos))
+          .putArray("attributes");
+    }
+
+    private static void addAttribute(ArrayNode attributes, String key, Object value) {
+      final ObjectNode valueNode = attributes.addObject()
+          .put("key", key)
+          .putObject("value");
+      if (value instanceof Long || value instanceof Integer) {
+        valueNode.put("intValue", String.valueOf(value));
+      } else if (value instanceof Number) {
+        valueNode.put("doubleValue", ((Number) value).doubleValue());
+      } else if (value instanceof Boolean) {
+        valueNode.put("boolValue", (Boolean) value);
+      } else {
+        valueNode.put("stringValue", String.valueOf(value));
+      }
+    }
+
+    private static String newSpanId() {
+      return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+  }
+}
@@ -164,12 +164,24 @@ class RunCommand extends ConsulCommand implements Runnable {
       description = "The Consul service ID to assign to the worker. Required if you want to run multiple workers in the same group using the same Consul agent.")
   private String serviceId;
 
+  @Option(names = {"--standby"},
+      description = "Run as a hot standby. The worker keeps its connections open but streams nothing until another worker fails, then takes over that worker's partitions.")
+  private boolean standby;
+
+  @Option(names = {"--rpc-port"}, paramLabel = "<port>",
+      description = "Accept control requests from the group leader directly over HTTP on this port (0 for any free port), instead of only via Consul. Much faster, especially for large groups.")
+  private int rpcPort = -1;
+
+  @Option(names = {"--rpc-advertise-host"}, paramLabel = "<host>",
+      description = "Host name or IP address the group leader should use to reach this worker's RPC port. Defaults to the address of the Consul agent.")
+  private String rpcAdvertiseHost;
+
   @Override
   public void run() {
     try {
       ConsulContext ctx = new ConsulContext(consulBuilder(), group, serviceId);
       validateGroup(ctx);
-      ConsulConnector.run(ctx);
+      ConsulConnector.run(ctx, standby, rpcPort, rpcAdvertiseHost);
     } catch (Exception e) {
       throwIfUnchecked(e);
       throw new RuntimeException(e);
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.cli;
+
+import com.couchbase.connector.config.common.TrustStoreConfig;
+import com.couchbase.connector.config.es.ConnectorConfig;
+import com.couchbase.connector.config.es.ElasticsearchConfig;
+import com.couchbase.connector.elasticsearch.io.DeadLetterSpool;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.couchbase.connector.config.ConfigHelper.resolveIfRelative;
+import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.newElasticsearchClient;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes the documents saved in the dead letter spool to Elasticsearch again.
+ * Run it after fixing whatever made Elasticsearch reject them (a bad mapping, for example).
+ */
+public class DeadLetterReplay extends AbstractCliCommand {
+
+  private static final int BATCH_SIZE = 500;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static class OptionParser extends CommonParser {
+    final OptionSpec<File> directory = parser.accepts("dir", "Spool directory to replay. Defaults to the [elasticsearch.deadLetter] directory in the config file.")
+        .withRequiredArg().ofType(File.class).describedAs("directory");
+    final OptionSpec<Void> delete = parser.accepts("delete", "Delete each segment after all of its documents are written.");
+  }
+
+  public static void main(String[] args) throws Exception {
+    final OptionParser parser = new OptionParser();
+    final OptionSet options = parser.parse(args);
+
+    final File configFile = options.valueOf(parser.configFile);
+    System.out.println("Reading connector configuration from " + configFile.getAbsoluteFile());
+    final ConnectorConfig config = ConnectorConfig.from(configFile);
+
+    File directory = options.valueOf(parser.directory);
+    if (directory == null) {
+      final String configured = config.elasticsearch().deadLetter().directory();
+      if (configured.isEmpty()) {
+        System.err.println("ERROR: The config file does not specify a dead letter spool directory; use the --dir option.");
+        System.exit(1);
+      }
+      directory = resolveIfRelative(configured);
+    }
+
+    final boolean success = replay(config, directory, options.has(parser.delete));
+    System.exit(success ? 0 : 1);
+  }
+
+  /**
+   * Returns true if every saved document was written.
+   */
+  public static boolean replay(ConnectorConfig config, File directory, boolean deleteReplayed) throws Exception {
+    final List<File> segments = segmentsToReplay(directory);
+    if (segments.isEmpty()) {
+      System.out.println("Nothing to replay in " + directory.getAbsolutePath());
+      return true;
+    }
+
+    final List<ElasticsearchConfig> destinations = config.elasticsearch().allDestinations();
+    final Map<Integer, RestHighLevelClient> clients = new HashMap<>();
+    final Result total = new Result();
+
+    try {
+      forEachLatestRecord(segments, new SegmentHandler() {
+        final List<JsonNode> batch = new ArrayList<>();
+        Result result = new Result();
+
+        @Override
+        public void latest(JsonNode record) throws Exception {
+          batch.add(record);
+          if (batch.size() >= BATCH_SIZE) {
+            write(batch, destinations, config.trustStore(), clients, result);
+            batch.clear();
+          }
+        }
+
+        @Override
+        public void superseded(JsonNode record) {
+          result.skipped++;
+        }
+
+        @Override
+        public void endSegment(File segment) throws Exception {
+          write(batch, destinations, config.trustStore(), clients, result);
+          batch.clear();
+
+          System.out.println(segment.getName() + ": " + result.written + " written, "
+              + result.skipped + " skipped (newer version exists), " + result.failed + " failed");
+          total.written += result.written;
+          total.skipped += result.skipped;
+          total.failed += result.failed;
+
+          if (deleteReplayed && result.failed == 0) {
+            if (segment.delete()) {
+              System.out.println("Deleted " + segment.getName());
+            } else {
+              System.err.println("Failed to delete " + segment.getAbsolutePath());
+            }
+          }
+          result = new Result();
+        }
+      });
+    } finally {
+      for (RestHighLevelClient client : clients.values()) {
+        client.close();
+      }
+    }
+
+    System.out.println("Replay complete: " + total.written + " written, " + total.skipped + " skipped, " + total.failed + " failed.");
+    return total.failed == 0;
+  }
+
+  /**
+   * Returns the spool's segments, oldest first, except the newest one
+   * if a connector is still writing to it.
+   */
+  static List<File> segmentsToReplay(File directory) throws IOException {
+    final List<File> segments = DeadLetterSpool.listSegments(directory);
+    if (!segments.isEmpty() && isInUse(directory)) {
+      // A running connector is appending to the newest segment; leave it for next time.
+      final File active = segments.remove(segments.size() - 1);
+      System.out.println("A connector is using this spool; skipping its current segment " + active.getName());
+    }
+    return segments;
+  }
+
+  interface SegmentHandler {
+    /**
+     * Called for the latest record of a document.
+     */
+    void latest(JsonNode record) throws Exception;
+
+    /**
+     * Called for a record of a document that has a later record.
+     */
+    void superseded(JsonNode record) throws Exception;
+
+    /**
+     * Called after all of a segment's records.
+     */
+    void endSegment(File segment) throws Exception;
+  }
+
+  /**
+   * Reads the given segments in order, telling the handler which records are
+   * the latest for their document. When a document was rejected more than once,
+   * only the latest version should be written.
+   */
+  static void forEachLatestRecord(List<File> segments, SegmentHandler handler) throws Exception {
+    // Map from document key to the position of its latest record, counting from the start of the first segment.
+    final Map<String, Long> latestPositions = new HashMap<>();
+    final long[] position = {0};
+    for (File segment : segments) {
+      forEachRecord(segment, record -> latestPositions.put(documentKey(record), position[0]++));
+    }
+
+    position[0] = 0;
+    for (File segment : segments) {
+      forEachRecord(segment, record -> {
+        if (latestPositions.get(documentKey(record)) == position[0]++) {
+          handler.latest(record);
+        } else {
+          handler.superseded(record);
+        }
+      });
+      handler.endSegment(segment);
+    }
+  }
+
+  private static class Result {
+    int written;
+    int skipped;
+    int failed;
+  }
+
+  private interface RecordHandler {
+    void handle(JsonNode record) throws Exception;
+  }
+
+  private static void forEachRecord(File segment, RecordHandler handler) throws Exception {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(segment), UTF_8))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isEmpty()) {
+          continue;
+        }
+        final JsonNode record;
+        try {
+          record = mapper.readTree(line);
+        } catch (IOException e) {
+          // Probably the last record of a segment the connector was writing when it stopped.
+          System.err.println("WARNING: Ignoring unreadable record at " + segment.getName() + " line " + lineNumber + ": " + e.getMessage());
+          continue;
+        }
+        handler.handle(record);
+      }
+    }
+  }
+
+  private static String documentKey(JsonNode record) {
+    return record.path("destination").asInt() + "/" + record.path("index").asText() + "/" + record.path("type").asText() + "/" + record.path("id").asText();
+  }
+
+  private static void write(List<JsonNode> records, List<ElasticsearchConfig> destinations, TrustStoreConfig trustStore,
+                            Map<Integer, RestHighLevelClient> clients, Result result) throws Exception {
+    // Records for each destination cluster go in their own request.
+    final Map<Integer, List<JsonNode>> byDestination = new HashMap<>();
+    for (JsonNode record : records) {
+      byDestination.computeIfAbsent(record.path("destination").asInt(), k -> new ArrayList<>()).add(record);
+    }
+
+    for (Map.Entry<Integer, List<JsonNode>> entry : byDestination.entrySet()) {
+      final int destination = entry.getKey();
+      if (destination >= destinations.size()) {
+        System.err.println("Skipping " + entry.getValue().size() + " records for destination " + destination
+            + "; the config file has only " + destinations.size() + " Elasticsearch destination(s).");
+        result.failed += entry.getValue().size();
+        continue;
+      }
+
+      RestHighLevelClient client = clients.get(destination);
+      if (client == null) {
+        client = newElasticsearchClient(destinations.get(destination), trustStore);
+        clients.put(destination, client);
+      }
+
+      final BulkRequest bulkRequest = new BulkRequest();
+      for (JsonNode record : entry.getValue()) {
+        bulkRequest.add(toRequest(record));
+      }
+
+      final BulkResponse response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+      for (BulkItemResponse item : response.getItems()) {
+        final BulkItemResponse.Failure failure = item.getFailure();
+        if (failure == null) {
+          result.written++;
+        } else if (failure.getStatus() == RestStatus.CONFLICT && entry.getValue().get(item.getItemId()).has("versionType")) {
+          // Elasticsearch already has a newer version of the document.
+          result.skipped++;
+        } else {
+          result.failed++;
+          System.err.println("Failed to write document " + item.getId() + " to index " + item.getIndex()
+              + "; status code: " + failure.getStatus() + " " + failure.getMessage());
+        }
+      }
+    }
+  }
+
+  private static DocWriteRequest<?> toRequest(JsonNode record) throws IOException {
+    final String index = record.path("index").asText();
+    final String type = record.path("type").asText();
+    final String id = record.path("id").asText();
+
+    final DocWriteRequest<?> request;
+    if (DocWriteRequest.OpType.DELETE.name().equals(record.path("action").asText())) {
+      request = new DeleteRequest(index, type, id);
+    } else {
+      final IndexRequest indexRequest = new IndexRequest(index, type, id);
+      if (record.has("source")) {
+        indexRequest.source(mapper.writeValueAsBytes(record.get("source")), XContentType.JSON);
+      } else {
+        indexRequest.source(Base64.getDecoder().decode(record.path("sourceBase64").asText()), XContentType.JSON);
+      }
+      if (record.has("pipeline")) {
+        indexRequest.setPipeline(record.get("pipeline").asText());
+      }
+      request = indexRequest;
+    }
+
+    if (record.has("routing")) {
+      request.routing(record.get("routing").asText());
+    }
+    if (record.has("versionType")) {
+      request.versionType(VersionType.fromString(record.get("versionType").asText().toLowerCase(Locale.ROOT)));
+      request.version(record.get("version").asLong());
+    }
+    return request;
+  }
+
+  /**
+   * Returns true if a connector process holds the spool's lock.
+   */
+  private static boolean isInUse(File directory) throws IOException {
+    final File lockFile = new File(directory, DeadLetterSpool.LOCK_FILE_NAME);
+    if (!lockFile.exists()) {
+      return false;
+    }
+    try (FileChannel channel = FileChannel.open(lockFile.toPath(), CREATE, WRITE)) {
+      final FileLock lock = channel.tryLock();
+      if (lock == null) {
+        return true;
+      }
+      lock.release();
+      return false;
+    } catch (OverlappingFileLockException e) {
+      return true;
+    }
+  }
+}
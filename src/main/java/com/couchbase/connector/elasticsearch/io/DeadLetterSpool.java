@@ -0,0 +1,374 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.VersionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Saves documents Elasticsearch permanently rejected to local disk, so they can be
+ * written again (with the cbes-dead-letter-replay command) after the cause is fixed.
+ * <p>
+ * Each rejected document is appended as a single-line JSON record to the newest segment
+ * file in the spool directory. When a segment reaches the configured size, a new one is started.
+ * When the spool reaches its maximum size, more rejected documents are not saved
+ * until some segments are removed (normally by replaying them).
+ * <p>
+ * Shared by every writer in the process. A lock file stops other connector processes
+ * from using the same directory.
+ */
+public class DeadLetterSpool {
+  private static final Logger log = LoggerFactory.getLogger(DeadLetterSpool.class);
+
+  private static final Counter spooled = Metrics.counter("dead.letter.spooled",
+      "Documents rejected by Elasticsearch and saved to the local dead letter spool.");
+  private static final Counter dropped = Metrics.counter("dead.letter.dropped",
+      "Documents rejected by Elasticsearch and NOT saved to the local dead letter spool, because it was full or could not be written.");
+
+  public static final String LOCK_FILE_NAME = ".lock";
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{20})\\.jsonl");
+
+  // How often to check whether replayed segments were removed, when the spool is full.
+  private static final long FULL_RECHECK_NANOS = 5_000_000_000L;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  // Disabled until configured.
+  private static volatile Spool spool;
+
+  // Current settings, so pipelines sharing the process don't reopen the spool.
+  private static File configuredDirectory;
+  private static long configuredMaxBytes;
+  private static long configuredSegmentBytes;
+
+  private DeadLetterSpool() {
+    throw new AssertionError("not instantiable");
+  }
+
+  /**
+   * @param directory where to save rejected documents, or null to stop saving them.
+   */
+  public static synchronized void configure(@Nullable File directory, long maxBytes, long segmentBytes) throws IOException {
+    if (Objects.equals(directory, configuredDirectory) && maxBytes == configuredMaxBytes && segmentBytes == configuredSegmentBytes) {
+      return;
+    }
+    configuredDirectory = directory;
+    configuredMaxBytes = maxBytes;
+    configuredSegmentBytes = segmentBytes;
+
+    if (spool != null) {
+      spool.close();
+      spool = null;
+    }
+    if (directory == null) {
+      return;
+    }
+
+    spool = new Spool(directory, maxBytes, segmentBytes, FULL_RECHECK_NANOS);
+    log.info("Saving documents rejected by Elasticsearch to {}", directory.getAbsolutePath());
+  }
+
+  /**
+   * Appends a record of the rejected request. The record is not guaranteed
+   * to be on disk until {@link #sync()} returns.
+   *
+   * @param destination index of the destination cluster (0 is the primary cluster)
+   */
+  public static void add(EventDocWriteRequest<?> request, int destination, BulkItemResponse.Failure failure) {
+    final Spool s = spool;
+    if (s == null) {
+      return;
+    }
+
+    final byte[] record;
+    try {
+      record = encode(request, destination, failure);
+    } catch (IOException e) {
+      log.error("Failed to encode dead letter record for document {}", request.id(), e);
+      dropped.increment();
+      return;
+    }
+
+    if (s.append(record)) {
+      spooled.increment();
+    } else {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Waits until all records added so far are on disk.
+   */
+  public static void sync() {
+    final Spool s = spool;
+    if (s != null) {
+      s.sync();
+    }
+  }
+
+  /**
+   * Returns the spool's segment files, oldest first.
+   */
+  public static List<File> listSegments(File directory) {
+    final File[] files = directory.listFiles((dir, name) -> SEGMENT_NAME.matcher(name).matches());
+    if (files == null) {
+      return new ArrayList<>();
+    }
+    Arrays.sort(files); // zero-padded sequence numbers sort by name
+    return new ArrayList<>(Arrays.asList(files));
+  }
+
+  private static byte[] encode(EventDocWriteRequest<?> request, int destination, BulkItemResponse.Failure failure) throws IOException {
+    final Event event = request.getEvent();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator json = mapper.getFactory().createGenerator(out)) {
+      json.writeStartObject();
+      json.writeStringField("time", Instant.now().toString());
+      json.writeNumberField("destination", destination);
+      json.writeStringField("documentId", event.getKey(true));
+      json.writeNumberField("partition", event.getVbucket());
+      json.writeStringField("seqno", Long.toUnsignedString(event.getSeqno()));
+      json.writeNumberField("status", failure.getStatus().getStatus());
+      json.writeStringField("error", failure.getMessage());
+
+      json.writeStringField("action", request.opType().name());
+      json.writeStringField("index", request.index());
+      json.writeStringField("type", request.type());
+      json.writeStringField("id", request.id());
+      if (request.routing() != null) {
+        json.writeStringField("routing", request.routing());
+      }
+      if (request.versionType() != VersionType.INTERNAL) {
+        json.writeNumberField("version", request.version());
+        json.writeStringField("versionType", request.versionType().name());
+      }
+
+      if (request.opType() != DocWriteRequest.OpType.DELETE) {
+        final IndexRequest indexRequest = (IndexRequest) request;
+        if (indexRequest.getPipeline() != null) {
+          json.writeStringField("pipeline", indexRequest.getPipeline());
+        }
+        final byte[] source = BytesReference.toBytes(indexRequest.source());
+        try {
+          // Re-encoding keeps the record on a single line, and makes the spool easy to inspect.
+          final JsonNode sourceNode = mapper.readTree(source);
+          json.writeFieldName("source");
+          json.writeTree(sourceNode);
+        } catch (IOException e) {
+          json.writeStringField("sourceBase64", Base64.getEncoder().encodeToString(source));
+        }
+      }
+      json.writeEndObject();
+    }
+    out.write('\n');
+    return out.toByteArray();
+  }
+
+  /**
+   * The files of one spool directory.
+   */
+  static class Spool {
+    private final File directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final long fullRecheckNanos;
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    // Guarded by "this"
+    private FileChannel segment;
+    private long segmentSequence;
+    private long segmentSize;
+    private long totalSize;
+    private boolean dirty;
+    private boolean full;
+    private long fullCheckedNanos;
+
+    /**
+     * @param fullRecheckNanos how often to check whether segments were removed, when the spool is full
+     * @throws IOException if the directory is in use by another spool
+     */
+    Spool(File directory, long maxBytes, long segmentBytes, long fullRecheckNanos) throws IOException {
+      if (!directory.exists() && !directory.mkdirs()) {
+        throw new IOException("Failed to create directory " + directory);
+      }
+      this.directory = directory;
+      this.maxBytes = maxBytes;
+      this.segmentBytes = segmentBytes;
+      this.fullRecheckNanos = fullRecheckNanos;
+
+      this.lockChannel = FileChannel.open(new File(directory, LOCK_FILE_NAME).toPath(), CREATE, WRITE);
+      FileLock lock;
+      try {
+        lock = lockChannel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null; // locked by this process
+      }
+      if (lock == null) {
+        lockChannel.close();
+        throw new IOException("Dead letter spool directory " + directory.getAbsolutePath() + " is in use by another connector.");
+      }
+      this.lock = lock;
+
+      final List<File> segments = listSegments(directory);
+      for (File f : segments) {
+        totalSize += f.length();
+      }
+      // Always start a new segment, in case the last one ends with a partial record.
+      segmentSequence = segments.isEmpty() ? 0 : sequenceOf(segments.get(segments.size() - 1));
+    }
+
+    private static long sequenceOf(File segment) {
+      final Matcher m = SEGMENT_NAME.matcher(segment.getName());
+      if (!m.matches()) {
+        throw new IllegalArgumentException("Not a segment file: " + segment);
+      }
+      return Long.parseLong(m.group(1));
+    }
+
+    /**
+     * Returns false if the record was not written because the spool is full or a write failed.
+     */
+    synchronized boolean append(byte[] record) {
+      try {
+        if (totalSize + record.length > maxBytes && !hasRoomAfterRecheck(record.length)) {
+          if (!full) {
+            log.error("Dead letter spool {} is full ({} bytes); documents rejected by Elasticsearch are not being saved." +
+                " Replay or remove old segments to make room.", directory.getAbsolutePath(), totalSize);
+            full = true;
+          }
+          return false;
+        }
+        full = false;
+
+        if (segment == null || segmentSize + record.length > segmentBytes) {
+          startSegment();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+          segment.write(buffer);
+        }
+        segmentSize += record.length;
+        totalSize += record.length;
+        dirty = true;
+        return true;
+
+      } catch (IOException e) {
+        log.error("Failed to write to dead letter spool {}", directory.getAbsolutePath(), e);
+        return false;
+      }
+    }
+
+    /**
+     * Recomputes the spool size from the files on disk, since the replay command
+     * may have removed some. Does nothing if it did so recently.
+     */
+    private boolean hasRoomAfterRecheck(int recordLength) {
+      final long now = System.nanoTime();
+      if (full && now - fullCheckedNanos < fullRecheckNanos) {
+        return false;
+      }
+      fullCheckedNanos = now;
+
+      long size = 0;
+      for (File f : listSegments(directory)) {
+        size += f.length();
+      }
+      totalSize = size;
+      return totalSize + recordLength <= maxBytes;
+    }
+
+    private void startSegment() throws IOException {
+      if (segment != null) {
+        segment.force(false);
+        segment.close();
+        segment = null;
+      }
+      segmentSequence++;
+      final File f = new File(directory, String.format("segment-%020d.jsonl", segmentSequence));
+      segment = FileChannel.open(f.toPath(), CREATE_NEW, WRITE, APPEND);
+      segmentSize = 0;
+      dirty = false;
+      log.info("Started dead letter spool segment {}", f);
+    }
+
+    synchronized void sync() {
+      if (!dirty) {
+        return;
+      }
+      try {
+        segment.force(false);
+        dirty = false;
+      } catch (IOException e) {
+        log.error("Failed to sync dead letter spool {}", directory.getAbsolutePath(), e);
+      }
+    }
+
+    synchronized void close() {
+      try {
+        if (segment != null) {
+          segment.force(false);
+          segment.close();
+        }
+      } catch (IOException e) {
+        log.warn("Failed to close dead letter spool segment.", e);
+      }
+      try {
+        lock.release();
+        lockChannel.close();
+      } catch (IOException e) {
+        log.warn("Failed to release dead letter spool lock.", e);
+      }
+    }
+  }
+}
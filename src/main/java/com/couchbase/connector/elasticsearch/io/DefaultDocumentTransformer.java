@@ -125,6 +125,12 @@ public class DefaultDocumentTransformer implements DocumentTransformer {
     indexRequest.source(esDocument, XContentType.JSON);
   }
 
+  @Override
+  public boolean hasSource(Event mutationEvent) {
+    final byte[] bytes = mutationEvent.getContent();
+    return isSingleValidJsonObject(bytes) || (wrapCounters && getCounterValue(bytes) != null);
+  }
+
   @Nullable
   private Map<String, Object> getDocumentAsMap(byte[] bytes) {
     try {
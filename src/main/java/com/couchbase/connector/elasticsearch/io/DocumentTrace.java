@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.SpanExporter;
+import com.couchbase.connector.elasticsearch.SpanExporter.Span;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Collects the stages of a sampled event's trip to one destination cluster,
+ * and exports them when the trip is over.
+ * <p>
+ * NOT THREAD SAFE. Belongs to a single writer.
+ */
+class DocumentTrace {
+  private final Event event;
+  private final int destination;
+  private final List<Span> stages = new ArrayList<>();
+
+  // When the event started waiting for the next bulk request, either in the write buffer
+  // or in the retry queue. Zero if it's not waiting.
+  private long waitStartNanos;
+  private String waitStage;
+
+  DocumentTrace(Event event, int destination, long dequeuedNanos, long transformedNanos) {
+    this.event = event;
+    this.destination = destination;
+    stages.add(new Span("queue", event.getReceivedNanos(), dequeuedNanos));
+    stages.add(new Span("transform", dequeuedNanos, transformedNanos));
+    startWaiting("batch", transformedNanos);
+  }
+
+  void queuedForRetry(long nanos) {
+    startWaiting("retry", nanos);
+  }
+
+  void flushStarted(long nanos) {
+    if (waitStartNanos != 0) {
+      stages.add(new Span(waitStage, waitStartNanos, nanos));
+      waitStartNanos = 0;
+    }
+  }
+
+  void bulkAttempt(int attempt, long startNanos, long endNanos, long tookNanos, String outcome) {
+    stages.add(new Span("bulk", startNanos, endNanos, ImmutableMap.of(
+        "cbes.attempt", attempt,
+        "cbes.outcome", outcome,
+        "es.took_ms", NANOSECONDS.toMillis(tookNanos))));
+  }
+
+  void retryDelay(long startNanos, long endNanos) {
+    stages.add(new Span("retry", startNanos, endNanos));
+  }
+
+  void finish(String outcome, long nanos) {
+    SpanExporter.export(event, destination, outcome, nanos, stages);
+  }
+
+  private void startWaiting(String stage, long nanos) {
+    waitStage = stage;
+    waitStartNanos = nanos;
+  }
+}
@@ -26,4 +26,10 @@ public interface DocumentTransformer {
    * otherwise does nothing.
    */
   void setSourceFromEventContent(IndexRequest indexRequest, Event mutationEvent);
+
+  /**
+   * Returns true if {@link #setSourceFromEventContent} is certain to set the source
+   * for the given mutation. Does not build the source, so it's cheaper.
+   */
+  boolean hasSource(Event mutationEvent);
 }
@@ -22,8 +22,13 @@ import com.couchbase.connector.dcp.CheckpointService;
 import com.couchbase.connector.dcp.Event;
 import com.couchbase.connector.elasticsearch.DocumentLifecycle;
 import com.couchbase.connector.elasticsearch.ErrorListener;
+import com.couchbase.connector.elasticsearch.MetricBreakdown;
 import com.couchbase.connector.elasticsearch.Metrics;
+import com.couchbase.connector.elasticsearch.SpanExporter;
 import com.couchbase.connector.util.ThrowableHelper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Tags;
 import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.bulk.BackoffPolicy;
 import org.elasticsearch.action.bulk.BulkItemResponse;
@@ -38,20 +43,23 @@ import org.elasticsearch.rest.RestStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.function.Consumer;
 
 import static com.couchbase.client.core.logging.RedactableArgument.redactUser;
 import static com.couchbase.connector.dcp.DcpHelper.isMetadata;
@@ -60,6 +68,7 @@ import static com.couchbase.connector.util.ThrowableHelper.propagateCauseIfPossi
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.elasticsearch.common.unit.TimeValue.timeValueMillis;
 import static org.elasticsearch.common.unit.TimeValue.timeValueMinutes;
 
@@ -74,11 +83,68 @@ public class ElasticsearchWriter implements Closeable {
 
   private final RestHighLevelClient client;
   private final RequestFactory requestFactory;
+  private final RejectionLogWriter rejectionLog;
   private final CheckpointService checkpointService;
+  private final int checkpointTrack;
   private final ErrorListener errorListener = ErrorListener.NOOP;
-  private final long bufferBytesThreshold;
-  private final int bufferActionsThreshold;
-  private final TimeValue bulkRequestTimeout;
+  private long bufferBytesThreshold;
+  private int bufferActionsThreshold;
+  private int minActions;
+  private long lingerNanos;
+  private TimeValue bulkRequestTimeout;
+  private final boolean externalVersioning;
+  private final MetricBreakdown breakdown;
+
+  /**
+   * Why a bulk request was sent.
+   */
+  public enum FlushReason {
+    /**
+     * The buffer reached the maximum number of actions.
+     */
+    ACTIONS,
+
+    /**
+     * The buffer reached the maximum size in bytes.
+     */
+    BYTES,
+
+    /**
+     * The buffer reached the minimum number of actions, and there were no more events waiting.
+     */
+    MIN_ACTIONS,
+
+    /**
+     * The oldest action in the buffer waited for the full linger time.
+     */
+    LINGER,
+
+    /**
+     * It was time to retry actions that failed with a temporary error.
+     */
+    RETRY,
+
+    /**
+     * Partitions were about to move to a different group member.
+     */
+    HANDOFF,
+
+    /**
+     * Partitions were about to move to a different worker, because the number of workers changed.
+     */
+    RESIZE,
+  }
+
+  private static final Map<FlushReason, Counter> flushReasonCounters = new EnumMap<>(FlushReason.class);
+
+  static {
+    for (FlushReason reason : FlushReason.values()) {
+      flushReasonCounters.put(reason, Metrics.counter("bulk.flush", "Elasticsearch bulk request sent, tagged with the reason it was sent.",
+          null, Tags.of("reason", reason.name().toLowerCase(Locale.ROOT))));
+    }
+  }
+
+  private static final DistributionSummary batchSizeSummary = Metrics.summary("bulk.actions", "Number of actions in each Elasticsearch bulk request.");
 
   private static final TimeValue INITIAL_RETRY_DELAY = timeValueMillis(50);
   private static final TimeValue MAX_RETRY_DELAY = timeValueMinutes(5);
@@ -89,32 +155,95 @@ public class ElasticsearchWriter implements Closeable {
           //.timeout(timeValueMinutes(5))
           .build();
 
-  @GuardedBy("this")
-  private boolean requestInProgress;
+  // Items that failed with a temporary error wait here so they don't hold up new batches.
+  private final RetryQueue retryQueue = new RetryQueue(backoffPolicy);
+
+  // Map from vbucket to checkpoint that can't be saved yet because the vbucket
+  // has items waiting in the retry queue, or rejection log entries not yet written.
+  private final Map<Integer, Checkpoint> deferredCheckpoints = new HashMap<>();
+
+  // How often to check whether deferred checkpoints can be saved, when nothing else is happening.
+  // The rejection log writer doesn't tell us when it's done.
+  private static final long DEFERRED_CHECKPOINT_POLL_NANOS = SECONDS.toNanos(1);
+
+  // State of the bulk request in flight, published for other threads.
+  // The start time is written before the flag, so a reader that sees the flag also sees the time.
+  private volatile long requestStartNanos;
+  private volatile int requestActions;
+  private volatile int requestAttempt;
+  private volatile boolean requestInProgress;
 
-  @GuardedBy("this")
-  private long requestStartNanos;
+  // Size of the write buffer, published for other threads whenever the worker
+  // checks whether a flush is due.
+  private volatile int publishedBufferActions;
+  private volatile int publishedBufferBytes;
 
+  /**
+   * @param checkpointTrack identifies the destination cluster when the same events
+   * are written to more than one cluster. See {@link CheckpointService}.
+   * @param rejectionLog writes the rejection log entries for the same destination cluster.
+   * May be shared with other writers.
+   * @param breakdown receives the details of every successful write
+   */
   public ElasticsearchWriter(RestHighLevelClient client, CheckpointService checkpointService,
+                             int checkpointTrack,
                              RequestFactory requestFactory,
-                             BulkRequestConfig bulkConfig) {
+                             RejectionLogWriter rejectionLog,
+                             BulkRequestConfig bulkConfig,
+                             MetricBreakdown breakdown) {
     this.client = requireNonNull(client);
     this.checkpointService = requireNonNull(checkpointService);
+    this.checkpointTrack = checkpointTrack;
     this.requestFactory = requireNonNull(requestFactory);
-    this.bufferActionsThreshold = bulkConfig.maxActions();
-    this.bufferBytesThreshold = bulkConfig.maxBytes().getBytes();
-    this.bulkRequestTimeout = requireNonNull(bulkConfig.timeout());
+    this.rejectionLog = requireNonNull(rejectionLog);
+    setBulkRequestConfig(bulkConfig);
+    this.externalVersioning = requestFactory.usesExternalVersioning();
+    this.bufferPositions = externalVersioning ? null : new HashMap<>();
+    this.breakdown = requireNonNull(breakdown);
   }
 
-  private final LinkedHashMap<String, EventDocWriteRequest> buffer = new LinkedHashMap<>();
+  // Requests waiting to be sent, in the order they were received.
+  private final List<EventDocWriteRequest> buffer = new ArrayList<>();
   private int bufferBytes;
+  private long bufferStartNanos; // when the oldest request in the buffer was added
+  private long[] bufferNanos = new long[64]; // when each request in the buffer was added
+
+  // Map from buffer key to the index of the key's request in the buffer.
+  // Null if external versioning is enabled, in which case the buffer
+  // may hold more than one version of the same document.
+  @Nullable
+  private final Map<String, Integer> bufferPositions;
 
   // Map from vbucket to checkpoint of last ignored event.
   private final Map<Integer, Checkpoint> ignoreBuffer = new HashMap<>();
 
+  private static final int MAX_TRACES = 1024;
+
+  // Sampled events whose stages are being traced. Events that leave without finishing
+  // (because a newer version replaced them, for example) eventually fall out.
+  private final Map<Event, DocumentTrace> traces = new LinkedHashMap<Event, DocumentTrace>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Event, DocumentTrace> eldest) {
+      return size() > MAX_TRACES;
+    }
+  };
+
+  /**
+   * Changes the limits for subsequent bulk requests. A buffer that is now over
+   * the limits is sent the next time {@link #flushIfDue} is called.
+   * The number of concurrent requests is managed by the worker group, and is ignored here.
+   */
+  public void setBulkRequestConfig(BulkRequestConfig bulkConfig) {
+    this.bufferActionsThreshold = bulkConfig.maxActions();
+    this.bufferBytesThreshold = bulkConfig.maxBytes().getBytes();
+    this.minActions = bulkConfig.minActions();
+    this.lingerNanos = bulkConfig.linger().nanos();
+    this.bulkRequestTimeout = requireNonNull(bulkConfig.timeout());
+  }
+
   /**
    * Appends the given event to the write buffer.
-   * Must be followed by a call to {@link #flush}.
+   * Must be followed by a call to {@link #flushIfDue}.
    * <p>
    * The writer assumes ownership of the event (is responsible for releasing it).
    */
@@ -149,29 +278,26 @@ public class ElasticsearchWriter implements Closeable {
     // document would be stuck in the bad state until being modified with a higher
     // seqno than before the rollback. Anyway, let's revisit this if the
     // "one action per-document per-batch" strategy is identified as a bottleneck.
+    //
+    // Update: External versioning is now available as an opt-in (see the
+    // "externalVersion" config property) for users who accept the rollback caveat.
+    // When enabled, Elasticsearch rejects stale versions with a CONFLICT,
+    // so the buffer is append-only and may hold several versions of a document.
+
+    final long dequeuedNanos = System.nanoTime();
+    Metrics.queueWaitTimer().record(dequeuedNanos - event.getReceivedNanos(), NANOSECONDS);
 
     final EventDocWriteRequest request = requestFactory.newDocWriteRequest(event);
+
+    final long transformedNanos = System.nanoTime();
+    Metrics.transformTimer().record(transformedNanos - dequeuedNanos, NANOSECONDS);
+
     if (request == null) {
       try {
         if (LOGGER.isTraceEnabled()) {
           LOGGER.trace("Skipping event, no matching type: {}", redactUser(event));
         }
-
-        if (buffer.isEmpty()) {
-          // can ignore immediately
-          final Checkpoint checkpoint = event.getCheckpoint();
-          if (isMetadata(event)) {
-            // Avoid cycle where writing the checkpoints triggers another DCP event.
-            LOGGER.debug("Ignoring metadata, not updating checkpoint for {}", event);
-            checkpointService.setWithoutMarkingDirty(event.getVbucket(), event.getCheckpoint());
-          } else {
-            LOGGER.debug("Ignoring event, immediately updating checkpoint for {}", event);
-            checkpointService.set(event.getVbucket(), checkpoint);
-          }
-        } else {
-          // ignore later after we've completed a bulk request and saved
-          ignoreBuffer.put(event.getVbucket(), event.getCheckpoint());
-        }
+        ignore(event);
         return;
 
       } finally {
@@ -179,13 +305,58 @@ public class ElasticsearchWriter implements Closeable {
       }
     }
 
+    if (request instanceof EventRejectionIndexRequest) {
+      // The document couldn't be transformed. Once the rejection log entry is queued,
+      // there's nothing left to write for this event. The vbucket's checkpoint
+      // is held back until the entry is written.
+      rejectionLog.add((EventRejectionIndexRequest) request);
+      ignore(event);
+      return;
+    }
+
+    if (SpanExporter.isSampled(event)) {
+      traces.put(event, new DocumentTrace(event, checkpointTrack, dequeuedNanos, transformedNanos));
+    }
+
+    final String key = bufferKey(request);
+
+    // If an earlier version of this document is waiting to be retried, the new version
+    // takes its place in the retry queue. Letting the new version into a batch
+    // could cause it to be overwritten by the older version when the retry succeeds.
+    // (Not a concern with external versioning; Elasticsearch would reject the older version.)
+    if (!externalVersioning && retryQueue.contains(key)) {
+      final EventDocWriteRequest superseded = retryQueue.put(key, request);
+      final DocumentTrace trace = traces.get(event);
+      if (trace != null) {
+        trace.queuedForRetry(transformedNanos);
+      }
+      DocumentLifecycle.logSkippedBecauseNewerVersionReceived(superseded.getEvent(), event.getTracingToken());
+      superseded.getEvent().release();
+      return;
+    }
+
+    if (buffer.isEmpty()) {
+      bufferStartNanos = transformedNanos;
+    }
     bufferBytes += request.estimatedSizeInBytes();
 
+    if (bufferPositions == null) {
+      setBufferNanos(buffer.size(), transformedNanos);
+      buffer.add(request);
+      flushIfFull();
+      return;
+    }
+
     // Ensure every (documentID, dest index) pair is unique within a batch.
     // Do this *after* skipping unrecognized / ignored events, so that
     // an ignored deletion does not evict a previously buffered mutation.
-    final EventDocWriteRequest evicted = buffer.put(event.getKey() + '\0' + request.index(), request);
-    if (evicted != null) {
+    final Integer position = bufferPositions.putIfAbsent(key, buffer.size());
+    if (position == null) {
+      setBufferNanos(buffer.size(), transformedNanos);
+      buffer.add(request);
+    } else {
+      setBufferNanos(position, transformedNanos);
+      final EventDocWriteRequest evicted = buffer.set(position, request);
       String qualifiedDocId = event.getKey(true);
       String evictedQualifiedDocId = evicted.getEvent().getKey(true);
       if (!qualifiedDocId.equals(evictedQualifiedDocId)) {
@@ -200,11 +371,95 @@ public class ElasticsearchWriter implements Closeable {
       evicted.getEvent().release();
     }
 
-    if (bufferIsFull()) {
-      flush();
+    flushIfFull();
+  }
+
+  /**
+   * Updates the checkpoint for an event that has nothing to write,
+   * or remembers it for after the current batch is written.
+   */
+  private void ignore(Event event) {
+    if (buffer.isEmpty()) {
+      // can ignore immediately
+      final Checkpoint checkpoint = event.getCheckpoint();
+      if (isMetadata(event)) {
+        // Avoid cycle where writing the checkpoints triggers another DCP event.
+        LOGGER.debug("Ignoring metadata, not updating checkpoint for {}", event);
+        commitCheckpoint(event.getVbucket(), checkpoint, false);
+      } else {
+        LOGGER.debug("Ignoring event, immediately updating checkpoint for {}", event);
+        commitCheckpoint(event.getVbucket(), checkpoint, true);
+      }
+    } else {
+      // ignore later after we've completed a bulk request and saved
+      ignoreBuffer.put(event.getVbucket(), event.getCheckpoint());
+    }
+  }
+
+  private void setBufferNanos(int index, long nanos) {
+    if (index == bufferNanos.length) {
+      bufferNanos = Arrays.copyOf(bufferNanos, index * 2);
+    }
+    bufferNanos[index] = nanos;
+  }
+
+  private static String bufferKey(EventDocWriteRequest request) {
+    return request.getEvent().getKey() + '\0' + request.index();
+  }
+
+  /**
+   * Returns true if the vbucket has items waiting in the retry queue,
+   * or rejection log entries that are not yet written.
+   */
+  private boolean hasPendingWrites(int vbucket) {
+    return retryQueue.hasPending(vbucket) || rejectionLog.hasPending(vbucket);
+  }
+
+  /**
+   * Updates the checkpoint for the given vbucket, unless the vbucket has pending writes
+   * (see {@link #hasPendingWrites}). In that case the checkpoint is saved
+   * after the vbucket no longer has any pending writes.
+   */
+  private void commitCheckpoint(int vbucket, Checkpoint checkpoint, boolean markDirty) {
+    if (hasPendingWrites(vbucket)) {
+      LOGGER.debug("Deferring checkpoint update for vbucket {} until pending writes complete", vbucket);
+      deferredCheckpoints.merge(vbucket, checkpoint, ElasticsearchWriter::later);
+      return;
+    }
+
+    final Checkpoint deferred = deferredCheckpoints.remove(vbucket);
+    if (deferred != null) {
+      checkpointService.set(checkpointTrack, vbucket, later(deferred, checkpoint));
+    } else if (markDirty) {
+      checkpointService.set(checkpointTrack, vbucket, checkpoint);
+    } else {
+      checkpointService.setWithoutMarkingDirty(checkpointTrack, vbucket, checkpoint);
     }
   }
 
+  private void commitDeferredCheckpoints() {
+    final Iterator<Map.Entry<Integer, Checkpoint>> i = deferredCheckpoints.entrySet().iterator();
+    while (i.hasNext()) {
+      final Map.Entry<Integer, Checkpoint> entry = i.next();
+      if (!hasPendingWrites(entry.getKey())) {
+        LOGGER.debug("Pending writes complete for vbucket {}; saving deferred checkpoint", entry.getKey());
+        checkpointService.set(checkpointTrack, entry.getKey(), entry.getValue());
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns whichever checkpoint has the higher seqno. If the checkpoints have different
+   * vbuuids (rollback?) the seqnos can't be compared, so assume {@code b} is the later one.
+   */
+  private static Checkpoint later(Checkpoint a, Checkpoint b) {
+    if (a.getVbuuid() != b.getVbuuid()) {
+      return b;
+    }
+    return Long.compareUnsigned(a.getSeqno(), b.getSeqno()) > 0 ? a : b;
+  }
+
   private Checkpoint adjustForIgnoredEvents(int vbucket, Checkpoint checkpoint) {
     final Checkpoint ignored = ignoreBuffer.remove(vbucket);
     if (ignored == null) {
@@ -225,37 +480,110 @@ public class ElasticsearchWriter implements Closeable {
     return checkpoint;
   }
 
-  private boolean bufferIsFull() {
-    return buffer.size() >= bufferActionsThreshold || bufferBytes >= bufferBytesThreshold;
+  private void flushIfFull() throws InterruptedException {
+    if (buffer.size() >= bufferActionsThreshold) {
+      flush(FlushReason.ACTIONS);
+    } else if (bufferBytes >= bufferBytesThreshold) {
+      flush(FlushReason.BYTES);
+    }
   }
 
-  public void flush() throws InterruptedException {
+  /**
+   * Sends a bulk request if the buffer has reached the minimum number of actions,
+   * if the oldest buffered action has lingered long enough, or if it's time to retry
+   * actions that failed earlier. Otherwise saves any deferred checkpoints that no longer
+   * need to wait. Should be called when there are no more events immediately available to write.
+   */
+  public void flushIfDue() throws InterruptedException {
+    final FlushReason reason = dueFlushReason();
+    if (reason != null) {
+      flush(reason);
+    } else if (!deferredCheckpoints.isEmpty()) {
+      commitDeferredCheckpoints();
+    }
+    publishedBufferActions = buffer.size();
+    publishedBufferBytes = bufferBytes;
+  }
+
+  @Nullable
+  private FlushReason dueFlushReason() {
+    if (!buffer.isEmpty()) {
+      if (buffer.size() >= minActions) {
+        return FlushReason.MIN_ACTIONS;
+      }
+      if (System.nanoTime() - bufferStartNanos >= lingerNanos) {
+        return FlushReason.LINGER;
+      }
+    }
+    return retryQueue.isDue() ? FlushReason.RETRY : null;
+  }
+
+  /**
+   * Returns the number of nanoseconds until {@link #flushIfDue()} would send a bulk request
+   * (zero if it would send one right away) or check the deferred checkpoints again,
+   * or Long.MAX_VALUE if there's nothing to do.
+   */
+  public long getNanosUntilFlushDue() {
+    final long nanosUntilRetry = deferredCheckpoints.isEmpty()
+        ? retryQueue.nanosUntilDue()
+        : Math.min(retryQueue.nanosUntilDue(), DEFERRED_CHECKPOINT_POLL_NANOS);
     if (buffer.isEmpty()) {
+      return nanosUntilRetry;
+    }
+    if (buffer.size() >= minActions) {
+      return 0;
+    }
+    final long nanosUntilLingerExpires = Math.max(0, lingerNanos - (System.nanoTime() - bufferStartNanos));
+    return Math.min(nanosUntilRetry, nanosUntilLingerExpires);
+  }
+
+  private void flush(FlushReason reason) throws InterruptedException {
+    final boolean retryDue = retryQueue.isDue();
+    if (buffer.isEmpty() && !retryDue) {
       return;
     }
 
     try {
-      synchronized (this) {
-        requestInProgress = true;
-        requestStartNanos = System.nanoTime();
+      final long flushStartNanos = System.nanoTime();
+      requestStartNanos = flushStartNanos;
+      requestInProgress = true;
+
+      for (int i = 0; i < buffer.size(); i++) {
+        Metrics.batchWaitTimer().record(flushStartNanos - bufferNanos[i], NANOSECONDS);
       }
 
-      final int totalActionCount = buffer.size();
-      final int totalEstimatedBytes = bufferBytes;
-      LOGGER.debug("Starting bulk request: {} actions for ~{} bytes", totalActionCount, totalEstimatedBytes);
+      final List<EventDocWriteRequest> requests = new ArrayList<>(buffer);
+      clearBuffer();
 
-      final long startNanos = System.nanoTime();
+      // If the retry queue is empty, or if we're about to retry everything in it,
+      // any items that fail this time will start a new backoff period.
+      final boolean scheduleRetry = retryDue || retryQueue.isEmpty();
+      if (retryDue) {
+        LOGGER.info("Retrying {} actions from the retry queue", retryQueue.size());
+        requests.addAll(retryQueue.drain());
+      }
 
-      List<EventDocWriteRequest> requests = new ArrayList<>(buffer.values());
-      clearBuffer();
+      forEachTrace(requests, t -> t.flushStarted(flushStartNanos));
+      requestActions = requests.size();
+
+      final int totalActionCount = requests.size();
+      final int totalEstimatedBytes = estimatedSizeInBytes(requests);
+      LOGGER.debug("Starting bulk request: {} actions for ~{} bytes (flush reason: {})", totalActionCount, totalEstimatedBytes, reason);
+
+      flushReasonCounters.get(reason).increment();
+      batchSizeSummary.record(totalActionCount);
+
+      final long startNanos = System.nanoTime();
 
       final Iterator<TimeValue> waitIntervals = backoffPolicy.iterator();
-      final Map<Integer, EventDocWriteRequest> vbucketToLastEvent = lenientIndex(r -> r.getEvent().getVbucket(), requests);
+      final Map<Integer, Checkpoint> vbucketToCheckpoint = latestCheckpoints(requests);
 
       int attemptCounter = 1;
       long indexingTookNanos = 0;
       long totalRetryDelayMillis = 0;
 
+      final RetryReporter retryReporter = RetryReporter.forLogger(LOGGER);
+
       while (true) {
         if (Thread.interrupted()) {
           requests.forEach(r -> r.getEvent().release());
@@ -263,7 +591,9 @@ public class ElasticsearchWriter implements Closeable {
           return;
         }
 
-        DocumentLifecycle.logEsWriteStarted(requests, attemptCounter);
+        final int attempt = attemptCounter;
+        requestAttempt = attempt;
+        DocumentLifecycle.logEsWriteStarted(requests, attempt);
 
         if (attemptCounter == 1) {
           LOGGER.debug("Bulk request attempt #{}", attemptCounter++);
@@ -271,19 +601,22 @@ public class ElasticsearchWriter implements Closeable {
           LOGGER.info("Bulk request attempt #{}", attemptCounter++);
         }
 
-
-        final List<EventDocWriteRequest> requestsToRetry = new ArrayList<>(0);
         final BulkRequest bulkRequest = newBulkRequest(requests);
         bulkRequest.timeout(bulkRequestTimeout);
 
-        final RetryReporter retryReporter = RetryReporter.forLogger(LOGGER);
-
+        final long attemptStartNanos = System.nanoTime();
         try {
           final BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
           final long nowNanos = System.nanoTime();
           final BulkItemResponse[] responses = bulkResponse.getItems();
 
-          indexingTookNanos += bulkResponse.getTook().nanos();
+          final long tookNanos = bulkResponse.getTook().nanos();
+          indexingTookNanos += tookNanos;
+          Metrics.elasticsearchTookTimer().record(tookNanos, NANOSECONDS);
+          Metrics.httpTimer().record(Math.max(0, nowNanos - attemptStartNanos - tookNanos), NANOSECONDS);
+
+          int retryCount = 0;
+          boolean spooled = false;
 
           for (int i = 0; i < responses.length; i++) {
             final BulkItemResponse response = responses[i];
@@ -291,45 +624,63 @@ public class ElasticsearchWriter implements Closeable {
             final EventDocWriteRequest request = requests.get(i);
             final Event e = request.getEvent();
 
+            final DocumentTrace trace = traces.isEmpty() ? null : traces.get(e);
+            if (trace != null) {
+              trace.bulkAttempt(attempt, attemptStartNanos, nowNanos, tookNanos, failure == null ? "ok" : failure.getStatus().name().toLowerCase(Locale.ROOT));
+            }
+
             if (failure == null) {
-              updateLatencyMetrics(e, nowNanos);
+              updateLatencyMetrics(request, nowNanos);
+              finishTrace(e, "written", nowNanos);
               DocumentLifecycle.logEsWriteSucceeded(request);
               e.release();
               continue;
             }
 
+            if (externalVersioning && failure.getStatus() == RestStatus.CONFLICT) {
+              // Elasticsearch already has a newer version of the document. Mission accomplished!
+              updateLatencyMetrics(request, nowNanos);
+              finishTrace(e, "elasticsearch_has_newer_version", nowNanos);
+              DocumentLifecycle.logSkippedBecauseElasticsearchHasNewerVersion(request);
+              e.release();
+              continue;
+            }
+
             if (isRetryable(failure)) {
               retryReporter.add(e, failure);
-              requestsToRetry.add(request);
+              if (trace != null) {
+                trace.queuedForRetry(nowNanos);
+              }
+              addToRetryQueue(request);
+              retryCount++;
               DocumentLifecycle.logEsWriteFailedWillRetry(request);
               continue;
             }
 
-            if (request instanceof EventRejectionIndexRequest) {
-              // ES rejected the rejection log entry! Total fail.
-              LOGGER.error("Failed to index rejection document for event {}; status code: {} {}", redactUser(e), failure.getStatus(), failure.getMessage());
-              Metrics.rejectionLogFailureCounter().increment();
-              updateLatencyMetrics(e, nowNanos);
-              e.release();
-
-            } else {
-              LOGGER.warn("Permanent failure to index event {}; status code: {} {}", redactUser(e), failure.getStatus(), failure.getMessage());
-              Metrics.rejectionCounter().increment();
-              DocumentLifecycle.logEsWriteRejected(request, failure.getStatus().getStatus(), failure.getMessage());
-
-              // don't release event; the request factory assumes ownership
-              final EventRejectionIndexRequest rejectionLogRequest = requestFactory.newRejectionLogRequest(request, failure);
-              if (rejectionLogRequest != null) {
-                requestsToRetry.add(rejectionLogRequest);
-              }
+            LOGGER.warn("Permanent failure to index event {}; status code: {} {}", redactUser(e), failure.getStatus(), failure.getMessage());
+            Metrics.rejectionCounter().increment();
+            finishTrace(e, "rejected", nowNanos);
+            DocumentLifecycle.logEsWriteRejected(request, failure.getStatus().getStatus(), failure.getMessage());
+            DeadLetterSpool.add(request, checkpointTrack, failure);
+            spooled = true;
+
+            // Don't release event; the request factory assumes ownership.
+            // The rejection log entry is written separately, so the rest of the batch doesn't wait for it.
+            // The vbucket's checkpoint is held back until the entry is written.
+            final EventRejectionIndexRequest rejectionLogRequest = requestFactory.newRejectionLogRequest(request, failure);
+            if (rejectionLogRequest != null) {
+              rejectionLog.add(rejectionLogRequest);
             }
 
             runQuietly("error listener", () -> errorListener.onFailedIndexResponse(e, response));
           }
 
-          Metrics.indexingRetryCounter().increment(requestsToRetry.size());
-
-          requests = requestsToRetry;
+          Metrics.indexingRetryCounter().increment(retryCount);
+          if (spooled) {
+            // Rejected documents must be safe on disk before the checkpoint moves past them.
+            DeadLetterSpool.sync();
+          }
+          break;
 
         } catch (ElasticsearchStatusException e) {
           if (e.status() == RestStatus.UNAUTHORIZED) {
@@ -361,63 +712,275 @@ public class ElasticsearchWriter implements Closeable {
           throw e;
         }
 
-        if (requests.isEmpty()) {
-          // EXIT!
-          for (Map.Entry<Integer, EventDocWriteRequest> entry : vbucketToLastEvent.entrySet()) {
-            final int vbucket = entry.getKey();
-            Checkpoint checkpoint = entry.getValue().getEvent().getCheckpoint();
-            checkpoint = adjustForIgnoredEvents(vbucket, checkpoint);
-            checkpointService.set(entry.getKey(), checkpoint);
-          }
-
-          // might have some "ignore" checkpoints left over in the buffer if there
-          // were no writes for the same vbucket
-          for (Map.Entry<Integer, Checkpoint> entry : ignoreBuffer.entrySet()) {
-            checkpointService.set(entry.getKey(), entry.getValue());
-          }
-
-          Metrics.bytesCounter().increment(totalEstimatedBytes);
-          Metrics.indexTimePerDocument().record(indexingTookNanos / totalActionCount, NANOSECONDS);
-          if (totalRetryDelayMillis != 0) {
-            Metrics.retryDelayTimer().record(totalRetryDelayMillis, MILLISECONDS);
-          }
-
-          if (LOGGER.isInfoEnabled()) {
-            final long elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - startNanos);
-            final ByteSizeValue prettySize = new ByteSizeValue(totalEstimatedBytes, ByteSizeUnit.BYTES);
-            LOGGER.info("Wrote {} actions ~{} in {} ms",
-                totalActionCount, prettySize, elapsedMillis);
-          }
-
-          return;
-        }
+        final long failedNanos = System.nanoTime();
+        Metrics.httpTimer().record(failedNanos - attemptStartNanos, NANOSECONDS);
+        forEachTrace(requests, t -> t.bulkAttempt(attempt, attemptStartNanos, failedNanos, 0, "failed"));
 
-        // retry!
-        retryReporter.report();
+        // The whole request failed, so Elasticsearch is probably unreachable.
+        // No point sending new batches; retry this one in place.
         Metrics.bulkRetriesCounter().increment();
         final TimeValue retryDelay = waitIntervals.next(); // todo check for hasNext? bail out or continue?
         LOGGER.info("Retrying bulk request in {}", retryDelay);
         MILLISECONDS.sleep(retryDelay.millis());
         totalRetryDelayMillis += retryDelay.millis();
+        final long retryNanos = System.nanoTime();
+        forEachTrace(requests, t -> t.retryDelay(failedNanos, retryNanos));
       }
+
+      if (retryQueue.isEmpty()) {
+        retryQueue.resetBackoff();
+      } else if (scheduleRetry) {
+        retryReporter.report();
+        Metrics.bulkRetriesCounter().increment();
+        final TimeValue retryDelay = retryQueue.scheduleNextAttempt();
+        LOGGER.info("Retrying {} actions in {}; new batches will continue in the meantime.", retryQueue.size(), retryDelay);
+        totalRetryDelayMillis += retryDelay.millis();
+      }
+
+      for (Map.Entry<Integer, Checkpoint> entry : vbucketToCheckpoint.entrySet()) {
+        final int vbucket = entry.getKey();
+        commitCheckpoint(vbucket, adjustForIgnoredEvents(vbucket, entry.getValue()), true);
+      }
+
+      // might have some "ignore" checkpoints left over in the buffer if there
+      // were no writes for the same vbucket
+      for (Map.Entry<Integer, Checkpoint> entry : ignoreBuffer.entrySet()) {
+        commitCheckpoint(entry.getKey(), entry.getValue(), true);
+      }
+      ignoreBuffer.clear();
+
+      commitDeferredCheckpoints();
+
+      Metrics.bytesCounter().increment(totalEstimatedBytes);
+      Metrics.indexTimePerDocument().record(indexingTookNanos / totalActionCount, NANOSECONDS);
+      if (totalRetryDelayMillis != 0) {
+        Metrics.retryDelayTimer().record(totalRetryDelayMillis, MILLISECONDS);
+      }
+
+      if (LOGGER.isInfoEnabled()) {
+        final long elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        final ByteSizeValue prettySize = new ByteSizeValue(totalEstimatedBytes, ByteSizeUnit.BYTES);
+        LOGGER.info("Wrote {} actions ~{} in {} ms",
+            totalActionCount, prettySize, elapsedMillis);
+      }
+
     } finally {
-      synchronized (this) {
-        requestInProgress = false;
+      requestInProgress = false;
+    }
+  }
+
+  private void addToRetryQueue(EventDocWriteRequest request) {
+    final String key = bufferKey(request);
+    final EventDocWriteRequest evicted = retryQueue.put(key, request);
+    if (evicted == null) {
+      return;
+    }
+
+    if (externalVersioning) {
+      // More than one version of the document failed. Only the newest needs retrying.
+      if (evicted.version() > request.version()) {
+        retryQueue.put(key, evicted);
+        DocumentLifecycle.logSkippedBecauseNewerVersionReceived(request.getEvent(), evicted.getEvent().getTracingToken());
+        request.getEvent().release();
+      } else {
+        DocumentLifecycle.logSkippedBecauseNewerVersionReceived(evicted.getEvent(), request.getEvent().getTracingToken());
+        evicted.getEvent().release();
+      }
+      return;
+    }
+
+    // Keys in the retry queue are excluded from new batches, so there should never
+    // be a collision. Handle it anyway, just in case.
+    LOGGER.warn("Retry queue already had an entry for {}", redactUser(evicted.getEvent()));
+    evicted.getEvent().release();
+  }
+
+  /**
+   * Returns true if the event may replace an older version of the same document
+   * that is still waiting to be written. Only events certain to be indexed qualify;
+   * if a deletion or a skipped event replaced the older version, the older version
+   * would never be written. Safe to call from any thread.
+   */
+  public boolean canSupersede(Event event) {
+    return requestFactory.isCertainToIndex(event);
+  }
+
+  /**
+   * Returns the number of actions waiting to be retried. Safe to call from any thread.
+   */
+  public int getRetryQueueSize() {
+    return retryQueue.size();
+  }
+
+  /**
+   * Writes all buffered requests, then discards any requests for the given vbuckets
+   * that are still waiting to be retried. Call this before the vbuckets are assigned
+   * to a different group member, so their checkpoints are as recent as possible
+   * and the new owner does not write the same events again.
+   * <p>
+   * Failed requests are not retried early. Checkpoints for their vbuckets
+   * stay where they were before the failure, so the new owner writes them instead.
+   */
+  public void handOff(Set<Integer> vbuckets) throws InterruptedException {
+    flush(FlushReason.HANDOFF);
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedException("Interrupted while writing buffered requests for handoff.");
+    }
+    release(vbuckets);
+  }
+
+  /**
+   * Writes all buffered requests, then keeps retrying failed requests until the retry queue
+   * is empty or the deadline passes. Call this before a different writer takes over
+   * this writer's vbuckets, so events for the same document are not written out of order.
+   *
+   * @param deadlineNanos when to give up, in terms of {@link System#nanoTime()}
+   * @return true if nothing is left to write
+   */
+  public boolean drain(long deadlineNanos) throws InterruptedException {
+    FlushReason reason = FlushReason.RESIZE;
+    while (true) {
+      flush(reason);
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException("Interrupted while draining writer.");
+      }
+      if (retryQueue.isEmpty()) {
+        return true;
+      }
+
+      final long nanosUntilRetry = retryQueue.nanosUntilDue();
+      if (nanosUntilRetry > deadlineNanos - System.nanoTime()) {
+        return false;
       }
+      NANOSECONDS.sleep(nanosUntilRetry);
+      reason = FlushReason.RETRY;
     }
   }
 
-  public synchronized long getCurrentRequestNanos() {
+  /**
+   * Discards all buffered requests for the given vbuckets, along with any pending checkpoint
+   * updates, so this writer does not overwrite the new owner's work with stale data.
+   */
+  private void release(Set<Integer> vbuckets) {
+    final List<EventDocWriteRequest> kept = new ArrayList<>();
+    final List<EventDocWriteRequest> discarded = new ArrayList<>();
+    for (int i = 0; i < buffer.size(); i++) {
+      final EventDocWriteRequest request = buffer.get(i);
+      if (vbuckets.contains(request.getEvent().getVbucket())) {
+        discarded.add(request);
+      } else {
+        bufferNanos[kept.size()] = bufferNanos[i]; // kept requests move toward the front
+        kept.add(request);
+      }
+    }
+    discarded.addAll(retryQueue.drain(vbuckets));
+
+    if (buffer.size() != kept.size()) {
+      final long startNanos = bufferStartNanos;
+      clearBuffer();
+      for (EventDocWriteRequest request : kept) {
+        buffer.add(request);
+        bufferBytes += request.estimatedSizeInBytes();
+        if (bufferPositions != null) {
+          bufferPositions.put(bufferKey(request), buffer.size() - 1);
+        }
+      }
+      bufferStartNanos = startNanos;
+    }
+
+    ignoreBuffer.keySet().removeAll(vbuckets);
+    deferredCheckpoints.keySet().removeAll(vbuckets);
+
+    if (!discarded.isEmpty()) {
+      LOGGER.info("Discarding {} buffered actions for released vbuckets", discarded.size());
+      discarded.forEach(r -> r.getEvent().release());
+    }
+  }
+
+  /**
+   * Returns how long the bulk request in flight has been running, or zero if none is in flight.
+   * Safe to call from any thread.
+   */
+  public long getCurrentRequestNanos() {
     return requestInProgress ? System.nanoTime() - requestStartNanos : 0;
   }
 
-  private static void updateLatencyMetrics(Event e, long nowNanos) {
+  /**
+   * Returns the number of actions in the bulk request in flight, or zero if none is in flight.
+   * Safe to call from any thread.
+   */
+  public int getCurrentRequestActions() {
+    return requestInProgress ? requestActions : 0;
+  }
+
+  /**
+   * Returns which attempt the bulk request in flight is on (starting at 1),
+   * or zero if none is in flight. Safe to call from any thread.
+   */
+  public int getCurrentRequestAttempt() {
+    return requestInProgress ? requestAttempt : 0;
+  }
+
+  /**
+   * Returns the number of actions waiting in the write buffer, as of the last
+   * time the worker checked whether a flush was due. Safe to call from any thread.
+   */
+  public int getBufferedActions() {
+    return publishedBufferActions;
+  }
+
+  /**
+   * Returns the estimated size of the write buffer, as of the last
+   * time the worker checked whether a flush was due. Safe to call from any thread.
+   */
+  public int getBufferedBytes() {
+    return publishedBufferBytes;
+  }
+
+  /**
+   * Returns the number of nanoseconds until actions in the retry queue are retried,
+   * or Long.MAX_VALUE if the queue is empty. Safe to call from any thread.
+   */
+  public long getNanosUntilRetry() {
+    return retryQueue.nanosUntilDue();
+  }
+
+  private void updateLatencyMetrics(EventDocWriteRequest request, long nowNanos) {
+    final Event e = request.getEvent();
     final long elapsedNanos = nowNanos - e.getReceivedNanos();
     Metrics.latencyTimer().record(elapsedNanos, NANOSECONDS);
+    breakdown.recordWrite(e.getVbucket(), request.index(), elapsedNanos);
+  }
+
+  /**
+   * If the event is being traced, exports its trace.
+   */
+  private void finishTrace(Event e, String outcome, long nowNanos) {
+    if (!traces.isEmpty()) {
+      final DocumentTrace trace = traces.remove(e);
+      if (trace != null) {
+        trace.finish(outcome, nowNanos);
+      }
+    }
+  }
+
+  private void forEachTrace(List<EventDocWriteRequest> requests, Consumer<DocumentTrace> action) {
+    if (traces.isEmpty()) {
+      return;
+    }
+    for (EventDocWriteRequest r : requests) {
+      final DocumentTrace trace = traces.get(r.getEvent());
+      if (trace != null) {
+        action.accept(trace);
+      }
+    }
   }
 
   private void clearBuffer() {
     buffer.clear();
+    if (bufferPositions != null) {
+      bufferPositions.clear();
+    }
     bufferBytes = 0;
   }
 
@@ -448,16 +1011,38 @@ public class ElasticsearchWriter implements Closeable {
     }
   }
 
-  private static <K, V> Map<K, V> lenientIndex(Function<V, K> keyGenerator, Iterable<V> items) {
-    final Map<K, V> result = new HashMap<>();
-    for (V item : items) {
-      result.put(keyGenerator.apply(item), item);
+  private static int estimatedSizeInBytes(List<EventDocWriteRequest> requests) {
+    int result = 0;
+    for (EventDocWriteRequest r : requests) {
+      result += r.estimatedSizeInBytes();
     }
     return result;
   }
 
+  /**
+   * Returns a map from vbucket to the latest checkpoint of any of the given requests.
+   */
+  private static Map<Integer, Checkpoint> latestCheckpoints(List<EventDocWriteRequest> requests) {
+    final Map<Integer, Checkpoint> result = new HashMap<>();
+    for (EventDocWriteRequest r : requests) {
+      result.merge(r.getEvent().getVbucket(), r.getEvent().getCheckpoint(), ElasticsearchWriter::later);
+    }
+    return result;
+  }
+
+  /**
+   * Releases all buffered and retrying events, and forgets their checkpoints.
+   * Afterwards there is nothing left to flush.
+   */
   @Override
   public void close() {
-    buffer.values().forEach(e -> e.getEvent().release());
+    traces.clear();
+    buffer.forEach(e -> e.getEvent().release());
+    clearBuffer();
+    retryQueue.drain().forEach(e -> e.getEvent().release());
+    ignoreBuffer.clear();
+    deferredCheckpoints.clear();
+    publishedBufferActions = 0;
+    publishedBufferBytes = 0;
   }
 }
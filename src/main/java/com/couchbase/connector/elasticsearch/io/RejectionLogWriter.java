@@ -0,0 +1,262 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.config.es.RejectLogConfig;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.couchbase.connector.util.ThrowableHelper;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.couchbase.client.core.logging.RedactableArgument.redactUser;
+import static com.couchbase.connector.elasticsearch.io.BackoffPolicyBuilder.truncatedExponentialBackoff;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.elasticsearch.common.unit.TimeValue.timeValueMillis;
+import static org.elasticsearch.common.unit.TimeValue.timeValueMinutes;
+
+/**
+ * Writes rejection log entries for one destination cluster, in bulk requests
+ * separate from the document writes.
+ * <p>
+ * Document writers hand off entries without waiting for them to be written, so a burst
+ * of rejections (after a mapping change goes wrong, for example) doesn't slow down the
+ * documents Elasticsearch accepts. The entries wait in a bounded queue; if it's full,
+ * the document writer waits for room.
+ * <p>
+ * Entries are held only in memory. Document writers must not save a checkpoint for a vbucket
+ * while {@link #hasPending(int)} is true, so entries still waiting when the connector stops
+ * are written again after it restarts.
+ * <p>
+ * Thread-safe.
+ */
+public class RejectionLogWriter implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RejectionLogWriter.class);
+
+  private static final TimeValue REQUEST_TIMEOUT = timeValueMinutes(1);
+
+  private final BackoffPolicy backoffPolicy =
+      truncatedExponentialBackoff(timeValueMillis(50), timeValueMinutes(5))
+          .fullJitter()
+          .build();
+
+  private final RestHighLevelClient client;
+  private final int maxActions;
+  private final long maxBytes;
+  private final BlockingQueue<Entry> queue;
+  private final BlockingQueue<Throwable> fatalErrorQueue;
+
+  // Map from vbucket to number of entries for the vbucket that are queued or being written.
+  private final ConcurrentMap<Integer, Integer> pendingByVbucket = new ConcurrentHashMap<>();
+  private final Thread thread;
+  private volatile boolean closed;
+
+  /**
+   * @param fatalErrorQueue receives the error if the writer thread stops unexpectedly.
+   * Checkpoints held back for unwritten entries would never be saved, so the connector must stop.
+   */
+  public RejectionLogWriter(RestHighLevelClient client, RejectLogConfig config, String threadName,
+                            BlockingQueue<Throwable> fatalErrorQueue) {
+    this.client = requireNonNull(client);
+    this.fatalErrorQueue = requireNonNull(fatalErrorQueue);
+    this.maxActions = config.maxActions();
+    this.maxBytes = config.maxBytes().getBytes();
+    this.queue = new ArrayBlockingQueue<>(config.queueCapacity());
+    this.thread = new Thread(this::writeForever, threadName);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private static class Entry {
+    private final int vbucket;
+    private final IndexRequest request;
+
+    private Entry(int vbucket, IndexRequest request) {
+      this.vbucket = vbucket;
+      this.request = requireNonNull(request);
+    }
+  }
+
+  /**
+   * Queues the given entry to be written, and releases its event.
+   * If the queue is full, waits until there's room.
+   */
+  public void add(EventRejectionIndexRequest request) throws InterruptedException {
+    // Copy the entry, so the queue doesn't hold on to the rejected document's content.
+    final int vbucket = request.getEvent().getVbucket();
+    final Entry entry = new Entry(vbucket, new IndexRequest(request.index(), request.type(), request.id())
+        .source(request.source(), XContentType.JSON));
+    request.getEvent().release();
+
+    pendingByVbucket.merge(vbucket, 1, Integer::sum);
+    try {
+      if (!queue.offer(entry)) {
+        LOGGER.warn("Rejection log queue is full; waiting for room.");
+        queue.put(entry);
+      }
+    } catch (InterruptedException e) {
+      done(entry);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns true if the given vbucket has entries that are queued or being written.
+   * Safe to call from any thread.
+   */
+  public boolean hasPending(int vbucket) {
+    return pendingByVbucket.containsKey(vbucket);
+  }
+
+  private void done(Entry entry) {
+    pendingByVbucket.computeIfPresent(entry.vbucket, (vbucket, count) -> count == 1 ? null : count - 1);
+  }
+
+  /**
+   * Returns the number of entries waiting to be written.
+   */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  private void writeForever() {
+    final List<Entry> batch = new ArrayList<>();
+    try {
+      while (true) {
+        batch.add(queue.take());
+        long batchBytes = estimatedSizeInBytes(batch.get(0));
+
+        Entry next;
+        while (batch.size() < maxActions && batchBytes < maxBytes && (next = queue.poll()) != null) {
+          batch.add(next);
+          batchBytes += estimatedSizeInBytes(next);
+        }
+
+        write(batch);
+        batch.forEach(this::done);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      if (!closed) {
+        LOGGER.error("Rejection log writer interrupted unexpectedly.");
+        fatalErrorQueue.offer(e);
+      }
+    } catch (Throwable t) {
+      if (!closed) {
+        LOGGER.error("Rejection log writer stopped unexpectedly.", t);
+        fatalErrorQueue.offer(t);
+      }
+    }
+  }
+
+  /**
+   * Writes the given entries, retrying until each one is either written
+   * or permanently rejected.
+   */
+  private void write(List<Entry> entries) throws InterruptedException {
+    final Iterator<TimeValue> waitIntervals = backoffPolicy.iterator();
+    List<Entry> remaining = entries;
+
+    while (true) {
+      final BulkRequest bulkRequest = new BulkRequest();
+      remaining.forEach(entry -> bulkRequest.add(entry.request));
+      bulkRequest.timeout(REQUEST_TIMEOUT);
+
+      try {
+        final BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        final BulkItemResponse[] responses = bulkResponse.getItems();
+
+        final List<Entry> retry = new ArrayList<>();
+        for (int i = 0; i < responses.length; i++) {
+          final BulkItemResponse.Failure failure = responses[i].getFailure();
+          if (failure == null) {
+            continue;
+          }
+
+          final Entry entry = remaining.get(i);
+          if (failure.getStatus() == RestStatus.BAD_REQUEST || failure.getStatus() == RestStatus.NOT_FOUND) {
+            // ES rejected the rejection log entry! Total fail.
+            LOGGER.error("Failed to index rejection document for {}; status code: {} {}", redactUser(entry.request.id()), failure.getStatus(), failure.getMessage());
+            Metrics.rejectionLogFailureCounter().increment();
+          } else {
+            retry.add(entry);
+          }
+        }
+
+        LOGGER.debug("Wrote {} rejection log entries; {} will be retried.", remaining.size() - retry.size(), retry.size());
+        if (retry.isEmpty()) {
+          return;
+        }
+        remaining = retry;
+
+      } catch (ElasticsearchStatusException e) {
+        LOGGER.warn("Rejection log bulk request failed with status {}", e.status(), e);
+
+      } catch (IOException e) {
+        if (ThrowableHelper.hasCause(e, ConnectException.class)) {
+          LOGGER.warn("Rejection log bulk request failed; could not connect to Elasticsearch.");
+        } else {
+          LOGGER.warn("Rejection log bulk request failed", e);
+        }
+      }
+
+      final TimeValue retryDelay = waitIntervals.next();
+      LOGGER.info("Retrying {} rejection log entries in {}", remaining.size(), retryDelay);
+      MILLISECONDS.sleep(retryDelay.millis());
+    }
+  }
+
+  private static long estimatedSizeInBytes(Entry entry) {
+    return EventDocWriteRequest.REQUEST_OVERHEAD + entry.request.source().length();
+  }
+
+  /**
+   * Stops writing. Entries still waiting are discarded; their vbuckets' checkpoints
+   * were held back, so they are written again after the connector restarts.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    thread.interrupt();
+    final int discarded = queue.size();
+    if (discarded > 0) {
+      LOGGER.warn("Discarding {} rejection log entries that were not yet written; they will be written again after restart.", discarded);
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.couchbase.connector.elasticsearch.io;
 
 import com.couchbase.connector.config.es.DocStructureConfig;
+import com.couchbase.connector.config.es.ExternalVersion;
 import com.couchbase.connector.config.es.RejectLogConfig;
 import com.couchbase.connector.config.es.TypeConfig;
 import com.couchbase.connector.dcp.Event;
@@ -27,16 +28,23 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonPointer;
 import com.fasterxml.jackson.core.filter.FilteringParserDelegate;
 import com.fasterxml.jackson.core.filter.JsonPointerBasedFilter;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import io.micrometer.core.instrument.Timer;
 import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.VersionType;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import static com.couchbase.client.core.logging.RedactableArgument.redactUser;
 import static com.couchbase.connector.dcp.DcpHelper.isMetadata;
@@ -52,11 +60,42 @@ public class RequestFactory {
 
   private final List<TypeConfig> types;
   private final RejectLogConfig rejectLogConfig;
+  private final ExternalVersion externalVersion;
 
-  public RequestFactory(List<TypeConfig> types, DocStructureConfig docStructureConfig, RejectLogConfig rejectLogConfig) {
+  // When events are written to more than one Elasticsearch cluster, every cluster's writer
+  // asks for a request for the same event. Null if there is only one cluster.
+  // Weak values, so an entry goes away once no writer holds the request.
+  @Nullable
+  private final Cache<Event, EventDocWriteRequest> sharedRequests;
+
+  public RequestFactory(List<TypeConfig> types, DocStructureConfig docStructureConfig, RejectLogConfig rejectLogConfig, ExternalVersion externalVersion) {
+    this(types, docStructureConfig, rejectLogConfig, externalVersion, false);
+  }
+
+  /**
+   * @param shareRequests if true, the factory remembers the request it created for an event,
+   * and returns the same request when asked again. Lets several writers share the work
+   * of transforming a document. Elasticsearch writers only read the requests, so sharing is safe.
+   */
+  public RequestFactory(List<TypeConfig> types, DocStructureConfig docStructureConfig, RejectLogConfig rejectLogConfig, ExternalVersion externalVersion, boolean shareRequests) {
     this.types = requireNonNull(types);
     this.documentTransformer = new DefaultDocumentTransformer(docStructureConfig);
     this.rejectLogConfig = rejectLogConfig;
+    this.externalVersion = requireNonNull(externalVersion);
+    this.sharedRequests = shareRequests ? CacheBuilder.newBuilder().weakKeys().weakValues().build() : null;
+  }
+
+  public RejectLogConfig getRejectLogConfig() {
+    return rejectLogConfig;
+  }
+
+  /**
+   * Returns true if document write requests carry an external version,
+   * meaning Elasticsearch will reject any attempt to overwrite a document
+   * with an older version.
+   */
+  public boolean usesExternalVersioning() {
+    return externalVersion != ExternalVersion.NONE;
   }
 
   @Nullable
@@ -79,8 +118,42 @@ public class RequestFactory {
         origEvent, matchResult.index(), matchResult.typeConfig().type(), opType, failure.getMessage());
   }
 
+  /**
+   * Returns a request for writing the event to Elasticsearch, or null if the event should be skipped.
+   */
   @Nullable
   public EventDocWriteRequest newDocWriteRequest(final Event e) {
+    if (sharedRequests == null) {
+      return prepareDocWriteRequest(e);
+    }
+
+    try {
+      return sharedRequests.get(e, () -> prepareDocWriteRequest(e));
+    } catch (CacheLoader.InvalidCacheLoadException skipped) {
+      return null; // cache doesn't store nulls, but preparing a null result is cheap anyway
+    } catch (ExecutionException | UncheckedExecutionException ex) {
+      Throwables.throwIfUnchecked(ex.getCause());
+      throw new RuntimeException(ex.getCause());
+    }
+  }
+
+  /**
+   * Returns true if {@link #newDocWriteRequest} is certain to return an index request
+   * for the event, as opposed to a delete request, a rejection log entry, or nothing.
+   * Cheaper than creating the request, and thread-safe.
+   */
+  public boolean isCertainToIndex(final Event e) {
+    if (!e.isMutation() || isMetadata(e)) {
+      return false;
+    }
+    final MatchResult matchResult = match(e);
+    return matchResult != null
+        && !matchResult.typeConfig().ignore()
+        && documentTransformer.hasSource(e);
+  }
+
+  @Nullable
+  private EventDocWriteRequest prepareDocWriteRequest(final Event e) {
     if (isMetadata(e)) {
       return null;
     }
@@ -114,7 +187,9 @@ public class RequestFactory {
 
   @Nullable
   private EventDeleteRequest newDeleteRequest(final Event event, final MatchResult matchResult) {
-    return new EventDeleteRequest(matchResult.index(), matchResult.typeConfig().type(), event);
+    final EventDeleteRequest request = new EventDeleteRequest(matchResult.index(), matchResult.typeConfig().type(), event);
+    setExternalVersion(request, event);
+    return request;
   }
 
   @Nullable
@@ -124,6 +199,7 @@ public class RequestFactory {
       EventIndexRequest request = new EventIndexRequest(matchResult.index(), matchResult.typeConfig().type(), event);
       request.setPipeline(matchResult.typeConfig().pipeline());
       request.routing(getRouting(event, matchResult.typeConfig().routing()));
+      setExternalVersion(request, event);
       documentTransformer.setSourceFromEventContent(request, event);
 
       timerContext.stop(newIndexRequestTimer);
@@ -136,6 +212,25 @@ public class RequestFactory {
     }
   }
 
+  private void setExternalVersion(DocWriteRequest<?> request, Event event) {
+    switch (externalVersion) {
+      case NONE:
+        return;
+      case REVISION:
+        request.version(event.getChange().getRevision());
+        break;
+      case CAS:
+        request.version(event.getChange().getCas());
+        break;
+      default:
+        throw new AssertionError("unexpected external version: " + externalVersion);
+    }
+
+    // "Greater than or equal" so a retried request that actually succeeded the first time
+    // is not reported as a conflict.
+    request.versionType(VersionType.EXTERNAL_GTE);
+  }
+
   private String getRouting(Event event, JsonPointer routingPointer) throws IOException {
     requireNonNull(event);
     if (routingPointer == null) {
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds individual bulk request items that failed with a temporary error
+ * (typically TOO_MANY_REQUESTS) so they can be retried on their own schedule
+ * without holding up new batches.
+ * <p>
+ * Items are keyed the same way as the writer's buffer. While a key is present
+ * in the queue, newer versions of the same document replace the queued request
+ * instead of entering a new batch. This preserves per-document ordering.
+ * (With external versioning, newer versions may enter a new batch, since
+ * Elasticsearch rejects stale versions. The queue holds at most one version of a document.)
+ * <p>
+ * NOT THREAD SAFE, except for {@link #size()} and {@link #nanosUntilDue()}.
+ */
+class RetryQueue {
+  private final LinkedHashMap<String, EventDocWriteRequest> requests = new LinkedHashMap<>();
+
+  // How many queued requests belong to each vbucket. While a vbucket has queued requests,
+  // its checkpoint must not advance past the oldest one.
+  private final Multiset<Integer> vbuckets = HashMultiset.create();
+
+  private final BackoffPolicy backoffPolicy;
+  private Iterator<TimeValue> retryDelays;
+  private volatile long nextAttemptNanos;
+
+  private volatile int size;
+
+  RetryQueue(BackoffPolicy backoffPolicy) {
+    this.backoffPolicy = requireNonNull(backoffPolicy);
+  }
+
+  boolean contains(String key) {
+    return requests.containsKey(key);
+  }
+
+  /**
+   * Adds a request to the queue. If the queue previously held a request for the same key,
+   * that request is returned, and the caller is responsible for releasing its event.
+   */
+  EventDocWriteRequest put(String key, EventDocWriteRequest request) {
+    final EventDocWriteRequest evicted = requests.put(key, request);
+    if (evicted != null) {
+      vbuckets.remove(evicted.getEvent().getVbucket());
+    }
+    vbuckets.add(request.getEvent().getVbucket());
+    size = requests.size();
+    return evicted;
+  }
+
+  boolean hasPending(int vbucket) {
+    return vbuckets.contains(vbucket);
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isDue() {
+    return !isEmpty() && System.nanoTime() - nextAttemptNanos >= 0;
+  }
+
+  /**
+   * Returns the number of nanoseconds until the queued requests should be retried,
+   * or Long.MAX_VALUE if the queue is empty.
+   */
+  long nanosUntilDue() {
+    return isEmpty() ? Long.MAX_VALUE : Math.max(0, nextAttemptNanos - System.nanoTime());
+  }
+
+  /**
+   * Schedules the next attempt. The delay grows with each consecutive attempt,
+   * and resets once the queue has been completely drained.
+   *
+   * @return the scheduled delay
+   */
+  TimeValue scheduleNextAttempt() {
+    if (retryDelays == null) {
+      retryDelays = backoffPolicy.iterator();
+    }
+    final TimeValue delay = retryDelays.next();
+    nextAttemptNanos = System.nanoTime() + delay.nanos();
+    return delay;
+  }
+
+  /**
+   * Removes and returns all queued requests.
+   */
+  List<EventDocWriteRequest> drain() {
+    final List<EventDocWriteRequest> result = new ArrayList<>(requests.values());
+    clear();
+    return result;
+  }
+
+  /**
+   * Forgets the backoff history. Should be called when a retry attempt
+   * leaves the queue empty.
+   */
+  void resetBackoff() {
+    retryDelays = null;
+  }
+
+  /**
+   * Removes and returns all queued requests for the given vbuckets.
+   */
+  List<EventDocWriteRequest> drain(Set<Integer> partitions) {
+    final List<EventDocWriteRequest> result = new ArrayList<>();
+    for (Iterator<EventDocWriteRequest> i = requests.values().iterator(); i.hasNext(); ) {
+      final EventDocWriteRequest request = i.next();
+      final int vbucket = request.getEvent().getVbucket();
+      if (partitions.contains(vbucket)) {
+        result.add(request);
+        vbuckets.remove(vbucket);
+        i.remove();
+      }
+    }
+    size = requests.size();
+    return result;
+  }
+
+  void clear() {
+    requests.clear();
+    vbuckets.clear();
+    size = 0;
+  }
+}
@@ -18,6 +18,8 @@ package com.couchbase.connector.util;
 
 import com.couchbase.client.dcp.deps.io.netty.bootstrap.ServerBootstrap;
 import com.couchbase.client.dcp.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.dcp.deps.io.netty.buffer.ByteBufAllocator;
+import com.couchbase.client.dcp.deps.io.netty.buffer.ByteBufOutputStream;
 import com.couchbase.client.dcp.deps.io.netty.buffer.Unpooled;
 import com.couchbase.client.dcp.deps.io.netty.channel.Channel;
 import com.couchbase.client.dcp.deps.io.netty.channel.ChannelFutureListener;
@@ -28,18 +30,24 @@ import com.couchbase.client.dcp.deps.io.netty.channel.SimpleChannelInboundHandle
 import com.couchbase.client.dcp.deps.io.netty.channel.nio.NioEventLoopGroup;
 import com.couchbase.client.dcp.deps.io.netty.channel.socket.nio.NioServerSocketChannel;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.DefaultFullHttpResponse;
+import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.FullHttpRequest;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.FullHttpResponse;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpContentCompressor;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpHeaderNames;
+import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpHeaderValues;
+import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpMethod;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpObject;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpObjectAggregator;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpRequest;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpResponseStatus;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpServerCodec;
+import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpUtil;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.HttpVersion;
 import com.couchbase.client.dcp.deps.io.netty.handler.codec.http.QueryStringDecoder;
 import com.couchbase.client.dcp.deps.io.netty.handler.logging.LogLevel;
 import com.couchbase.client.dcp.deps.io.netty.handler.logging.LoggingHandler;
+import com.couchbase.client.dcp.deps.io.netty.handler.timeout.IdleStateEvent;
+import com.couchbase.client.dcp.deps.io.netty.handler.timeout.IdleStateHandler;
 import com.couchbase.connector.VersionHelper;
 import com.couchbase.connector.elasticsearch.Metrics;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -49,32 +57,82 @@ import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkState;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class HttpServer implements Closeable {
   private static final Logger LOGGER = LoggerFactory.getLogger(HttpServer.class);
 
+  /**
+   * Handles a POST request with a JSON body.
+   * Called on a thread from a dedicated pool, so it's okay to block.
+   */
+  public interface JsonPostHandler {
+    /**
+     * @return the JSON response body
+     */
+    String handle(String requestBody) throws Exception;
+  }
+
+  /**
+   * Handles a GET request by returning a value to serialize as JSON.
+   * Called on the server's event loop, so it must not block.
+   */
+  public interface JsonGetHandler {
+    Object handle() throws Exception;
+  }
+
   private final int httpPort;
   private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup();
-  private final ServerBootstrap bootstrap = new ServerBootstrap()
-      .group(eventLoopGroup)
-      .handler(new LoggingHandler(LogLevel.DEBUG))
-      .childHandler(new HttpServerInitializer())
-      .channel(NioServerSocketChannel.class);
+  private final ExecutorService postHandlerExecutor;
+  private final MetricsCache metricsCache = new MetricsCache();
+  private final Map<String, JsonGetHandler> getHandlers = new ConcurrentHashMap<>();
+  private final Map<String, JsonPostHandler> postHandlers = new ConcurrentHashMap<>();
+  private final ServerBootstrap bootstrap;
 
   private boolean started;
   private Channel serverChannel;
 
   public HttpServer(int httpPort) {
+    this(httpPort, Collections.emptyMap());
+  }
+
+  /**
+   * @param postHandlers maps request paths to handlers for POST requests to those paths.
+   */
+  public HttpServer(int httpPort, Map<String, JsonPostHandler> postHandlers) {
     this.httpPort = httpPort;
+    this.postHandlers.putAll(postHandlers);
+    this.postHandlerExecutor = Executors.newCachedThreadPool(); // no threads until needed
+    this.bootstrap = new ServerBootstrap()
+        .group(eventLoopGroup)
+        .handler(new LoggingHandler(LogLevel.DEBUG))
+        .childHandler(new HttpServerInitializer(this.postHandlers, postHandlerExecutor, getHandlers, metricsCache))
+        .channel(NioServerSocketChannel.class);
   }
 
   public synchronized void start() throws IOException {
@@ -92,6 +150,7 @@ public class HttpServer implements Closeable {
 
     } catch (Exception e) {
       eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+      shutdownPostHandlerExecutor();
       LOGGER.error("Failed to bind HTTP server to port {}; {}", httpPort, e.getMessage());
       // the code in the 'try' block might sneakily throw an IOException even though it isn't declared :-/
       Throwables.propagateIfPossible(e, IOException.class);
@@ -107,13 +166,53 @@ public class HttpServer implements Closeable {
     return httpPort;
   }
 
+  /**
+   * Serves the value returned by the given handler as JSON in response to GET requests
+   * for the given path. Replaces any previous handler for the same path.
+   */
+  public void addGetHandler(String path, JsonGetHandler handler) {
+    getHandlers.put(path, handler);
+  }
+
+  /**
+   * Stops serving the given path, if the given handler is still the one serving it.
+   */
+  public void removeGetHandler(String path, JsonGetHandler handler) {
+    getHandlers.remove(path, handler);
+  }
+
+  /**
+   * Passes the bodies of POST requests for the given path to the given handler.
+   * Replaces any previous handler for the same path.
+   */
+  public void addPostHandler(String path, JsonPostHandler handler) {
+    postHandlers.put(path, handler);
+  }
+
+  /**
+   * Stops handling POST requests for the given path, if the given handler is still the one handling them.
+   */
+  public void removePostHandler(String path, JsonPostHandler handler) {
+    postHandlers.remove(path, handler);
+  }
+
+  /**
+   * Sets how long a metrics response may be reused for subsequent requests
+   * in the same format. Zero disables caching.
+   */
+  public void setMetricsCacheTtl(Duration ttl) {
+    metricsCache.setTtl(ttl);
+  }
+
   public synchronized int getBoundPort() {
     checkState(started, "not started");
     return ((InetSocketAddress) serverChannel.localAddress()).getPort();
   }
 
   public synchronized void close() throws IOException {
+    metricsCache.clear();
     if (!started) {
+      shutdownPostHandlerExecutor();
       return;
     }
 
@@ -130,10 +229,17 @@ public class HttpServer implements Closeable {
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
+    shutdownPostHandlerExecutor();
     started = false;
     LOGGER.info("HTTP server shutdown complete.");
   }
 
+  private void shutdownPostHandlerExecutor() {
+    if (postHandlerExecutor != null) {
+      postHandlerExecutor.shutdownNow();
+    }
+  }
+
   public static void main(String[] args) throws InterruptedException, IOException {
     try (HttpServer server = new HttpServer(31415)) {
       server.start();
@@ -141,30 +247,256 @@ public class HttpServer implements Closeable {
     }
   }
 
+  /**
+   * Writes a response body.
+   */
+  private interface ResponseWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Remembers the most recent metrics response in each format, so when several scrapers
+   * ask at about the same time, the metrics are only serialized once.
+   * <p>
+   * Responses are written by the given executor, never on the event loop. Requests that
+   * arrive while a response is being written wait for that one instead of writing their own.
+   * <p>
+   * Thread-safe.
+   */
+  private static class MetricsCache {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private volatile long ttlNanos;
+
+    private final Map<String, Rendering> renderings = new HashMap<>(); // guarded by this
+
+    /**
+     * A response that is being written, or was written recently.
+     * Guarded by the cache's lock.
+     */
+    private static class Rendering {
+      // Owned by the cache; requests get retained duplicates. Null until written.
+      private ByteBuf content;
+      private long createdNanos;
+      private final List<CompletableFuture<ByteBuf>> waiters = new ArrayList<>();
+    }
+
+    void setTtl(Duration ttl) {
+      ttlNanos = ttl.toNanos();
+      if (ttlNanos <= 0) {
+        clear();
+      }
+    }
+
+    /**
+     * Returns a future holding the response body for the given key,
+     * either from the cache or freshly written. The caller must release the buffer.
+     */
+    CompletableFuture<ByteBuf> get(String key, ByteBufAllocator alloc, Executor executor, ResponseWriter writer) {
+      final CompletableFuture<ByteBuf> result = new CompletableFuture<>();
+      final long ttl = ttlNanos;
+      if (ttl <= 0) {
+        executor.execute(() -> {
+          try {
+            result.complete(render(alloc, writer));
+          } catch (Throwable t) {
+            result.completeExceptionally(t);
+          }
+        });
+        return result;
+      }
+
+      final Rendering rendering;
+      synchronized (this) {
+        final Rendering existing = renderings.get(key);
+        if (existing != null) {
+          if (existing.content == null) {
+            existing.waiters.add(result); // already being written
+            return result;
+          }
+          if (System.nanoTime() - existing.createdNanos < ttl) {
+            result.complete(existing.content.retainedDuplicate());
+            return result;
+          }
+          existing.content.release();
+        }
+
+        rendering = new Rendering();
+        rendering.waiters.add(result);
+        renderings.put(key, rendering);
+      }
+
+      executor.execute(() -> finish(key, rendering, alloc, writer));
+      return result;
+    }
+
+    private void finish(String key, Rendering rendering, ByteBufAllocator alloc, ResponseWriter writer) {
+      ByteBuf content = null;
+      Throwable failure = null;
+      try {
+        content = render(alloc, writer);
+      } catch (Throwable t) {
+        failure = t;
+      }
+
+      synchronized (this) {
+        final boolean stillCached = renderings.get(key) == rendering;
+        for (CompletableFuture<ByteBuf> waiter : rendering.waiters) {
+          if (content != null) {
+            waiter.complete(content.retainedDuplicate());
+          } else {
+            waiter.completeExceptionally(failure);
+          }
+        }
+        rendering.waiters.clear();
+
+        if (content != null && stillCached) {
+          rendering.content = content;
+          rendering.createdNanos = System.nanoTime();
+          return;
+        }
+        if (stillCached) {
+          renderings.remove(key); // failed; the next request tries again
+        }
+        if (content != null) {
+          content.release(); // cleared while rendering
+        }
+      }
+    }
+
+    synchronized void clear() {
+      // Renderings in progress finish for their waiters, but aren't kept.
+      for (Rendering r : renderings.values()) {
+        if (r.content != null) {
+          r.content.release();
+        }
+      }
+      renderings.clear();
+    }
+
+    private static ByteBuf render(ByteBufAllocator alloc, ResponseWriter writer) throws IOException {
+      final ByteBuf content = alloc.buffer(INITIAL_BUFFER_SIZE);
+      try {
+        writer.write(new ByteBufOutputStream(content));
+        return content;
+      } catch (Throwable t) {
+        content.release();
+        throw t;
+      }
+    }
+  }
+
   public static class HttpServerInitializer extends ChannelInitializer<Channel> {
     private static final int MAX_REQUEST_CONTENT_LENGTH = (int) ByteSizeUnit.MB.toBytes(1);
 
+    // How long to keep an idle connection open for the next request.
+    private static final long IDLE_TIMEOUT_MINUTES = 2;
+
+    private final Map<String, JsonPostHandler> postHandlers;
+    private final Executor postHandlerExecutor;
+    private final Map<String, JsonGetHandler> getHandlers;
+    private final MetricsCache metricsCache;
+
+    public HttpServerInitializer() {
+      this(Collections.emptyMap(), null);
+    }
+
+    public HttpServerInitializer(Map<String, JsonPostHandler> postHandlers, Executor postHandlerExecutor) {
+      this(postHandlers, postHandlerExecutor, Collections.emptyMap(), new MetricsCache());
+    }
+
+    private HttpServerInitializer(Map<String, JsonPostHandler> postHandlers, Executor postHandlerExecutor,
+                                  Map<String, JsonGetHandler> getHandlers, MetricsCache metricsCache) {
+      this.postHandlers = postHandlers;
+      this.postHandlerExecutor = postHandlerExecutor;
+      this.getHandlers = getHandlers;
+      this.metricsCache = metricsCache;
+    }
+
     @Override
     protected void initChannel(Channel channel) throws Exception {
       channel.pipeline()
+          .addLast(new IdleStateHandler(0, 0, IDLE_TIMEOUT_MINUTES, MINUTES))
           .addLast(new HttpServerCodec())
           .addLast(new HttpObjectAggregator(MAX_REQUEST_CONTENT_LENGTH, true))
           .addLast(new HttpContentCompressor())
-          .addLast(new HttpServerHandler());
+          .addLast(new HttpServerHandler(postHandlers, postHandlerExecutor, getHandlers, metricsCache));
     }
   }
 
   private static final ObjectMapper mapper = new ObjectMapper();
 
   public static class HttpServerHandler extends SimpleChannelInboundHandler<HttpObject> {
+    private final Map<String, JsonPostHandler> postHandlers;
+    private final Executor postHandlerExecutor;
+    private final Map<String, JsonGetHandler> getHandlers;
+    private final MetricsCache metricsCache;
+    private final Executor metricsExecutor;
+
+    public HttpServerHandler() {
+      this(Collections.emptyMap(), null);
+    }
+
+    public HttpServerHandler(Map<String, JsonPostHandler> postHandlers, Executor postHandlerExecutor) {
+      this(postHandlers, postHandlerExecutor, Collections.emptyMap(), new MetricsCache());
+    }
+
+    private HttpServerHandler(Map<String, JsonPostHandler> postHandlers, Executor postHandlerExecutor,
+                              Map<String, JsonGetHandler> getHandlers, MetricsCache metricsCache) {
+      this.postHandlers = postHandlers;
+      this.postHandlerExecutor = postHandlerExecutor;
+      this.getHandlers = getHandlers;
+      this.metricsCache = metricsCache;
+      // Writing the metrics can take a while, so keep it off the event loop if possible.
+      this.metricsExecutor = postHandlerExecutor == null ? Runnable::run : postHandlerExecutor;
+    }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
       final HttpRequest request = (HttpRequest) msg;
       LOGGER.debug("HTTP request: {} ", request);
 
+      final boolean keepAlive = HttpUtil.isKeepAlive(request);
+
       final QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
 
+      final JsonPostHandler postHandler = postHandlers.get(decoder.path());
+      if (postHandler != null && request.method().equals(HttpMethod.POST)) {
+        final String requestBody = ((FullHttpRequest) request).content().toString(UTF_8);
+        postHandlerExecutor.execute(() -> {
+          HttpResponseStatus status;
+          byte[] responseBody;
+          try {
+            responseBody = postHandler.handle(requestBody).getBytes(UTF_8);
+            status = HttpResponseStatus.OK;
+          } catch (Throwable t) {
+            LOGGER.warn("Failed to handle POST request to {}", decoder.path(), t);
+            responseBody = toJsonBytes(String.valueOf(t));
+            status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+          }
+          respond(ctx, keepAlive, status, Unpooled.wrappedBuffer(responseBody), "application/json");
+        });
+        return;
+      }
+
+      final JsonGetHandler getHandler = getHandlers.get(decoder.path());
+      if (getHandler != null && request.method().equals(HttpMethod.GET)) {
+        final boolean pretty = getBoolean(decoder, "pretty", false);
+        final ObjectWriter w = pretty ? mapper.writerWithDefaultPrettyPrinter() : mapper.writer();
+        final ByteBuf content = ctx.alloc().buffer();
+        try {
+          w.writeValue((OutputStream) new ByteBufOutputStream(content), getHandler.handle());
+        } catch (Throwable t) {
+          LOGGER.warn("Failed to handle GET request to {}", decoder.path(), t);
+          content.release();
+          respond(ctx, keepAlive, HttpResponseStatus.INTERNAL_SERVER_ERROR,
+              Unpooled.wrappedBuffer(toJsonBytes(String.valueOf(t))), "application/json");
+          return;
+        }
+        respond(ctx, keepAlive, HttpResponseStatus.OK, content, "application/json");
+        return;
+      }
+
       final HttpResponseStatus status;
       final ByteBuf content;
       final String contentType;
@@ -178,24 +510,33 @@ public class HttpServer implements Closeable {
               "<p>" +
               "<a href=\"metrics/prometheus\">Metrics (Prometheus)</a>" +
               "<p>" +
-              "<a href=\"metrics/dropwizard?pretty\">Metrics (Dropwizard)</a>";
+              "<a href=\"metrics/dropwizard?pretty\">Metrics (Dropwizard)</a>" +
+              getHandlers.keySet().stream()
+                  .sorted()
+                  .map(path -> "<p><a href=\"" + path.substring(1) + "?pretty\">" + path + "</a>")
+                  .collect(Collectors.joining());
           content = Unpooled.wrappedBuffer(html.getBytes(UTF_8));
           break;
 
         case "/metrics": // default to dropwizard for now. Maybe add a switch for the default format?
         case "/metrics/dropwizard":
           final boolean pretty = getBoolean(decoder, "pretty", false);
-          final ObjectWriter w = pretty ? mapper.writerWithDefaultPrettyPrinter() : mapper.writer();
-          content = Unpooled.wrappedBuffer(w.writeValueAsBytes(Metrics.toJsonNode()));
-          contentType = "application/json";
-          status = HttpResponseStatus.OK;
-          break;
+          respondWhenDone(ctx, keepAlive, decoder.path(), "application/json",
+              metricsCache.get(pretty ? "dropwizard-pretty" : "dropwizard", ctx.alloc(), metricsExecutor,
+                  out -> Metrics.writeJson(out, pretty)));
+          return;
 
         case "/metrics/prometheus":
-          content = Unpooled.wrappedBuffer(Metrics.toPrometheusExpositionFormat().getBytes(UTF_8));
-          contentType = "text/plain; version=0.0.4";
-          status = HttpResponseStatus.OK;
-          break;
+          final String accept = request.headers().get(HttpHeaderNames.ACCEPT, "");
+          final boolean openMetrics = accept.contains("application/openmetrics-text");
+          respondWhenDone(ctx, keepAlive, decoder.path(),
+              openMetrics ? Metrics.OPENMETRICS_CONTENT_TYPE : Metrics.PROMETHEUS_CONTENT_TYPE,
+              metricsCache.get(openMetrics ? "openmetrics" : "prometheus", ctx.alloc(), metricsExecutor, out -> {
+                final Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+                Metrics.writePrometheus(writer, openMetrics);
+                writer.flush();
+              }));
+          return;
 
         default:
           content = Unpooled.wrappedBuffer(mapper.writeValueAsBytes("path '" + decoder.path() + "' not found"));
@@ -204,11 +545,52 @@ public class HttpServer implements Closeable {
           break;
       }
 
+      respond(ctx, keepAlive, status, content, contentType);
+    }
+
+    /**
+     * Sends the response once its content is ready. May be called from any thread.
+     */
+    private static void respondWhenDone(ChannelHandlerContext ctx, boolean keepAlive, String path, String contentType, CompletableFuture<ByteBuf> content) {
+      content.whenComplete((buf, t) -> {
+        if (t != null) {
+          LOGGER.warn("Failed to handle GET request to {}", path, t);
+          respond(ctx, keepAlive, HttpResponseStatus.INTERNAL_SERVER_ERROR,
+              Unpooled.wrappedBuffer(toJsonBytes(String.valueOf(t))), "application/json");
+        } else {
+          respond(ctx, keepAlive, HttpResponseStatus.OK, buf, contentType);
+        }
+      });
+    }
+
+    private static void respond(ChannelHandlerContext ctx, boolean keepAlive, HttpResponseStatus status, ByteBuf content, String contentType) {
       final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
       response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
       response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
-      ctx.writeAndFlush(response)
-          .addListener(ChannelFutureListener.CLOSE); // ignore keepalive -- let's just play it safe
+      if (keepAlive) {
+        // Scrapers can reuse the connection instead of connecting for every scrape.
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        ctx.writeAndFlush(response);
+      } else {
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+      }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+      if (evt instanceof IdleStateEvent) {
+        ctx.close();
+        return;
+      }
+      super.userEventTriggered(ctx, evt);
+    }
+
+    private static byte[] toJsonBytes(Object value) {
+      try {
+        return mapper.writeValueAsBytes(value);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
     }
 
     @Override
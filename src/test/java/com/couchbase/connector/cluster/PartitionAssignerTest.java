@@ -0,0 +1,139 @@
+package com.couchbase.connector.cluster;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.couchbase.connector.dcp.DcpHelper.allPartitions;
+import static com.couchbase.connector.util.ListHelper.chunks;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionAssignerTest {
+
+  @Test
+  public void initialAssignmentIsBalanced() throws Exception {
+    final List<Set<Integer>> result = PartitionAssigner.assign(
+        ImmutableList.of(emptySet(), emptySet(), emptySet()), 8);
+    assertEquals(ImmutableList.of(
+        ImmutableSet.of(0, 1, 2),
+        ImmutableSet.of(3, 4, 5),
+        ImmutableSet.of(6, 7)),
+        result);
+  }
+
+  @Test
+  public void unchangedWhenAlreadyBalanced() throws Exception {
+    final List<Set<Integer>> current = ImmutableList.of(
+        ImmutableSet.of(5, 6, 7),
+        ImmutableSet.of(0, 1),
+        ImmutableSet.of(2, 3, 4));
+    assertEquals(current, PartitionAssigner.assign(current, 8));
+  }
+
+  @Test
+  public void addingMemberMovesMinimumNumberOfPartitions() throws Exception {
+    final int numPartitions = 1024;
+    final List<Set<Integer>> current = new ArrayList<>();
+    for (List<Integer> chunk : chunks(allPartitions(numPartitions), 8)) {
+      current.add(new HashSet<>(chunk));
+    }
+    current.add(emptySet());
+
+    final List<Set<Integer>> result = PartitionAssigner.assign(current, numPartitions);
+    assertValid(result, numPartitions);
+
+    // The new member's partitions are the only ones that moved.
+    final int newMemberShare = result.get(8).size();
+    assertEquals(numPartitions, newMemberShare + IntStream.range(0, 8)
+        .map(i -> intersectionSize(current.get(i), result.get(i)))
+        .sum());
+  }
+
+  @Test
+  public void removingMemberOnlyMovesItsPartitions() throws Exception {
+    final int numPartitions = 1024;
+    final List<List<Integer>> chunks = chunks(allPartitions(numPartitions), 4);
+    final List<Set<Integer>> current = ImmutableList.of(
+        new HashSet<>(chunks.get(0)),
+        new HashSet<>(chunks.get(1)),
+        new HashSet<>(chunks.get(3))); // member holding chunk 2 departed
+
+    final List<Set<Integer>> result = PartitionAssigner.assign(current, numPartitions);
+    assertValid(result, numPartitions);
+    for (int i = 0; i < current.size(); i++) {
+      assertTrue(result.get(i).containsAll(current.get(i)));
+    }
+  }
+
+  @Test
+  public void idleGroupIsBalancedByCount() throws Exception {
+    final List<Set<Integer>> result = PartitionAssigner.balanceLoad(
+        ImmutableList.of(emptySet(), emptySet(), emptySet()), 1024, emptyMap(), 0.1);
+    assertValid(result, 1024);
+  }
+
+  @Test
+  public void hotPartitionsAreSpreadAcrossMembers() throws Exception {
+    final int numPartitions = 64;
+    final List<Set<Integer>> current = new ArrayList<>();
+    for (List<Integer> chunk : chunks(allPartitions(numPartitions), 4)) {
+      current.add(new HashSet<>(chunk));
+    }
+
+    // Every partition in the first member's chunk is hot.
+    final Map<Integer, Double> load = new HashMap<>();
+    current.get(0).forEach(p -> load.put(p, 100d));
+    IntStream.range(0, numPartitions).forEach(p -> load.putIfAbsent(p, 1d));
+
+    final List<Set<Integer>> result = PartitionAssigner.balanceLoad(current, numPartitions, load, 0.1);
+
+    final double average = load.values().stream().mapToDouble(d -> d).sum() / current.size();
+    for (Set<Integer> partitions : result) {
+      final double memberLoad = partitions.stream().mapToDouble(load::get).sum();
+      assertTrue(memberLoad <= average * 1.2);
+    }
+    assertCoversAll(result, numPartitions);
+  }
+
+  @Test
+  public void balancedLoadIsUnchanged() throws Exception {
+    final List<Set<Integer>> current = ImmutableList.of(
+        ImmutableSet.of(0),
+        ImmutableSet.of(1, 2, 3));
+    final Map<Integer, Double> load = ImmutableMap.of(0, 30d, 1, 10d, 2, 10d, 3, 10d);
+    assertEquals(current, PartitionAssigner.balanceLoad(current, 4, load, 0.1));
+  }
+
+  private static int intersectionSize(Set<Integer> a, Set<Integer> b) {
+    return (int) a.stream().filter(b::contains).count();
+  }
+
+  private static void assertValid(List<Set<Integer>> assignment, int numPartitions) {
+    assertCoversAll(assignment, numPartitions);
+
+    final int min = assignment.stream().mapToInt(Set::size).min().getAsInt();
+    final int max = assignment.stream().mapToInt(Set::size).max().getAsInt();
+    assertTrue(max - min <= 1);
+  }
+
+  private static void assertCoversAll(List<Set<Integer>> assignment, int numPartitions) {
+    final List<Integer> all = assignment.stream()
+        .flatMap(Set::stream)
+        .sorted()
+        .collect(Collectors.toList());
+    assertEquals(allPartitions(numPartitions), all);
+  }
+}
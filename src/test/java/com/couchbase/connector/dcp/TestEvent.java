@@ -0,0 +1,89 @@
+package com.couchbase.connector.dcp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An event that doesn't need a DCP connection. Counts flow control acknowledgements
+ * instead of sending them.
+ */
+public class TestEvent extends Event {
+  private static final AtomicInteger nextTracingToken = new AtomicInteger();
+
+  private final String key;
+  private final int vbucket;
+  private final long seqno;
+  private final byte[] content;
+  private final long tracingToken = nextTracingToken.incrementAndGet();
+  private final AtomicInteger ackCount = new AtomicInteger();
+
+  /**
+   * Creates a mutation whose content is an empty JSON object.
+   */
+  public TestEvent(String key, int vbucket, long seqno) {
+    this(key, vbucket, seqno, true, "{}");
+  }
+
+  /**
+   * @param content document content, or null for a deletion
+   */
+  public TestEvent(String key, int vbucket, long seqno, boolean mutation, String content) {
+    super(mutation);
+    this.key = key;
+    this.vbucket = vbucket;
+    this.seqno = seqno;
+    this.content = content == null ? new byte[0] : content.getBytes(UTF_8);
+  }
+
+  public static TestEvent deletion(String key, int vbucket, long seqno) {
+    return new TestEvent(key, vbucket, seqno, false, null);
+  }
+
+  /**
+   * Returns the number of times the event was acknowledged to the DCP client.
+   */
+  public int getAckCount() {
+    return ackCount.get();
+  }
+
+  @Override
+  void flowControlAck() {
+    ackCount.incrementAndGet();
+  }
+
+  @Override
+  public int getVbucket() {
+    return vbucket;
+  }
+
+  @Override
+  public String getKey() {
+    return key;
+  }
+
+  @Override
+  public String getKey(boolean qualifiedWithScopeAndCollection) {
+    return qualifiedWithScopeAndCollection ? "_default._default." + key : key;
+  }
+
+  @Override
+  public long getTracingToken() {
+    return tracingToken;
+  }
+
+  @Override
+  public long getSeqno() {
+    return seqno;
+  }
+
+  @Override
+  public byte[] getContent() {
+    return content;
+  }
+
+  @Override
+  public String toString() {
+    return "TestEvent{key=" + key + ", vbucket=" + vbucket + ", seqno=" + seqno + ", mutation=" + isMutation() + "}";
+  }
+}
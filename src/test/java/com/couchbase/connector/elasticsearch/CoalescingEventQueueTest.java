@@ -0,0 +1,234 @@
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.connector.config.es.ExternalVersion;
+import com.couchbase.connector.config.es.ImmutableDocStructureConfig;
+import com.couchbase.connector.config.es.ImmutableRejectLogConfig;
+import com.couchbase.connector.config.es.ImmutableTypeConfig;
+import com.couchbase.connector.config.es.TypeConfig;
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.dcp.TestEvent;
+import com.couchbase.connector.elasticsearch.io.RequestFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Collections.singletonList;
+import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingEventQueueTest {
+
+  @Test
+  public void dequeuesInArrivalOrder() {
+    final CoalescingEventQueue queue = newQueue();
+    final TestEvent a = new TestEvent("a", 0, 1);
+    final TestEvent b = new TestEvent("b", 0, 2);
+    queue.add(a);
+    queue.add(b);
+
+    assertEquals(2, queue.size());
+    assertSame(a, queue.poll());
+    assertSame(b, queue.poll());
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void newerVersionReplacesQueuedEvent() {
+    final CoalescingEventQueue queue = newQueue();
+    final TestEvent a1 = new TestEvent("a", 0, 1);
+    final TestEvent b = new TestEvent("b", 0, 2);
+    final TestEvent a2 = new TestEvent("a", 0, 3);
+    queue.add(a1);
+    queue.add(b);
+    queue.add(a2);
+
+    assertEquals(1, a1.getAckCount());
+    assertEquals(3, queue.getSubmittedCount());
+    assertEquals(1, queue.getCoalescedCount());
+
+    // The newer version goes to the back, so the vbucket's events stay in seqno order.
+    assertEquals(2, queue.size());
+    assertSame(b, queue.poll());
+    assertSame(a2, queue.poll());
+    assertEquals(0, b.getAckCount());
+    assertEquals(0, a2.getAckCount());
+  }
+
+  @Test
+  public void deletionDoesNotReplaceQueuedMutation() {
+    final CoalescingEventQueue queue = newQueue();
+    final TestEvent mutation = new TestEvent("a", 0, 1);
+    final TestEvent deletion = TestEvent.deletion("a", 0, 2);
+    queue.add(mutation);
+    queue.add(deletion);
+
+    assertEquals(0, mutation.getAckCount());
+    assertEquals(0, queue.getCoalescedCount());
+    assertSame(mutation, queue.poll());
+    assertSame(deletion, queue.poll());
+  }
+
+  @Test
+  public void ignoredDeletionDoesNotDiscardQueuedMutation() {
+    final TypeConfig type = ImmutableTypeConfig.builder()
+        .type("_doc")
+        .index("example")
+        .ignore(false)
+        .ignoreDeletes(true)
+        .matchOnQualifiedKey(false)
+        .matcher(new TypeConfig.IdPrefixMatcher("example", "", false))
+        .build();
+    final RequestFactory requestFactory = new RequestFactory(singletonList(type),
+        ImmutableDocStructureConfig.builder().documentContentAtTopLevel(true).wrapCounters(false).build(),
+        ImmutableRejectLogConfig.builder().typeName("_doc").maxActions(500).maxBytes(new ByteSizeValue(5, MB)).queueCapacity(100).build(),
+        ExternalVersion.NONE);
+
+    final CoalescingEventQueue queue = new CoalescingEventQueue(requestFactory::isCertainToIndex);
+    final TestEvent mutation = new TestEvent("a", 0, 1);
+    final TestEvent deletion = TestEvent.deletion("a", 0, 2);
+    queue.add(mutation);
+    queue.add(deletion);
+
+    // The writer skips the deletion, so the mutation must still be written.
+    assertNull(requestFactory.newDocWriteRequest(deletion));
+    assertSame(mutation, queue.poll());
+    assertEquals(0, mutation.getAckCount());
+  }
+
+  @Test
+  public void unwritableEventDoesNotReplaceQueuedEvent() {
+    final TestEvent unwritable = new TestEvent("a", 0, 2, true, "not json");
+    final CoalescingEventQueue queue = new CoalescingEventQueue(e -> e != unwritable);
+    final TestEvent a1 = new TestEvent("a", 0, 1);
+    final TestEvent a3 = new TestEvent("a", 0, 3);
+    queue.add(a1);
+    queue.add(unwritable);
+    assertEquals(0, a1.getAckCount());
+    assertEquals(2, queue.size());
+
+    // A later version can still replace the first one, but not the one that couldn't replace it.
+    queue.add(a3);
+    assertEquals(1, a1.getAckCount());
+    assertEquals(0, unwritable.getAckCount());
+    assertSame(unwritable, queue.poll());
+    assertSame(a3, queue.poll());
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void documentsInDifferentCollectionsAreNotCoalesced() {
+    final CoalescingEventQueue queue = newQueue();
+    queue.add(new TestEvent("a", 0, 1) {
+      @Override
+      public String getKey(boolean qualifiedWithScopeAndCollection) {
+        return qualifiedWithScopeAndCollection ? "scope.collection.a" : "a";
+      }
+    });
+    queue.add(new TestEvent("a", 0, 2));
+
+    assertEquals(2, queue.size());
+    assertEquals(0, queue.getCoalescedCount());
+  }
+
+  @Test
+  public void takeReturnsQueuedEvent() throws Exception {
+    final CoalescingEventQueue queue = newQueue();
+    final TestEvent a = new TestEvent("a", 0, 1);
+    queue.add(a);
+    assertSame(a, queue.take());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void wakeUpInterruptsTakeOnce() throws Exception {
+    final CoalescingEventQueue queue = newQueue();
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Object> result = new AtomicReference<>("not set");
+
+    final Thread consumer = new Thread(() -> {
+      try {
+        result.set(queue.take());
+      } catch (InterruptedException e) {
+        result.set(e);
+      }
+      done.countDown();
+    });
+    consumer.start();
+
+    queue.wakeUp();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertNull(result.get());
+
+    // Only one call returns early.
+    final TestEvent a = new TestEvent("a", 0, 1);
+    queue.add(a);
+    assertSame(a, queue.take());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void wakeUpBeforePoll() throws Exception {
+    final CoalescingEventQueue queue = newQueue();
+    queue.wakeUp();
+
+    final long startNanos = System.nanoTime();
+    assertNull(queue.poll(1, TimeUnit.HOURS));
+    assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(10));
+  }
+
+  @Test
+  public void wakeUpDoesNotHideQueuedEvent() throws Exception {
+    final CoalescingEventQueue queue = newQueue();
+    final TestEvent a = new TestEvent("a", 0, 1);
+    queue.add(a);
+    queue.wakeUp();
+
+    assertSame(a, queue.take());
+    assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void pollTimesOut() throws Exception {
+    final CoalescingEventQueue queue = newQueue();
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void countsEventsByPartition() {
+    final CoalescingEventQueue queue = newQueue();
+    queue.add(new TestEvent("a", 0, 1));
+    queue.add(new TestEvent("b", 2, 1));
+    queue.add(new TestEvent("c", 2, 2));
+    queue.add(new TestEvent("d", 5, 1)); // beyond the array; ignored
+
+    final int[] counts = {10, 0, 0};
+    queue.addSizesByPartition(counts);
+    assertArrayEquals(new int[]{11, 0, 2}, counts);
+  }
+
+  @Test
+  public void clearAndReleaseReleasesEverything() {
+    final CoalescingEventQueue queue = newQueue();
+    final TestEvent a = new TestEvent("a", 0, 1);
+    final TestEvent b = new TestEvent("b", 1, 1);
+    queue.add(a);
+    queue.add(b);
+    queue.clearAndRelease();
+
+    assertEquals(0, queue.size());
+    assertNull(queue.poll());
+    assertEquals(1, a.getAckCount());
+    assertEquals(1, b.getAckCount());
+  }
+
+  private static CoalescingEventQueue newQueue() {
+    return new CoalescingEventQueue(Event::isMutation);
+  }
+}
@@ -0,0 +1,63 @@
+package com.couchbase.connector.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentLifecycleRecorderTest {
+  @Test(expected = IllegalArgumentException.class)
+  public void capacityMustBePowerOfTwo() throws Exception {
+    new DocumentLifecycleRecorder(3, r -> {
+    });
+  }
+
+  @Test
+  public void formatsRecordsInClaimOrder() throws Exception {
+    final List<Integer> formatted = new CopyOnWriteArrayList<>();
+    final CountDownLatch done = new CountDownLatch(100);
+    final DocumentLifecycleRecorder recorder = new DocumentLifecycleRecorder(8, r -> {
+      formatted.add(r.intDetail);
+      done.countDown();
+    });
+
+    int next = 0;
+    while (next < 100) {
+      final DocumentLifecycleRecorder.Record r = recorder.claim();
+      if (r != null) { // ring might be full; try again
+        r.intDetail = next++;
+        recorder.publish(r);
+      }
+    }
+
+    assertTrue(done.await(10, SECONDS));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, (int) formatted.get(i));
+    }
+  }
+
+  @Test
+  public void dropsWhenFull() throws Exception {
+    final CountDownLatch unblock = new CountDownLatch(1);
+    final DocumentLifecycleRecorder recorder = new DocumentLifecycleRecorder(2, r -> {
+      try {
+        unblock.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    // Claimed but unpublished records occupy their slots.
+    assertNotNull(recorder.claim());
+    assertNotNull(recorder.claim());
+    assertNull(recorder.claim());
+    unblock.countDown();
+  }
+}
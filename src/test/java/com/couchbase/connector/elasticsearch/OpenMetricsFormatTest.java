@@ -0,0 +1,35 @@
+package com.couchbase.connector.elasticsearch;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+
+public class OpenMetricsFormatTest {
+  @Test
+  public void counterFamilyNameHasNoSuffix() throws Exception {
+    final MetricFamilySamples counter = new MetricFamilySamples("cbes_retry_total", Collector.Type.COUNTER, "Retries",
+        singletonList(new Sample("cbes_retry_total", asList("a", "b"), asList("x\"y", "z\\"), 3)));
+    final MetricFamilySamples gauge = new MetricFamilySamples("cbes_backlog", Collector.Type.GAUGE, "",
+        singletonList(new Sample("cbes_backlog", emptyList(), emptyList(), Double.POSITIVE_INFINITY)));
+
+    final StringWriter out = new StringWriter();
+    OpenMetricsFormat.write(out, Collections.enumeration(asList(counter, gauge)));
+
+    assertEquals("# TYPE cbes_retry counter\n" +
+            "# HELP cbes_retry Retries\n" +
+            "cbes_retry_total{a=\"x\\\"y\",b=\"z\\\\\"} 3.0\n" +
+            "# TYPE cbes_backlog gauge\n" +
+            "cbes_backlog +Inf\n" +
+            "# EOF\n",
+        out.toString());
+  }
+}
@@ -0,0 +1,124 @@
+package com.couchbase.connector.elasticsearch.cli;
+
+import com.couchbase.connector.elasticsearch.io.DeadLetterSpool;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertEquals;
+
+public class DeadLetterReplayTest {
+  @Rule
+  public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void writesOnlyLatestRecordForEachDocument() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final File first = segment(dir, 1,
+        record("a", "v1"),
+        record("b", "v1"));
+    final File second = segment(dir, 2,
+        record("a", "v2"),
+        record("c", "v1"),
+        record("c", "v2"));
+
+    final List<String> events = new ArrayList<>();
+    DeadLetterReplay.forEachLatestRecord(Arrays.asList(first, second), new DeadLetterReplay.SegmentHandler() {
+      @Override
+      public void latest(JsonNode record) {
+        events.add("latest " + record.path("id").asText() + " " + record.path("source").path("v").asText());
+      }
+
+      @Override
+      public void superseded(JsonNode record) {
+        events.add("superseded " + record.path("id").asText() + " " + record.path("source").path("v").asText());
+      }
+
+      @Override
+      public void endSegment(File segment) {
+        events.add("end " + segment.getName());
+      }
+    });
+
+    assertEquals(Arrays.asList(
+        "superseded a v1",
+        "latest b v1",
+        "end " + first.getName(),
+        "latest a v2",
+        "superseded c v1",
+        "latest c v2",
+        "end " + second.getName()),
+        events);
+  }
+
+  @Test
+  public void sameIdInDifferentIndexIsDifferentDocument() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final File segment = segment(dir, 1,
+        "{\"destination\":0,\"index\":\"one\",\"type\":\"_doc\",\"id\":\"a\"}",
+        "{\"destination\":0,\"index\":\"two\",\"type\":\"_doc\",\"id\":\"a\"}",
+        "{\"destination\":1,\"index\":\"one\",\"type\":\"_doc\",\"id\":\"a\"}");
+
+    final List<JsonNode> latest = new ArrayList<>();
+    DeadLetterReplay.forEachLatestRecord(Arrays.asList(segment), new DeadLetterReplay.SegmentHandler() {
+      @Override
+      public void latest(JsonNode record) {
+        latest.add(record);
+      }
+
+      @Override
+      public void superseded(JsonNode record) {
+      }
+
+      @Override
+      public void endSegment(File segment) {
+      }
+    });
+
+    assertEquals(3, latest.size());
+  }
+
+  @Test
+  public void skipsSegmentInUse() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final File first = segment(dir, 1, record("a", "v1"));
+    final File second = segment(dir, 2, record("b", "v1"));
+
+    // No lock file; nobody is writing.
+    assertEquals(Arrays.asList(first, second), DeadLetterReplay.segmentsToReplay(dir));
+
+    final File lockFile = new File(dir, DeadLetterSpool.LOCK_FILE_NAME);
+    try (FileChannel channel = FileChannel.open(lockFile.toPath(), CREATE, WRITE);
+         FileLock lock = channel.lock()) {
+      // As if a connector were appending to the newest segment.
+      assertEquals(Arrays.asList(first), DeadLetterReplay.segmentsToReplay(dir));
+    }
+
+    // Lock file left behind by a connector that stopped.
+    assertEquals(Arrays.asList(first, second), DeadLetterReplay.segmentsToReplay(dir));
+  }
+
+  private static String record(String id, String version) {
+    return "{\"destination\":0,\"action\":\"INDEX\",\"index\":\"example\",\"type\":\"_doc\",\"id\":\"" + id + "\","
+        + "\"source\":{\"v\":\"" + version + "\"}}";
+  }
+
+  private static File segment(File dir, long sequence, String... records) throws IOException {
+    final File f = new File(dir, String.format("segment-%020d.jsonl", sequence));
+    Files.write(f.toPath(), Arrays.asList(records), UTF_8);
+    return f;
+  }
+}
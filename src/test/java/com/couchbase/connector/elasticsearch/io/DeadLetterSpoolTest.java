@@ -0,0 +1,151 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeadLetterSpoolTest {
+  private static final long NO_RECHECK_DELAY = 0;
+  private static final long LONG_RECHECK_DELAY = Long.MAX_VALUE;
+
+  @Rule
+  public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void startsNewSegmentWhenFull() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final DeadLetterSpool.Spool spool = new DeadLetterSpool.Spool(dir, 1000, 100, NO_RECHECK_DELAY);
+    try {
+      assertTrue(spool.append(record("a", 40)));
+      assertTrue(spool.append(record("b", 40)));
+      assertTrue(spool.append(record("c", 40))); // doesn't fit in the first segment
+      spool.sync();
+    } finally {
+      spool.close();
+    }
+
+    final List<File> segments = DeadLetterSpool.listSegments(dir);
+    assertEquals(2, segments.size());
+    assertEquals(Arrays.asList("a", "b"), ids(segments.get(0)));
+    assertEquals(Arrays.asList("c"), ids(segments.get(1)));
+  }
+
+  @Test
+  public void reopenedSpoolStartsNewSegment() throws Exception {
+    final File dir = tempFolder.newFolder();
+    DeadLetterSpool.Spool spool = new DeadLetterSpool.Spool(dir, 1000, 100, NO_RECHECK_DELAY);
+    assertTrue(spool.append(record("a", 40)));
+    spool.close();
+
+    // The previous segment might end with a partial record, so it's never appended to.
+    spool = new DeadLetterSpool.Spool(dir, 1000, 100, NO_RECHECK_DELAY);
+    assertTrue(spool.append(record("b", 40)));
+    spool.close();
+
+    final List<File> segments = DeadLetterSpool.listSegments(dir);
+    assertEquals(2, segments.size());
+    assertEquals(Arrays.asList("a"), ids(segments.get(0)));
+    assertEquals(Arrays.asList("b"), ids(segments.get(1)));
+  }
+
+  @Test
+  public void rejectsRecordsWhenFull() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final DeadLetterSpool.Spool spool = new DeadLetterSpool.Spool(dir, 100, 50, NO_RECHECK_DELAY);
+    try {
+      assertTrue(spool.append(record("a", 40)));
+      assertTrue(spool.append(record("b", 40)));
+      assertFalse(spool.append(record("c", 40)));
+
+      // A smaller record still fits.
+      assertTrue(spool.append(record("d", 20)));
+      assertFalse(spool.append(record("e", 20)));
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void acceptsRecordsAgainAfterSegmentsAreRemoved() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final DeadLetterSpool.Spool spool = new DeadLetterSpool.Spool(dir, 100, 50, NO_RECHECK_DELAY);
+    try {
+      assertTrue(spool.append(record("a", 40)));
+      assertTrue(spool.append(record("b", 40)));
+      assertFalse(spool.append(record("c", 40)));
+
+      // As if the replay command deleted the oldest segment.
+      assertTrue(DeadLetterSpool.listSegments(dir).get(0).delete());
+      assertTrue(spool.append(record("c", 40)));
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void waitsBeforeCheckingAgainWhetherSegmentsWereRemoved() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final DeadLetterSpool.Spool spool = new DeadLetterSpool.Spool(dir, 100, 50, LONG_RECHECK_DELAY);
+    try {
+      assertTrue(spool.append(record("a", 40)));
+      assertTrue(spool.append(record("b", 40)));
+      assertFalse(spool.append(record("c", 40)));
+
+      assertTrue(DeadLetterSpool.listSegments(dir).get(0).delete());
+      assertFalse(spool.append(record("c", 40)));
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void onlyOneSpoolPerDirectory() throws Exception {
+    final File dir = tempFolder.newFolder();
+    final DeadLetterSpool.Spool spool = new DeadLetterSpool.Spool(dir, 1000, 100, NO_RECHECK_DELAY);
+    try {
+      new DeadLetterSpool.Spool(dir, 1000, 100, NO_RECHECK_DELAY);
+      fail("expected exception");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("in use"));
+    } finally {
+      spool.close();
+    }
+
+    // Lock was released.
+    new DeadLetterSpool.Spool(dir, 1000, 100, NO_RECHECK_DELAY).close();
+  }
+
+  /**
+   * Returns a record of exactly the given length, including the newline.
+   */
+  private static byte[] record(String id, int length) {
+    final String prefix = "{\"id\":\"" + id + "\",\"p\":\"";
+    final String suffix = "\"}\n";
+    final StringBuilder sb = new StringBuilder(prefix);
+    while (sb.length() < length - suffix.length()) {
+      sb.append('x');
+    }
+    final byte[] result = sb.append(suffix).toString().getBytes(UTF_8);
+    assertEquals(length, result.length);
+    return result;
+  }
+
+  private static List<String> ids(File segment) throws IOException {
+    return Files.readAllLines(segment.toPath(), UTF_8).stream()
+        .map(line -> line.substring(line.indexOf(":\"") + 2, line.indexOf("\",")))
+        .collect(toList());
+  }
+}
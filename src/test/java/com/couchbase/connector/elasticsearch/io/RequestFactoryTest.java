@@ -0,0 +1,85 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.config.es.ExternalVersion;
+import com.couchbase.connector.config.es.ImmutableDocStructureConfig;
+import com.couchbase.connector.config.es.ImmutableRejectLogConfig;
+import com.couchbase.connector.config.es.ImmutableTypeConfig;
+import com.couchbase.connector.config.es.TypeConfig;
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.dcp.TestEvent;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.couchbase.connector.dcp.DcpHelper.metadataDocumentIdPrefix;
+import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestFactoryTest {
+  private final RequestFactory factory = newFactory(false);
+
+  @Test
+  public void certainToIndexJsonObject() {
+    assertCertainToIndex(true, factory, new TestEvent("widget::1", 0, 1, true, "{\"color\":\"red\"}"));
+  }
+
+  @Test
+  public void notCertainToIndexDeletion() {
+    assertCertainToIndex(false, factory, TestEvent.deletion("widget::1", 0, 1));
+    assertCertainToIndex(false, factory, TestEvent.deletion("ignoreDeletes::1", 0, 1));
+  }
+
+  @Test
+  public void notCertainToIndexWithoutUsableContent() {
+    assertCertainToIndex(false, factory, new TestEvent("widget::1", 0, 1, true, "not json"));
+    assertCertainToIndex(false, factory, new TestEvent("widget::1", 0, 1, true, "[]"));
+    assertCertainToIndex(false, factory, new TestEvent("widget::1", 0, 1, true, "42"));
+  }
+
+  @Test
+  public void certainToIndexWrappedCounter() {
+    assertCertainToIndex(true, newFactory(true), new TestEvent("widget::1", 0, 1, true, "42"));
+  }
+
+  @Test
+  public void notCertainToIndexSkippedType() {
+    assertCertainToIndex(false, factory, new TestEvent("ignored::1", 0, 1));
+    assertCertainToIndex(false, factory, new TestEvent("unknown::1", 0, 1));
+    assertCertainToIndex(false, factory, new TestEvent(metadataDocumentIdPrefix() + "checkpoint", 0, 1));
+  }
+
+  private static void assertCertainToIndex(boolean expected, RequestFactory factory, Event event) {
+    assertEquals(expected, factory.isCertainToIndex(event));
+    if (expected) {
+      // The promise holds.
+      assertTrue(factory.newDocWriteRequest(event) instanceof EventIndexRequest);
+    } else if (!event.isMutation()) {
+      assertFalse(factory.newDocWriteRequest(event) instanceof EventIndexRequest);
+    }
+  }
+
+  private static RequestFactory newFactory(boolean wrapCounters) {
+    return new RequestFactory(
+        Arrays.asList(
+            type("widget", "widget::", false, false),
+            type("widget", "ignoreDeletes::", false, true),
+            type(null, "ignored::", true, false)),
+        ImmutableDocStructureConfig.builder().documentContentAtTopLevel(false).wrapCounters(wrapCounters).build(),
+        ImmutableRejectLogConfig.builder().typeName("_doc").maxActions(500).maxBytes(new ByteSizeValue(5, MB)).queueCapacity(100).build(),
+        ExternalVersion.NONE);
+  }
+
+  private static TypeConfig type(String index, String prefix, boolean ignore, boolean ignoreDeletes) {
+    return ImmutableTypeConfig.builder()
+        .type("_doc")
+        .index(index)
+        .ignore(ignore)
+        .ignoreDeletes(ignoreDeletes)
+        .matchOnQualifiedKey(false)
+        .matcher(new TypeConfig.IdPrefixMatcher(index, prefix, false))
+        .build();
+  }
+}
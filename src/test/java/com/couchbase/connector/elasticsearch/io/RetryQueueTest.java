@@ -0,0 +1,144 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.dcp.TestEvent;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.elasticsearch.common.unit.TimeValue.timeValueHours;
+import static org.elasticsearch.common.unit.TimeValue.timeValueMillis;
+import static org.elasticsearch.common.unit.TimeValue.timeValueSeconds;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RetryQueueTest {
+  private static final BackoffPolicy NO_DELAY = BackoffPolicy.constantBackoff(timeValueMillis(0), Integer.MAX_VALUE);
+
+  @Test
+  public void newerVersionReplacesQueuedRequest() {
+    final RetryQueue queue = new RetryQueue(NO_DELAY);
+    final EventIndexRequest first = request("a", 1);
+    final EventIndexRequest second = request("a", 1);
+
+    assertNull(queue.put("a", first));
+    assertTrue(queue.contains("a"));
+    assertSame(first, queue.put("a", second));
+    assertEquals(1, queue.size());
+    assertEquals(Collections.singletonList(second), queue.drain(Collections.singleton(1)));
+
+    // The evicted request no longer counts toward its vbucket.
+    assertFalse(queue.hasPending(1));
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void tracksPendingRequestsByVbucket() {
+    final RetryQueue queue = new RetryQueue(NO_DELAY);
+    final EventIndexRequest a = request("a", 1);
+    final EventIndexRequest b = request("b", 1);
+    final EventIndexRequest c = request("c", 2);
+    final EventIndexRequest d = request("d", 3);
+    queue.put("a", a);
+    queue.put("b", b);
+    queue.put("c", c);
+    queue.put("d", d);
+
+    assertTrue(queue.hasPending(1));
+    assertTrue(queue.hasPending(2));
+    assertFalse(queue.hasPending(4));
+
+    assertEquals(Arrays.asList(a, b, d), queue.drain(new HashSet<>(Arrays.asList(1, 3))));
+    assertFalse(queue.hasPending(1));
+    assertTrue(queue.hasPending(2));
+    assertFalse(queue.hasPending(3));
+    assertEquals(1, queue.size());
+    assertFalse(queue.contains("a"));
+    assertTrue(queue.contains("c"));
+  }
+
+  @Test
+  public void drainPreservesInsertionOrder() {
+    final RetryQueue queue = new RetryQueue(NO_DELAY);
+    final EventIndexRequest a = request("a", 1);
+    final EventIndexRequest b = request("b", 2);
+    final EventIndexRequest c = request("c", 1);
+    queue.put("b", b);
+    queue.put("a", a);
+    queue.put("c", c);
+
+    assertEquals(Arrays.asList(b, a, c), queue.drain());
+    assertTrue(queue.isEmpty());
+    assertFalse(queue.hasPending(1));
+    assertFalse(queue.hasPending(2));
+  }
+
+  @Test
+  public void emptyQueueIsNeverDue() {
+    final RetryQueue queue = new RetryQueue(NO_DELAY);
+    queue.scheduleNextAttempt();
+    assertFalse(queue.isDue());
+    assertEquals(Long.MAX_VALUE, queue.nanosUntilDue());
+  }
+
+  @Test
+  public void dueAfterScheduledDelay() {
+    final RetryQueue queue = new RetryQueue(NO_DELAY);
+    queue.put("a", request("a", 1));
+    queue.scheduleNextAttempt();
+    assertTrue(queue.isDue());
+    assertEquals(0, queue.nanosUntilDue());
+  }
+
+  @Test
+  public void notDueBeforeScheduledDelay() {
+    final RetryQueue queue = new RetryQueue(BackoffPolicy.constantBackoff(timeValueHours(1), Integer.MAX_VALUE));
+    queue.put("a", request("a", 1));
+    queue.scheduleNextAttempt();
+    assertFalse(queue.isDue());
+
+    final long nanosUntilDue = queue.nanosUntilDue();
+    assertTrue(nanosUntilDue > 0);
+    assertTrue(nanosUntilDue <= timeValueHours(1).nanos());
+  }
+
+  @Test
+  public void delayGrowsUntilBackoffIsReset() {
+    final RetryQueue queue = new RetryQueue(
+        BackoffPolicyBuilder.truncatedExponentialBackoff(timeValueSeconds(1), timeValueSeconds(5)).build());
+    queue.put("a", request("a", 1));
+
+    assertEquals(2, queue.scheduleNextAttempt().seconds());
+    assertEquals(4, queue.scheduleNextAttempt().seconds());
+    assertEquals(5, queue.scheduleNextAttempt().seconds());
+
+    queue.resetBackoff();
+    assertEquals(2, queue.scheduleNextAttempt().seconds());
+  }
+
+  @Test
+  public void clearRemovesEverything() {
+    final RetryQueue queue = new RetryQueue(NO_DELAY);
+    queue.put("a", request("a", 1));
+    queue.put("b", request("b", 2));
+    queue.clear();
+
+    assertTrue(queue.isEmpty());
+    assertEquals(0, queue.size());
+    assertFalse(queue.contains("a"));
+    assertFalse(queue.hasPending(1));
+    assertFalse(queue.hasPending(2));
+    final List<EventDocWriteRequest> drained = queue.drain();
+    assertTrue(drained.isEmpty());
+  }
+
+  private static EventIndexRequest request(String key, int vbucket) {
+    return new EventIndexRequest("example", "_doc", new TestEvent(key, vbucket, 1));
+  }
+}